@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads whole files with {@link AsynchronousFileChannel} into pooled buffers.
+ *
+ * <p>
+ * The reads do not block any thread, so the next file can be read while the previous one is parsed.
+ * The buffers are returned to the pool when the content is {@link Content#release() released}.
+ * </p>
+ */
+final class AsyncFileReader {
+    /**
+     * Opens the channel to read the file from.
+     */
+    interface ChannelOpener {
+        AsynchronousFileChannel open(Path file) throws IOException;
+    }
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    private final ChannelOpener opener;
+
+    AsyncFileReader(int bufferSize, int maxPooledBuffers) {
+        this(bufferSize, maxPooledBuffers, file -> AsynchronousFileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    AsyncFileReader(int bufferSize, int maxPooledBuffers, ChannelOpener opener) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.opener = opener;
+    }
+
+    /**
+     * Starts reading the file.
+     *
+     * @return future completed with the content of the file
+     */
+    CompletableFuture<Content> read(Path file) {
+        CompletableFuture<Content> future = new CompletableFuture<>();
+        AsynchronousFileChannel channel;
+        try {
+            channel = opener.open(file);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        Content content = new Content();
+        ByteBuffer buffer = acquire();
+        channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+            private long position;
+
+            @Override
+            public void completed(Integer count, ByteBuffer buffer) {
+                if (count == -1) {
+                    buffer.flip();
+                    content.buffers.add(buffer);
+                    close();
+                    future.complete(content);
+                    return;
+                }
+                position += count;
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    content.buffers.add(buffer);
+                    buffer = acquire();
+                }
+                channel.read(buffer, position, buffer, this);
+            }
+
+            @Override
+            public void failed(Throwable error, ByteBuffer buffer) {
+                release(buffer);
+                content.release();
+                close();
+                future.completeExceptionally(error);
+            }
+
+            private void close() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // the content was already read
+                }
+            }
+        });
+        return future;
+    }
+
+    private synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private synchronized void release(ByteBuffer buffer) {
+        if (pool.size() < maxPooledBuffers) {
+            pool.push(buffer);
+        }
+    }
+
+    /**
+     * Content of the file.
+     */
+    final class Content {
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+
+        /**
+         * Returns up to given number of the first bytes of the content.
+         */
+        byte[] header(int length) {
+            ByteBuffer first = buffers.get(0).duplicate();
+            byte[] header = new byte[Math.min(length, first.remaining())];
+            first.get(header);
+            return header;
+        }
+
+        /**
+         * Returns new stream reading the content, it is valid until the content is released.
+         */
+        InputStream newInputStream() {
+            return new InputStream() {
+                private int index;
+                private ByteBuffer current = buffers.get(0).duplicate();
+
+                @Override
+                public int read() {
+                    if (!advance()) {
+                        return -1;
+                    }
+                    return current.get() & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) {
+                    if (length == 0) {
+                        return 0;
+                    }
+                    if (!advance()) {
+                        return -1;
+                    }
+                    int count = Math.min(length, current.remaining());
+                    current.get(bytes, offset, count);
+                    return count;
+                }
+
+                private boolean advance() {
+                    while (!current.hasRemaining()) {
+                        if (index + 1 >= buffers.size()) {
+                            return false;
+                        }
+                        current = buffers.get(++index).duplicate();
+                    }
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Returns the buffers to the pool.
+         */
+        void release() {
+            for (ByteBuffer buffer : buffers) {
+                AsyncFileReader.this.release(buffer);
+            }
+            buffers.clear();
+        }
+    }
+}
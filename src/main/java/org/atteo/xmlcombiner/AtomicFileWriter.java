@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.xml.transform.TransformerException;
+
+/**
+ * Writes files atomically, only when their content changes.
+ */
+final class AtomicFileWriter {
+    /**
+     * Content to write.
+     */
+    interface Content {
+        /**
+         * Writes the content to given stream.
+         * @param out destination stream, it does not have to be closed
+         */
+        void writeTo(OutputStream out) throws IOException, TransformerException;
+    }
+
+    private AtomicFileWriter() {
+    }
+
+    /**
+     * Writes the content to a temporary file in the same directory and moves it in place of the given file
+     * if their digests differ.
+     *
+     * @return true if the file was replaced, false if it already had the same content
+     */
+    static boolean writeIfChanged(Path path, Content content) throws IOException, TransformerException {
+        Path absolute = path.toAbsolutePath();
+        Path temporary = absolute.resolveSibling("." + absolute.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temporary,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), digest)) {
+                content.writeTo(out);
+            }
+            if (Files.isRegularFile(absolute) && Files.size(absolute) == Files.size(temporary)
+                    && Arrays.equals(digest.digest(), digest(absolute))) {
+                return false;
+            }
+            if (Files.exists(absolute)) {
+                try {
+                    Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(absolute));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX file system
+                }
+            }
+            Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Computes the digest of given file.
+     */
+    static byte[] digest(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[Compression.BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Creates the SHA-256 digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,674 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Layer precompiled into a compact binary form.
+ *
+ * <p>
+ * Loading a compiled layer replaces XML parsing entirely: the file is memory-mapped
+ * and DOM nodes are created directly from its records.
+ * The format consists of a string table followed by the nodes in document order.
+ * Each element record stores its resolved {@link CombineSelf} and {@link CombineChildren} directives,
+ * its {@link Key}, its attributes and the size of its subtree, so invalid directives are reported at compile time,
+ * the merge does not parse the directives and the keys again and subtrees can be skipped without decoding them.
+ * </p>
+ */
+public final class CompiledLayer {
+    static final int MAGIC = 0x58434c31; // "XCL1"
+    static final short VERSION = 3;
+    private static final int NO_STRING = -1;
+
+    private final ByteBuffer buffer;
+    private final String[] strings;
+    private final int nodeCount;
+    private final int nodesOffset;
+
+    private CompiledLayer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        ByteBuffer header = buffer.duplicate();
+        if (header.remaining() < 14 || header.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a compiled layer");
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported compiled layer version " + version);
+        }
+        strings = new String[header.getInt()];
+        nodeCount = header.getInt();
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[header.getInt()];
+            header.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        nodesOffset = header.position();
+    }
+
+    /**
+     * Compiles given element with its whole subtree.
+     *
+     * @param element element to compile
+     * @return compiled layer
+     * @throws RuntimeException when the element contains invalid 'combine.*' directives
+     */
+    public static CompiledLayer compile(Element element) {
+        return compile(element, Collections.<String>emptyList());
+    }
+
+    /**
+     * Compiles given element with its whole subtree.
+     *
+     * <p>
+     * The keys are precomputed using given key attribute names, or the names from 'combine.keys' attribute
+     * of the parent element. They are used by the merge only when it uses the same key attribute names,
+     * see {@link XmlCombiner#XmlCombiner(ParserProfile, List)}.
+     * </p>
+     *
+     * @param element element to compile
+     * @param keyAttributeNames attribute names used to precompute element keys
+     * @return compiled layer
+     * @throws RuntimeException when the element contains invalid 'combine.*' directives
+     * @throws IllegalArgumentException when the layer is too large to be compiled
+     */
+    public static CompiledLayer compile(Element element, List<String> keyAttributeNames) {
+        return new CompiledLayer(ByteBuffer.wrap(new Compiler(keyAttributeNames).compile(element)));
+    }
+
+    /**
+     * Loads compiled layer from given file by memory-mapping it.
+     *
+     * @param file compiled layer file
+     * @return compiled layer
+     * @throws IOException when the file cannot be read
+     */
+    public static CompiledLayer load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new CompiledLayer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads compiled layer from given stream.
+     *
+     * @param stream stream with the compiled layer
+     * @return compiled layer
+     * @throws IOException when reading fails
+     */
+    public static CompiledLayer read(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = stream.read(chunk)) != -1) {
+            bytes.write(chunk, 0, count);
+        }
+        return new CompiledLayer(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Checks whether given header bytes start a compiled layer.
+     *
+     * @param header first bytes of the file
+     * @param length number of valid bytes in the header
+     * @return true when the header contains compiled layer magic number
+     */
+    static boolean isCompiledLayer(byte[] header, int length) {
+        return length >= 4 && ByteBuffer.wrap(header, 0, 4).getInt() == MAGIC;
+    }
+
+    /**
+     * Checks whether given stream starts with a compiled layer, the stream is reset to its start afterwards.
+     *
+     * @param stream input stream which supports {@link InputStream#mark(int)}
+     * @return true when the stream starts with compiled layer magic number
+     * @throws IOException when reading fails
+     */
+    static boolean isCompiledLayer(InputStream stream) throws IOException {
+        byte[] header = new byte[4];
+        stream.mark(header.length);
+        int length = 0;
+        int count;
+        while (length < header.length && (count = stream.read(header, length, header.length - length)) != -1) {
+            length += count;
+        }
+        stream.reset();
+        return isCompiledLayer(header, length);
+    }
+
+    /**
+     * Checks whether given file is a compiled layer.
+     *
+     * @param file file to check
+     * @return true when the file starts with compiled layer magic number
+     * @throws IOException when reading fails
+     */
+    public static boolean isCompiledLayer(Path file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file)) {
+            byte[] header = new byte[4];
+            int length = 0;
+            int count;
+            while (length < header.length && (count = stream.read(header, length, header.length - length)) != -1) {
+                length += count;
+            }
+            return isCompiledLayer(header, length);
+        }
+    }
+
+    /**
+     * Stores the compiled layer in given file.
+     *
+     * @param file destination file
+     * @throws IOException when writing fails
+     */
+    public void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer source = buffer.duplicate();
+            source.rewind();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the compiled layer in bytes.
+     *
+     * @return size in bytes
+     */
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the number of nodes stored in the layer.
+     *
+     * @return number of nodes
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Creates the DOM tree of the layer in given document.
+     *
+     * @param document owner of the created nodes
+     * @return root element of the layer, not attached to the document
+     */
+    public Element toElement(Document document) {
+        return toElement(document, null);
+    }
+
+    /**
+     * Creates the DOM tree of the layer in given document and collects the precomputed directives
+     * and keys of the created elements.
+     *
+     * @param document owner of the created nodes
+     * @param directives receives the precomputed directives of each created element, null to skip them
+     * @return root element of the layer, not attached to the document
+     */
+    Element toElement(Document document, Map<Element, Directives> directives) {
+        ByteBuffer in = nodes();
+        Map<Integer, List<String>> keyLists = new HashMap<>();
+        Deque<Node> parents = new ArrayDeque<>();
+        Deque<Integer> remaining = new ArrayDeque<>();
+        Element root = null;
+
+        for (int i = 0; i < nodeCount; i++) {
+            byte type = in.get();
+            Node node;
+            int childCount = 0;
+            switch (type) {
+                case Node.ELEMENT_NODE:
+                    Element element = createElement(document, in.getInt(), in.getInt());
+                    if (directives != null) {
+                        directives.put(element, readDirectives(in, element.getTagName(), keyLists));
+                    } else {
+                        skipDirectives(in);
+                    }
+                    int attributeCount = in.getInt();
+                    for (int j = 0; j < attributeCount; j++) {
+                        String namespace = string(in.getInt());
+                        String name = string(in.getInt());
+                        String value = string(in.getInt());
+                        if (namespace == null) {
+                            element.setAttribute(name, value);
+                        } else {
+                            element.setAttributeNS(namespace, name, value);
+                        }
+                    }
+                    childCount = in.getInt();
+                    in.getInt(); // subtree size
+                    node = element;
+                    break;
+                case Node.TEXT_NODE:
+                    node = document.createTextNode(string(in.getInt()));
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    node = document.createCDATASection(string(in.getInt()));
+                    break;
+                case Node.COMMENT_NODE:
+                    node = document.createComment(string(in.getInt()));
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    node = document.createProcessingInstruction(string(in.getInt()), string(in.getInt()));
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupted compiled layer, unknown node type " + type);
+            }
+
+            if (parents.isEmpty()) {
+                root = (Element) node;
+            } else {
+                parents.peek().appendChild(node);
+                remaining.push(remaining.pop() - 1);
+            }
+            if (childCount > 0) {
+                parents.push(node);
+                remaining.push(childCount);
+            }
+            while (!remaining.isEmpty() && remaining.peek() == 0) {
+                remaining.pop();
+                parents.pop();
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Prints human readable description of the layer.
+     *
+     * @param out destination of the description
+     */
+    public void describe(PrintStream out) {
+        out.println("compiled layer: " + size() + " bytes, " + strings.length + " strings, " + nodeCount + " nodes");
+        ByteBuffer in = nodes();
+        Deque<Integer> remaining = new ArrayDeque<>();
+
+        for (int i = 0; i < nodeCount; i++) {
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < remaining.size(); j++) {
+                line.append("  ");
+            }
+            byte type = in.get();
+            int childCount = 0;
+            switch (type) {
+                case Node.ELEMENT_NODE:
+                    in.getInt(); // namespace
+                    String tagName = string(in.getInt());
+                    line.append('<').append(tagName).append('>');
+                    Directives directives = readDirectives(in, tagName, new HashMap<>());
+                    if (directives.getCombineSelf() != null) {
+                        line.append(" combine.self=").append(directives.getCombineSelf().name().toLowerCase());
+                    }
+                    if (directives.getCombineChildren() != null) {
+                        line.append(" combine.children=")
+                                .append(directives.getCombineChildren().name().toLowerCase());
+                    }
+                    int attributeCount = in.getInt();
+                    in.position(in.position() + attributeCount * 12);
+                    childCount = in.getInt();
+                    int subtreeSize = in.getInt();
+                    line.append(" attributes=").append(attributeCount);
+                    line.append(" subtree=").append(subtreeSize);
+                    line.append(" key=").append(directives.getKey());
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    line.append("text[").append(string(in.getInt()).length()).append(']');
+                    break;
+                case Node.COMMENT_NODE:
+                    line.append("comment[").append(string(in.getInt()).length()).append(']');
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    line.append("<?").append(string(in.getInt())).append("?>");
+                    in.getInt();
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupted compiled layer, unknown node type " + type);
+            }
+            out.println(line);
+
+            if (!remaining.isEmpty()) {
+                remaining.push(remaining.pop() - 1);
+            }
+            if (childCount > 0) {
+                remaining.push(childCount);
+            }
+            while (!remaining.isEmpty() && remaining.peek() == 0) {
+                remaining.pop();
+            }
+        }
+    }
+
+    private ByteBuffer nodes() {
+        ByteBuffer in = buffer.duplicate();
+        in.position(nodesOffset);
+        return in;
+    }
+
+    private String string(int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+        return strings[index];
+    }
+
+    private Directives readDirectives(ByteBuffer in, String tagName, Map<Integer, List<String>> keyLists) {
+        byte encoded = in.get();
+        int keyList = in.getInt();
+        List<String> keyAttributeNames = keyLists.computeIfAbsent(keyList,
+                index -> index == NO_STRING ? Collections.<String>emptyList()
+                        : Arrays.asList(strings[index].split(",")));
+        int keyCount = in.getInt();
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            keys.put(strings[in.getInt()], strings[in.getInt()]);
+        }
+        return new Directives(decodeCombineSelf(encoded), decodeCombineChildren(encoded), keyAttributeNames,
+                new Key(tagName, keys));
+    }
+
+    private static void skipDirectives(ByteBuffer in) {
+        in.get();
+        in.getInt(); // key attribute names
+        int keyCount = in.getInt();
+        in.position(in.position() + keyCount * 8);
+    }
+
+    private static CombineSelf decodeCombineSelf(byte directives) {
+        int value = directives & 0x0f;
+        return value == 0 ? null : CombineSelf.values()[value - 1];
+    }
+
+    private static CombineChildren decodeCombineChildren(byte directives) {
+        int value = (directives >> 4) & 0x0f;
+        return value == 0 ? null : CombineChildren.values()[value - 1];
+    }
+
+    private Element createElement(Document document, int namespace, int name) {
+        if (namespace == NO_STRING) {
+            return document.createElement(strings[name]);
+        }
+        return document.createElementNS(strings[namespace], strings[name]);
+    }
+
+    /**
+     * Directives and key of the element resolved at compile time.
+     */
+    static final class Directives {
+        private final CombineSelf combineSelf;
+        private final CombineChildren combineChildren;
+        private final List<String> keyAttributeNames;
+        private final Key key;
+
+        Directives(CombineSelf combineSelf, CombineChildren combineChildren, List<String> keyAttributeNames,
+                Key key) {
+            this.combineSelf = combineSelf;
+            this.combineChildren = combineChildren;
+            this.keyAttributeNames = keyAttributeNames;
+            this.key = key;
+        }
+
+        CombineSelf getCombineSelf() {
+            return combineSelf;
+        }
+
+        CombineChildren getCombineChildren() {
+            return combineChildren;
+        }
+
+        /**
+         * Returns the key of the element when it was computed with given key attribute names, null otherwise.
+         */
+        Key getKey(List<String> keyAttributeNames) {
+            return this.keyAttributeNames.equals(keyAttributeNames) ? key : null;
+        }
+
+        Key getKey() {
+            return key;
+        }
+    }
+
+    private static class Compiler {
+        private final List<String> keyAttributeNames;
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Output nodes = new Output();
+        private int nodeCount;
+
+        Compiler(List<String> keyAttributeNames) {
+            this.keyAttributeNames = keyAttributeNames;
+        }
+
+        byte[] compile(Element root) {
+            try {
+                writeElement(root, keyAttributeNames);
+
+                ByteArrayOutputStream result = new ByteArrayOutputStream(nodes.size() + strings.size() * 16);
+                DataOutputStream out = new DataOutputStream(result);
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeInt(strings.size());
+                out.writeInt(nodeCount);
+                for (String string : strings) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.write(nodes.bytes, 0, nodes.size());
+                out.flush();
+                return result.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write to memory", e);
+            }
+        }
+
+        /**
+         * Writes element record followed by the records of its subtree.
+         * @return number of records written
+         */
+        private int writeElement(Element element, List<String> keys) {
+            nodeCount++;
+            NamedNodeMap attributes = element.getAttributes();
+            Node[] children = childNodes(element);
+
+            nodes.writeByte(Node.ELEMENT_NODE);
+            nodes.writeInt(index(element.getNamespaceURI()));
+            nodes.writeInt(index(element.getTagName()));
+            nodes.writeByte(encodeDirectives(element));
+            nodes.writeInt(keys.isEmpty() ? NO_STRING : index(String.join(",", keys)));
+            Map<String, String> key = key(element, keys);
+            nodes.writeInt(key.size());
+            for (Map.Entry<String, String> entry : key.entrySet()) {
+                nodes.writeInt(index(entry.getKey()));
+                nodes.writeInt(index(entry.getValue()));
+            }
+            nodes.writeInt(attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                nodes.writeInt(index(attribute.getNamespaceURI()));
+                nodes.writeInt(index(attribute.getName()));
+                nodes.writeInt(index(attribute.getValue()));
+            }
+            nodes.writeInt(children.length);
+            // subtree size is known only after the children are written, so it is patched afterwards
+            int subtreeSizeOffset = nodes.size();
+            nodes.writeInt(0);
+
+            List<String> childKeys = keyAttributeNames;
+            Attr keysNode = element.getAttributeNode(Context.KEYS_ATTRIBUTE_NAME);
+            if (keysNode != null) {
+                childKeys = Arrays.asList(keysNode.getValue().split(","));
+            }
+
+            int subtreeSize = 1;
+            for (Node child : children) {
+                subtreeSize += writeNode(child, childKeys);
+            }
+            nodes.setInt(subtreeSizeOffset, subtreeSize);
+            return subtreeSize;
+        }
+
+        private int writeNode(Node node, List<String> keys) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    return writeElement((Element) node, keys);
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                case Node.COMMENT_NODE:
+                    nodeCount++;
+                    nodes.writeByte(node.getNodeType());
+                    nodes.writeInt(index(node.getNodeValue()));
+                    return 1;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    nodeCount++;
+                    ProcessingInstruction instruction = (ProcessingInstruction) node;
+                    nodes.writeByte(Node.PROCESSING_INSTRUCTION_NODE);
+                    nodes.writeInt(index(instruction.getTarget()));
+                    nodes.writeInt(index(instruction.getData()));
+                    return 1;
+                default:
+                    throw new IllegalArgumentException("Unsupported node type: " + node.getNodeType());
+            }
+        }
+
+        private Node[] childNodes(Element element) {
+            List<Node> children = new ArrayList<>();
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ENTITY_REFERENCE_NODE) {
+                    for (Node expanded = child.getFirstChild(); expanded != null;
+                            expanded = expanded.getNextSibling()) {
+                        children.add(expanded);
+                    }
+                } else {
+                    children.add(child);
+                }
+            }
+            return children.toArray(new Node[0]);
+        }
+
+        private int index(String string) {
+            if (string == null) {
+                return NO_STRING;
+            }
+            Integer index = stringIndexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndexes.put(string, index);
+            }
+            return index;
+        }
+
+        private static byte encodeDirectives(Element element) {
+            // reports invalid directives at compile time
+            int directives = 0;
+            CombineSelf combineSelf = XmlCombiner.getCombineSelf(element);
+            if (combineSelf != null) {
+                directives |= combineSelf.ordinal() + 1;
+            }
+            CombineChildren combineChildren = XmlCombiner.getCombineChildren(element);
+            if (combineChildren != null) {
+                directives |= (combineChildren.ordinal() + 1) << 4;
+            }
+            return (byte) directives;
+        }
+
+        /**
+         * Returns the key attributes of the element in the same order as {@link KeyAttributesChildContextsMapper}.
+         */
+        private static Map<String, String> key(Element element, List<String> keyAttributeNames) {
+            Map<String, String> keys = new LinkedHashMap<>();
+            for (String keyAttributeName : keyAttributeNames) {
+                Attr keyNode = element.getAttributeNode(keyAttributeName);
+                if (keyNode != null) {
+                    keys.put(keyAttributeName, keyNode.getValue());
+                }
+            }
+            Attr idNode = element.getAttributeNode(Context.ID_ATTRIBUTE_NAME);
+            if (idNode != null) {
+                keys.put(Context.ID_ATTRIBUTE_NAME, idNode.getValue());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Growable big-endian buffer which, unlike {@link DataOutputStream}, allows to patch already written values.
+     */
+    private static class Output {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            setInt(size, value);
+            size += 4;
+        }
+
+        void setInt(int offset, int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (size > Integer.MAX_VALUE - 8 - additional) {
+                throw new IllegalArgumentException("The layer is too large to be compiled");
+            }
+            if (size + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(bytes.length * 2L, size + additional)));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the combined and the merged files.
+ *
+ * <p>
+ * Compressed input is detected by its magic bytes, so no temporary files are needed.
+ * </p>
+ */
+public enum Compression {
+    /**
+     * No compression.
+     */
+    NONE,
+
+    /**
+     * Gzip compression, selected for files with '.gz' extension.
+     */
+    GZIP,
+
+    /**
+     * Zlib deflate compression, selected for files with '.deflate' or '.zz' extension.
+     */
+    DEFLATE;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Selects the compression based on the file extension.
+     *
+     * @param path file path
+     * @return compression matching the extension of the file
+     */
+    public static Compression forPath(Path path) {
+        Path fileName = path.getFileName();
+        String name = fileName == null ? "" : fileName.toString();
+        if (name.endsWith(".gz")) {
+            return GZIP;
+        } else if (name.endsWith(".deflate") || name.endsWith(".zz")) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * Detects the compression of the stream by its magic bytes.
+     *
+     * @param in input stream which supports {@link InputStream#mark(int)}
+     * @return detected compression
+     * @throws IOException when reading fails
+     */
+    static Compression detect(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return GZIP;
+        }
+        // zlib header: deflate method, 32K window at most and valid check bits
+        if (first != -1 && second != -1 && (first & 0x0f) == 8 && (first >> 4) <= 7
+                && ((first << 8) | second) % 31 == 0) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * Wraps given stream into buffered stream which decompresses the content if it is compressed.
+     *
+     * @param in input stream
+     * @return stream with the uncompressed content
+     * @throws IOException when reading fails
+     */
+    static InputStream decompress(InputStream in) throws IOException {
+        InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        switch (detect(buffered)) {
+            case GZIP:
+                return new GZIPInputStream(buffered, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(buffered, new Inflater(), BUFFER_SIZE);
+            default:
+                return buffered;
+        }
+    }
+
+    /**
+     * Wraps given stream into buffered stream which compresses the content.
+     *
+     * <p>
+     * Closing the returned stream finishes the compression and closes the original stream.
+     * </p>
+     *
+     * @param out output stream
+     * @return compressing stream
+     * @throws IOException when writing fails
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case DEFLATE:
+                return new DeflaterOutputStream(out, new Deflater(), BUFFER_SIZE);
+            default:
+                return new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Finishes the compression and flushes the stream without closing the original stream.
+     *
+     * @param compressed stream returned by {@link #compress(OutputStream)}
+     * @throws IOException when writing fails
+     */
+    static void finish(OutputStream compressed) throws IOException {
+        if (compressed instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) compressed).finish();
+        }
+        compressed.flush();
+    }
+}
@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -30,8 +29,12 @@ import org.w3c.dom.NodeList;
 class Context {
     public static final String KEYS_ATTRIBUTE_NAME = "combine.keys";
     public static final String ID_ATTRIBUTE_NAME = "combine.id";
-    private final List<Node> neighbours = new ArrayList<>();
+    /**
+     * Nodes preceding the element, null until the first one is added, since most elements have none.
+     */
+    private List<Node> neighbours;
     private Element element;
+    private MergeRules.State rules;
 
     public Context() {}
 
@@ -42,11 +45,14 @@ class Context {
     }
 
     public void addNeighbour(Node node) {
+        if (neighbours == null) {
+            neighbours = new ArrayList<>();
+        }
         neighbours.add(node);
     }
 
     public List<Node> getNeighbours() {
-        return neighbours;
+        return neighbours == null ? Collections.<Node>emptyList() : neighbours;
     }
 
     public void setElement(Element element) {
@@ -57,34 +63,51 @@ class Context {
         return element;
     }
 
+    /**
+     * Returns the state of the merge rules matching this element, null if no rules are used.
+     */
+    public MergeRules.State getRules() {
+        return rules;
+    }
+
+    public void setRules(MergeRules.State rules) {
+        this.rules = rules;
+    }
+
     public void addAsChildTo(Node node) {
-        for (Node neighbour : neighbours) {
+        for (Node neighbour : getNeighbours()) {
             node.appendChild(neighbour);
         }
         node.appendChild(element);
     }
 
-    public void addAsChildTo(Node node, Document document) {
-        for (Node neighbour : neighbours) {
-            node.appendChild(document.importNode(neighbour, true));
-        }
-        if (element != null) {
-            node.appendChild(document.importNode(element, true));
+    public List<Context> groupChildContexts() {
+        if (element == null) {
+            return Collections.emptyList();
         }
+        return groupChildContexts(new ArrayList<>(element.getChildNodes().getLength()));
     }
 
-    public List<Context> groupChildContexts() {
+    /**
+     * Groups the child nodes into the given list, which can be reused between the calls.
+     *
+     * @param contexts empty list which receives the contexts of the children
+     * @return the given list
+     */
+    List<Context> groupChildContexts(List<Context> contexts) {
         if (element == null) {
-            return Collections.emptyList();
+            return contexts;
         }
         NodeList nodes = element.getChildNodes();
-        List<Context> contexts = new ArrayList<>(nodes.getLength());
 
         Context context = new Context();
         for (int i = 0; i < nodes.getLength(); i++) {
             Node node = nodes.item(i);
             if (node instanceof Element) {
                 context.setElement((Element) node);
+                if (rules != null) {
+                    context.setRules(rules.next(((Element) node).getTagName()));
+                }
                 contexts.add(context);
                 context = new Context();
             } else {
@@ -98,6 +121,6 @@ class Context {
 
     @Override
     public String toString() {
-        return neighbours + "" + element;
+        return getNeighbours() + "" + element;
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Entity;
+import org.w3c.dom.NamedNodeMap;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Files which a cached tree was built from besides its own file, like the included fragments
+ * and the external entities.
+ *
+ * <p>
+ * The dependencies are recorded on the parsing thread while the tree is loaded, nested loads add their
+ * dependencies to the enclosing one. The cache entry is valid only as long as none of the dependencies
+ * changed its size or modification time, or appeared when it was missing.
+ * </p>
+ */
+final class Dependencies {
+    /**
+     * Loads the tree while its dependencies are recorded.
+     *
+     * @param <T> type of the loaded tree
+     */
+    interface Loader<T> {
+        T load() throws IOException, SAXException;
+    }
+
+    private static final ThreadLocal<Dependencies> RECORDING = new ThreadLocal<>();
+    private static final long MISSING = -1;
+
+    /**
+     * Size and modification time of each file, {@link #MISSING} for the files which do not exist.
+     */
+    private final Map<Path, long[]> files = new LinkedHashMap<>();
+
+    /**
+     * Loads the tree recording the files it reads.
+     *
+     * @param dependencies receives the files read by the loader
+     * @param loader loader of the tree
+     * @return loaded tree
+     */
+    static <T> T record(Dependencies dependencies, Loader<T> loader) throws IOException, SAXException {
+        Dependencies outer = RECORDING.get();
+        RECORDING.set(dependencies);
+        try {
+            return loader.load();
+        } finally {
+            if (outer == null) {
+                RECORDING.remove();
+            } else {
+                RECORDING.set(outer);
+                outer.merge(dependencies);
+            }
+        }
+    }
+
+    /**
+     * Adds the file with given attributes to the dependencies being recorded, if any.
+     */
+    static void add(Path file, BasicFileAttributes attributes) {
+        Dependencies current = RECORDING.get();
+        if (current != null) {
+            current.files.putIfAbsent(file, state(attributes));
+        }
+    }
+
+    /**
+     * Adds the file in its current state to the dependencies being recorded, if any.
+     */
+    static void add(Path file) throws IOException {
+        Dependencies current = RECORDING.get();
+        if (current != null && !current.files.containsKey(file)) {
+            current.files.put(file, state(file));
+        }
+    }
+
+    /**
+     * Adds given dependencies to the ones being recorded, if any.
+     */
+    static void addAll(Dependencies dependencies) {
+        Dependencies current = RECORDING.get();
+        if (current != null && current != dependencies) {
+            current.merge(dependencies);
+        }
+    }
+
+    private void merge(Dependencies dependencies) {
+        for (Map.Entry<Path, long[]> entry : dependencies.files.entrySet()) {
+            files.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds the external DTD and the external entities declared by the document to the dependencies being
+     * recorded. Used when the entities were resolved by a parser whose resolver cannot be wrapped,
+     * see {@link #entityResolver(EntityResolver)}.
+     */
+    static void addEntities(Document document) throws IOException {
+        DocumentType doctype = document.getDoctype();
+        if (RECORDING.get() == null || doctype == null) {
+            return;
+        }
+        String base = document.getDocumentURI();
+        addSystemId(base, doctype.getSystemId());
+        NamedNodeMap entities = doctype.getEntities();
+        for (int i = 0; i < entities.getLength(); i++) {
+            addSystemId(base, ((Entity) entities.item(i)).getSystemId());
+        }
+    }
+
+    private static void addSystemId(String base, String systemId) throws IOException {
+        if (systemId == null) {
+            return;
+        }
+        String resolved = systemId;
+        if (base != null) {
+            try {
+                resolved = new URI(base).resolve(systemId).toString();
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // keep the system id as is
+            }
+        }
+        Path file = FragmentCache.toLocalFile(resolved);
+        if (file != null) {
+            add(file);
+        }
+    }
+
+    /**
+     * Returns the resolver which records the local external entities read by the parser.
+     *
+     * @param delegate resolver which resolves the entities, can be null
+     * @return recording entity resolver
+     */
+    static EntityResolver entityResolver(EntityResolver delegate) {
+        return (publicId, systemId) -> {
+            InputSource source = delegate == null ? null : delegate.resolveEntity(publicId, systemId);
+            if (source == null) {
+                addSystemId(null, systemId);
+            } else if (source.getByteStream() == null && source.getCharacterStream() == null) {
+                addSystemId(null, source.getSystemId());
+            }
+            return source;
+        };
+    }
+
+    /**
+     * Whether none of the files changed since they were recorded.
+     *
+     * @return true when all the files are unchanged
+     * @throws IOException when the attributes of a file cannot be read
+     */
+    boolean isUnchanged() throws IOException {
+        for (Map.Entry<Path, long[]> entry : files.entrySet()) {
+            long[] state = state(entry.getKey());
+            if (state[0] != entry.getValue()[0] || state[1] != entry.getValue()[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] state(Path file) throws IOException {
+        try {
+            return state(Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return new long[] {MISSING, MISSING};
+        }
+    }
+
+    private static long[] state(BasicFileAttributes attributes) {
+        return new long[] {attributes.size(), attributes.lastModifiedTime().toMillis()};
+    }
+}
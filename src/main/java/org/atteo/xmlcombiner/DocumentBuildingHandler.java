@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * SAX handler which builds the parsed element directly in the given {@link Document}.
+ *
+ * <p>
+ * Contrary to {@link javax.xml.parsers.DocumentBuilder} there is no intermediate document,
+ * so the nodes do not have to be imported before they are combined.
+ * </p>
+ * <p>
+ * When {@link OverriddenPaths} are given, the content of the elements at the overridden paths is skipped
+ * and only their childless stubs are created.
+ * </p>
+ */
+class DocumentBuildingHandler extends DefaultHandler2 {
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    private final Document document;
+    private final boolean namespaceAware;
+    private final StringBuilder text = new StringBuilder();
+    private Node current;
+    private Element root;
+    private boolean inCData;
+    private boolean inDtd;
+
+    private final OverriddenPaths overriddenPaths;
+    private final List<OverriddenPaths.PathNode> pathNodes = new ArrayList<>();
+    private final List<List<String>> childKeyAttributeNames = new ArrayList<>();
+    private int skippedDepth;
+
+    DocumentBuildingHandler(Document document, boolean namespaceAware, OverriddenPaths overriddenPaths) {
+        this.document = document;
+        this.namespaceAware = namespaceAware;
+        this.overriddenPaths = overriddenPaths;
+    }
+
+    /**
+     * Parses given input with the reader and returns the document element created in the document.
+     */
+    static Element parse(XMLReader reader, InputSource input, Document document, boolean namespaceAware)
+            throws SAXException, IOException {
+        return parse(reader, input, document, namespaceAware, null);
+    }
+
+    /**
+     * Parses given input with the reader skipping the content of the elements at the overridden paths.
+     */
+    static Element parse(XMLReader reader, InputSource input, Document document, boolean namespaceAware,
+            OverriddenPaths overriddenPaths) throws SAXException, IOException {
+        DocumentBuildingHandler handler = new DocumentBuildingHandler(document, namespaceAware, overriddenPaths);
+        reader.setContentHandler(handler);
+        reader.setProperty(LEXICAL_HANDLER, handler);
+        reader.parse(input);
+        return handler.getRoot();
+    }
+
+    /**
+     * Returns the document element, not attached to the document.
+     */
+    Element getRoot() {
+        return root;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (skippedDepth > 0) {
+            skippedDepth++;
+            return;
+        }
+        flushText();
+        Element element;
+        if (namespaceAware) {
+            element = document.createElementNS(uri.isEmpty() ? null : uri, qName);
+        } else {
+            element = document.createElement(qName);
+        }
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String name = attributes.getQName(i);
+            if (!namespaceAware) {
+                element.setAttribute(name, attributes.getValue(i));
+            } else if (name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith("xmlns:")) {
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, attributes.getValue(i));
+            } else {
+                String attributeUri = attributes.getURI(i);
+                element.setAttributeNS(attributeUri.isEmpty() ? null : attributeUri, name, attributes.getValue(i));
+            }
+        }
+        if (current == null) {
+            root = element;
+        } else {
+            current.appendChild(element);
+        }
+        current = element;
+        if (overriddenPaths != null) {
+            enterPath(qName, attributes, element);
+        }
+    }
+
+    private void enterPath(String qName, Attributes attributes, Element element) {
+        OverriddenPaths.PathNode parent;
+        List<String> keyAttributeNames;
+        if (pathNodes.isEmpty()) {
+            parent = overriddenPaths.getRoot();
+            keyAttributeNames = overriddenPaths.childKeyAttributeNames(null);
+        } else {
+            parent = pathNodes.get(pathNodes.size() - 1);
+            keyAttributeNames = childKeyAttributeNames.get(childKeyAttributeNames.size() - 1);
+        }
+        OverriddenPaths.PathNode node = null;
+        if (parent != null) {
+            node = parent.getChild(OverriddenPaths.key(qName, attributes::getValue, keyAttributeNames));
+        }
+        if (node != null && node.isOverridden()
+                && !"add".equalsIgnoreCase(attributes.getValue(CombineChildren.ATTRIBUTE_NAME))) {
+            element.setAttribute(OverriddenPaths.MARKER_ATTRIBUTE_NAME, "true");
+            skippedDepth = 1;
+        }
+        pathNodes.add(node);
+        childKeyAttributeNames.add(node == null ? null
+                : overriddenPaths.childKeyAttributeNames(attributes.getValue(Context.KEYS_ATTRIBUTE_NAME)));
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (skippedDepth > 1) {
+            skippedDepth--;
+            return;
+        }
+        skippedDepth = 0;
+        flushText();
+        current = current.getParentNode();
+        if (overriddenPaths != null) {
+            pathNodes.remove(pathNodes.size() - 1);
+            childKeyAttributeNames.remove(childKeyAttributeNames.size() - 1);
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (current != null && skippedDepth == 0) {
+            text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+        if (current != null && skippedDepth == 0) {
+            flushText();
+            current.appendChild(document.createProcessingInstruction(target, data));
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+        if (current != null && !inDtd && skippedDepth == 0) {
+            flushText();
+            current.appendChild(document.createComment(new String(ch, start, length)));
+        }
+    }
+
+    @Override
+    public void startCDATA() {
+        flushText();
+        inCData = true;
+    }
+
+    @Override
+    public void endCDATA() {
+        if (current != null && skippedDepth == 0) {
+            current.appendChild(document.createCDATASection(text.toString()));
+        }
+        text.setLength(0);
+        inCData = false;
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+        inDtd = true;
+    }
+
+    @Override
+    public void endDTD() {
+        inDtd = false;
+    }
+
+    private void flushText() {
+        if (text.length() > 0 && !inCData) {
+            current.appendChild(document.createTextNode(text.toString()));
+            text.setLength(0);
+        }
+    }
+}
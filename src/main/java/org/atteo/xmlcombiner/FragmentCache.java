@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Cache of the fragments included by the combined files, shared by all the files and all the combiners.
+ *
+ * <p>
+ * The documents included with XInclude are parsed once and kept as {@link CompiledLayer compiled layers},
+ * the included text and external entities are kept as bytes. Only local files are cached, the entries are valid
+ * as long as the size and the modification time of the file do not change, and neither do those of the fragments
+ * and entities it includes in turn. The total size
+ * of the cached fragments is bounded, the least recently used fragments are evicted first.
+ * </p>
+ *
+ * @see XmlCombiner#setFragmentCache(FragmentCache)
+ */
+public final class FragmentCache {
+    /**
+     * Loads the fragment on cache miss.
+     *
+     * @param <T> type of the fragment
+     */
+    interface Loader<T> {
+        T load(Path file) throws IOException, SAXException;
+    }
+
+    private final long maximumSize;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maximumSize maximum total size of the cached fragments in bytes
+     */
+    public FragmentCache(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Negative maximum size: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the included document, parsing it on cache miss.
+     */
+    CompiledLayer document(Path file, Loader<CompiledLayer> loader) throws IOException, SAXException {
+        return get("xml", file, loader, CompiledLayer::size);
+    }
+
+    /**
+     * Returns the content of the file, reading it on cache miss.
+     */
+    byte[] content(Path file) throws IOException, SAXException {
+        return get("bytes", file, Files::readAllBytes, bytes -> bytes.length);
+    }
+
+    private <T> T get(String kind, Path file, Loader<T> loader, ToLongFunction<T> weigher)
+            throws IOException, SAXException {
+        Path path = file.toRealPath();
+        String key = kind + ":" + path;
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Dependencies.add(path, attributes);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.matches(attributes) && entry.dependencies.isUnchanged()) {
+            synchronized (this) {
+                hitCount++;
+            }
+            Dependencies.addAll(entry.dependencies);
+            @SuppressWarnings("unchecked")
+            T value = (T) entry.value;
+            return value;
+        }
+
+        Dependencies dependencies = new Dependencies();
+        T value = Dependencies.record(dependencies, () -> loader.load(path));
+        long weight = weigher.applyAsLong(value);
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (this) {
+            missCount++;
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                size -= previous.weight;
+            }
+            Entry loaded = new Entry(value, weight, attributes, dependencies);
+            if (loaded.matches(after) && weight <= maximumSize) {
+                entries.put(key, loaded);
+                size += weight;
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (size > maximumSize && iterator.hasNext()) {
+                    size -= iterator.next().weight;
+                    iterator.remove();
+                    evictionCount++;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the resolver which reads local external entities from the cache.
+     *
+     * @param delegate resolver which maps the entities first, for instance using the catalog, can be null
+     * @return caching entity resolver
+     */
+    EntityResolver entityResolver(EntityResolver delegate) {
+        return (publicId, systemId) -> {
+            InputSource source = delegate == null ? null : delegate.resolveEntity(publicId, systemId);
+            if (source != null && (source.getByteStream() != null || source.getCharacterStream() != null)) {
+                return source;
+            }
+            String resolved = source != null ? source.getSystemId() : systemId;
+            Path file = toLocalFile(resolved);
+            if (file == null || !Files.isRegularFile(file)) {
+                return source;
+            }
+            InputSource cached = new InputSource(new ByteArrayInputStream(content(file)));
+            cached.setPublicId(publicId);
+            cached.setSystemId(resolved);
+            if (source != null) {
+                cached.setEncoding(source.getEncoding());
+            }
+            return cached;
+        };
+    }
+
+    /**
+     * Returns the local file identified by given URI, null if it is not a local file.
+     */
+    static Path toLocalFile(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        try {
+            URI parsed = new URI(uri);
+            if (!"file".equals(parsed.getScheme())) {
+                return null;
+            }
+            return Paths.get(parsed);
+        } catch (IllegalArgumentException | URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes all the fragments.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of cached fragments.
+     *
+     * @return number of cached fragments
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached fragments.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of fragments served from the cache.
+     *
+     * @return number of hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of fragments which were read.
+     *
+     * @return number of misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of fragments evicted to keep the cache within its maximum size.
+     *
+     * @return number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d fragments, %d bytes, %d hits, %d misses, %d evictions", entries.size(), size,
+                hitCount, missCount, evictionCount);
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long weight;
+        private final long fileSize;
+        private final long lastModified;
+        private final Dependencies dependencies;
+
+        Entry(Object value, long weight, BasicFileAttributes attributes, Dependencies dependencies) {
+            this.value = value;
+            this.weight = weight;
+            this.fileSize = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.dependencies = dependencies;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return fileSize == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
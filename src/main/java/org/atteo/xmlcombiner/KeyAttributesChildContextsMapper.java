@@ -1,6 +1,11 @@
 package org.atteo.xmlcombiner;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,46 +15,155 @@ import org.w3c.dom.Element;
 
 /**
  * Default implementation that selects key attributes defined on each element.
+ *
+ * <p>
+ * The maps returned by {@link #mapChildContexts(Context, List)} can be handed back with {@link #release(Map)},
+ * after which they, their lists and the scratch space used to collect the key attributes are reused
+ * by the next calls. The keys of the elements without any key attributes are shared per tag name.
+ * A mapper which reuses the maps must be used by one thread at a time.
+ * </p>
  */
 public class KeyAttributesChildContextsMapper implements ChildContextsMapper {
+    /**
+     * Maximum number of tag names whose keys are shared, so documents with unbounded tag names do not leak.
+     */
+    private static final int MAXIMUM_SHARED_KEYS = 1024;
+    /**
+     * Maximum number of the reused lists, so a single wide element does not keep its lists forever.
+     */
+    private static final int MAXIMUM_FREE_LISTS = 1024;
+
+    private final Map<Element, CompiledLayer.Directives> compiled;
+    private final Deque<Map<Key, List<Context>>> freeMaps = new ArrayDeque<>();
+    private final Deque<List<Context>> freeLists = new ArrayDeque<>();
+    private String[] keyNames = new String[4];
+    private String[] keyValues = new String[4];
+    private final Map<String, Key> sharedKeys = new HashMap<>();
 
     /**
      * Creates a mapper that chooses key attributes from each element.
      */
-    public KeyAttributesChildContextsMapper() {}
+    public KeyAttributesChildContextsMapper() {
+        this(Collections.<Element, CompiledLayer.Directives>emptyMap());
+    }
+
+    /**
+     * Creates a mapper which uses the keys precomputed by {@link CompiledLayer} for the elements created from it.
+     *
+     * @param compiled precomputed directives of the elements created from the compiled layer
+     */
+    KeyAttributesChildContextsMapper(Map<Element, CompiledLayer.Directives> compiled) {
+        this.compiled = compiled;
+    }
 
     @Override
     public Map<Key, List<Context>> mapChildContexts(Context parent, List<String> keyAttributeNames) {
-        List<Context> contexts = parent.groupChildContexts();
+        List<Context> contexts = parent.groupChildContexts(acquireList());
 
-        Map<Key, List<Context>> map = new LinkedHashMap<>();
+        Map<Key, List<Context>> map = freeMaps.isEmpty() ? new LinkedHashMap<>() : freeMaps.pop();
         for (Context context : contexts) {
             Element contextElement = context.getElement();
 
-            if (contextElement != null) {
-                Map<String, String> keys = new LinkedHashMap<>();
-                for (String keyAttributeName : keyAttributeNames) {
-                    Attr keyNode = contextElement.getAttributeNode(keyAttributeName);
-                    if (keyNode != null) {
-                        keys.put(keyAttributeName, keyNode.getValue());
-                    }
-                }
-                {
-                    Attr keyNode = contextElement.getAttributeNode(Context.ID_ATTRIBUTE_NAME);
-                    if (keyNode != null) {
-                        keys.put(Context.ID_ATTRIBUTE_NAME, keyNode.getValue());
-                    }
+            CompiledLayer.Directives directives = contextElement == null || compiled.isEmpty() ? null
+                    : compiled.get(contextElement);
+            Key key = directives == null ? null : directives.getKey(keyAttributeNames);
+            if (key == null) {
+                key = contextElement == null ? Key.BEFORE_END : key(contextElement, keyAttributeNames);
+            }
+            List<Context> destinationContexts = map.get(key);
+            if (destinationContexts == null) {
+                destinationContexts = acquireList();
+                map.put(key, destinationContexts);
+            }
+            destinationContexts.add(context);
+        }
+        releaseList(contexts);
+        return map;
+    }
+
+    private Key key(Element element, List<String> keyAttributeNames) {
+        int count = 0;
+        for (String keyAttributeName : keyAttributeNames) {
+            Attr keyNode = element.getAttributeNode(keyAttributeName);
+            if (keyNode != null) {
+                count = addKey(count, keyAttributeName, keyNode.getValue());
+            }
+        }
+        Attr idNode = element.getAttributeNode(Context.ID_ATTRIBUTE_NAME);
+        if (idNode != null) {
+            count = addKey(count, Context.ID_ATTRIBUTE_NAME, idNode.getValue());
+        }
+        String tagName = element.getTagName();
+        if (count == 0) {
+            Key key = sharedKeys.get(tagName);
+            if (key == null) {
+                key = new Key(tagName, Collections.<String, String>emptyMap());
+                if (sharedKeys.size() < MAXIMUM_SHARED_KEYS) {
+                    sharedKeys.put(tagName, key);
                 }
-                Key key = new Key(contextElement.getTagName(), keys);
+            }
+            return key;
+        }
+        // the key is kept by the caller, so it gets its own copy of the scratch space
+        Map<String, String> keys;
+        if (count == 1) {
+            keys = Collections.singletonMap(keyNames[0], keyValues[0]);
+        } else {
+            keys = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                keys.put(keyNames[i], keyValues[i]);
+            }
+        }
+        Arrays.fill(keyValues, 0, count, null);
+        return new Key(tagName, keys);
+    }
 
-                List<Context> destinationContexts = map.computeIfAbsent(key, k -> new ArrayList<>());
-                destinationContexts.add(context);
+    private int addKey(int count, String name, String value) {
+        if (count == keyNames.length) {
+            keyNames = Arrays.copyOf(keyNames, count * 2);
+            keyValues = Arrays.copyOf(keyValues, count * 2);
+        }
+        keyNames[count] = name;
+        keyValues[count] = value;
+        return count + 1;
+    }
 
-            } else {
-                List<Context> destinationContexts = map.computeIfAbsent(Key.BEFORE_END, k -> new ArrayList<>());
-                destinationContexts.add(context);
-            }
+    private List<Context> acquireList() {
+        return freeLists.isEmpty() ? new ArrayList<>() : freeLists.pop();
+    }
+
+    private void releaseList(List<Context> contexts) {
+        contexts.clear();
+        if (freeLists.size() < MAXIMUM_FREE_LISTS) {
+            freeLists.push(contexts);
         }
-        return map;
+    }
+
+    /**
+     * Hands back the map returned by {@link #mapChildContexts(Context, List)} once it is no longer used,
+     * so it can be reused by the next calls.
+     *
+     * @param map map which is no longer used
+     */
+    void release(Map<Key, List<Context>> map) {
+        for (List<Context> contexts : map.values()) {
+            releaseList(contexts);
+        }
+        map.clear();
+        freeMaps.push(map);
+    }
+
+    /**
+     * Clears the reused maps, lists and scratch space, so they do not refer to the nodes of the previous merge.
+     * The shared keys hold no nodes and are kept.
+     */
+    void reset() {
+        for (Map<Key, List<Context>> map : freeMaps) {
+            map.clear();
+        }
+        for (List<Context> contexts : freeLists) {
+            contexts.clear();
+        }
+        Arrays.fill(keyValues, null);
     }
 }
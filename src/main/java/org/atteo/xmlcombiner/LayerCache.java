@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xml.sax.SAXException;
+
+/**
+ * In-memory cache of parsed files shared by many merges.
+ *
+ * <p>
+ * The files are cached as {@link CompiledLayer compiled layers}, which are compact and are turned into DOM
+ * without parsing. The entries are keyed by the real path of the file and are valid as long as the size
+ * and the modification time of the file do not change. The same is checked for the files read while the layer
+ * was loaded, like the fragments included with XInclude and the external entities, so that editing them
+ * reloads the layer. Optionally the SHA-256 hash of the content is verified
+ * as well, to detect changes which preserve the modification time, at the cost of reading the file.
+ * The total size of the cached layers is bounded, the least recently used layers are evicted first.
+ * </p>
+ * <p>
+ * The cache is thread-safe and can be shared by many {@link XmlCombiner combiners},
+ * see {@link XmlCombiner#setLayerCache(LayerCache)}, as long as they parse the files with the same
+ * {@link ParserProfile}.
+ * </p>
+ */
+public final class LayerCache {
+    /**
+     * Loads the layer on cache miss.
+     */
+    public interface Loader {
+        /**
+         * Loads the layer from given file.
+         *
+         * @param file file to load
+         * @return loaded layer
+         * @throws IOException when reading fails
+         * @throws SAXException when parsing fails
+         */
+        CompiledLayer load(Path file) throws IOException, SAXException;
+    }
+
+    private final long maximumSize;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean verifyContent;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maximumSize maximum total size of the cached layers in bytes
+     */
+    public LayerCache(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Negative maximum size: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Enables verification of the content hash on each access.
+     *
+     * @param verifyContent whether to compare the hash of the content in addition to its size and modification time
+     */
+    public synchronized void setVerifyContent(boolean verifyContent) {
+        this.verifyContent = verifyContent;
+    }
+
+    /**
+     * Returns the cached layer of the file or loads it.
+     *
+     * <p>
+     * The loader is called without holding any lock, so other files can be loaded concurrently.
+     * The loaded layer is not cached when the file changed during loading or when it does not fit in the cache.
+     * </p>
+     *
+     * @param file file to get the layer of
+     * @param loader loader called on cache miss
+     * @return layer of the file
+     * @throws IOException when reading fails
+     * @throws SAXException when parsing fails
+     */
+    public CompiledLayer get(Path file, Loader loader) throws IOException, SAXException {
+        Path key = file.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        boolean verify;
+        Entry entry;
+        synchronized (this) {
+            verify = verifyContent;
+            entry = entries.get(key);
+        }
+        byte[] hash = verify ? hash(key) : null;
+        if (entry != null && entry.matches(attributes, hash) && entry.dependencies.isUnchanged()) {
+            synchronized (this) {
+                hitCount++;
+            }
+            return entry.layer;
+        }
+
+        Dependencies dependencies = new Dependencies();
+        CompiledLayer layer = Dependencies.record(dependencies, () -> loader.load(file));
+        BasicFileAttributes after = Files.readAttributes(key, BasicFileAttributes.class);
+        synchronized (this) {
+            missCount++;
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                size -= previous.layer.size();
+            }
+            Entry loaded = new Entry(layer, attributes, hash, dependencies);
+            if (loaded.matches(after, hash) && layer.size() <= maximumSize) {
+                entries.put(key, loaded);
+                size += layer.size();
+                evict();
+            }
+        }
+        return layer;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maximumSize && iterator.hasNext()) {
+            size -= iterator.next().layer.size();
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the layer of given file, for instance when the file is known to have changed.
+     *
+     * @param file file to remove the layer of
+     * @throws IOException when the real path of the file cannot be determined
+     */
+    public void invalidate(Path file) throws IOException {
+        Path key = Files.exists(file) ? file.toRealPath() : file.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.layer.size();
+            }
+        }
+    }
+
+    /**
+     * Removes all the layers.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of cached layers.
+     *
+     * @return number of cached layers
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached layers.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     *
+     * @return number of hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of requests which loaded the layer.
+     *
+     * @return number of misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the fraction of requests served from the cache.
+     *
+     * @return hit rate between 0 and 1, 0 when there were no requests
+     */
+    public synchronized double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    /**
+     * Returns the number of layers evicted to keep the cache within its maximum size.
+     *
+     * @return number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d layers, %d bytes, %d hits, %d misses, %d evictions", entries.size(), size,
+                hitCount, missCount, evictionCount);
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            try (InputStream in = Files.newInputStream(file)) {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final CompiledLayer layer;
+        private final long fileSize;
+        private final long lastModified;
+        private final byte[] hash;
+        private final Dependencies dependencies;
+
+        Entry(CompiledLayer layer, BasicFileAttributes attributes, byte[] hash, Dependencies dependencies) {
+            this.layer = layer;
+            this.fileSize = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.hash = hash;
+            this.dependencies = dependencies;
+        }
+
+        boolean matches(BasicFileAttributes attributes, byte[] hash) {
+            return fileSize == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis()
+                    && (hash == null || Arrays.equals(this.hash, hash));
+        }
+    }
+}
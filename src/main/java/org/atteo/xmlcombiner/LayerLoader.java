@@ -0,0 +1,427 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Loads layers given as files, directories or glob patterns.
+ *
+ * <p>
+ * Directories are expanded to all the '*.xml' files they contain and patterns like 'conf.d/*.xml'
+ * to all the matching files. An argument is treated as a pattern only when no file with exactly this name exists.
+ * The files matched by a single directory or pattern are ordered by the optional
+ * '{@value #PRIORITY_ATTRIBUTE_NAME}' attribute of their root element, files with higher priority
+ * are more dominant, and then lexically by their path. The default priority is 0.
+ * </p>
+ * <p>
+ * The files are parsed in parallel into {@link CompiledLayer compiled layers}. When the cache directory is set,
+ * compiled layers are stored there together with the manifest of the size and modification time of each file.
+ * On the next run only the files which changed are parsed again, the others are memory-mapped from the cache.
+ * The layers loaded by the previous {@link #load(List)} call of the same loader are reused
+ * in the same way, even without the cache directory.
+ * </p>
+ */
+public class LayerLoader {
+    /**
+     * Name of the root element attribute which specifies the priority of the file.
+     */
+    public static final String PRIORITY_ATTRIBUTE_NAME = "combine.priority";
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String VERSION_PROPERTY = "@version";
+    private static final String KEYS_PROPERTY = "@keys";
+
+    private final ParserProfile profile;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private List<String> keyAttributeNames = emptyList();
+    private Path cacheDirectory;
+    private Map<Path, Loaded> previous = emptyMap();
+    private int layersParsed;
+    private int layersReused;
+
+    /**
+     * Creates layer loader.
+     *
+     * @param profile profile of the parser used to parse the files
+     */
+    public LayerLoader(ParserProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Sets the pool used to parse the files.
+     *
+     * @param pool pool used to parse the files
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the attribute names used to precompute the keys of the elements in the compiled layers.
+     *
+     * <p>
+     * The precomputed keys are used when the layers are merged by {@link XmlCombiner} with the same key attribute
+     * names. The layers cached with different names are compiled again.
+     * </p>
+     *
+     * @param keyAttributeNames attribute names used as element keys
+     */
+    public void setKeyAttributeNames(List<String> keyAttributeNames) {
+        this.keyAttributeNames = keyAttributeNames;
+        previous = emptyMap();
+    }
+
+    /**
+     * Sets the directory where the compiled layers and the manifest are cached between runs.
+     *
+     * @param cacheDirectory cache directory, null disables caching
+     */
+    public void setCacheDirectory(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Returns the directory where the compiled layers and the manifest are cached between runs.
+     *
+     * @return cache directory, null when caching is disabled
+     */
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Expands given file, directory or glob pattern into the list of files, sorted lexically.
+     *
+     * @param pattern file, directory or glob pattern
+     * @return matching files
+     * @throws IOException when listing the directories fails
+     */
+    public static List<Path> expand(String pattern) throws IOException {
+        int wildcard = indexOfWildcard(pattern);
+        if (wildcard == -1) {
+            Path path = Paths.get(pattern);
+            if (!Files.isDirectory(path)) {
+                return Arrays.asList(path);
+            }
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(file -> file.getFileName().toString().endsWith(".xml"))
+                        .filter(Files::isRegularFile)
+                        .sorted(Comparator.comparing(Path::toString))
+                        .collect(Collectors.toList());
+            }
+        }
+
+        int separator = pattern.lastIndexOf('/', wildcard);
+        Path base = separator == -1 ? Paths.get("") : Paths.get(separator == 0 ? "/" : pattern.substring(0, separator));
+        PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + pattern.substring(separator + 1));
+        Path start = separator == -1 ? Paths.get(".") : base;
+        try (Stream<Path> files = Files.walk(start, globDepth(pattern.substring(separator + 1)))) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> base.resolve(start.relativize(file)))
+                    .filter(file -> matcher.matches(base.relativize(file)))
+                    .sorted(Comparator.comparing(Path::toString))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Loads the layers from given files, directories or glob patterns.
+     *
+     * @param patterns files, directories or glob patterns, the later ones are dominant
+     * @return layers in the order of precedence, each next layer is dominant over the previous ones
+     * @throws IOException when reading any of the files fails
+     * @throws SAXException when parsing any of the files fails
+     */
+    public List<CompiledLayer> load(List<String> patterns) throws IOException, SAXException {
+        List<List<Path>> groups = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        for (String pattern : patterns) {
+            List<Path> group = expand(pattern);
+            groups.add(group);
+            files.addAll(group);
+        }
+
+        Properties manifest = readManifest();
+        Properties updated = new Properties();
+        updated.setProperty(VERSION_PROPERTY, Integer.toString(CompiledLayer.VERSION));
+        updated.setProperty(KEYS_PROPERTY, String.join(",", keyAttributeNames));
+        List<Path> distinct = new ArrayList<>(new LinkedHashSet<>(files));
+        AtomicInteger parsed = new AtomicInteger();
+        ThreadLocal<DocumentBuilder> documentBuilders = ParallelParsing.documentBuilders(profile);
+        List<Loaded> layers = ParallelParsing.map(distinct, pool, file -> {
+            Loaded layer = fromPrevious(file);
+            if (layer == null) {
+                layer = fromCache(file, manifest);
+            }
+            if (layer == null) {
+                layer = parse(file, documentBuilders.get());
+                parsed.incrementAndGet();
+                store(file, layer);
+            }
+            return layer;
+        });
+        Map<Path, Loaded> loaded = new HashMap<>();
+        for (int i = 0; i < distinct.size(); i++) {
+            loaded.put(distinct.get(i), layers.get(i));
+        }
+
+        List<CompiledLayer> result = new ArrayList<>();
+        for (List<Path> group : groups) {
+            List<Path> sorted = new ArrayList<>(group);
+            // stable sort keeps the lexical order of the files with the same priority
+            sorted.sort(Comparator.comparingInt(file -> loaded.get(file).priority));
+            for (Path file : sorted) {
+                Loaded layer = loaded.get(file);
+                result.add(layer.layer);
+                if (layer.manifestEntry != null) {
+                    updated.setProperty(file.toAbsolutePath().toString(), layer.manifestEntry);
+                }
+            }
+        }
+        if (!updated.equals(manifest)) {
+            // rewriting unchanged manifest would wake up the watchers of the cache directory
+            writeManifest(updated);
+        }
+        previous = loaded;
+
+        layersParsed = parsed.get();
+        layersReused = loaded.size() - layersParsed;
+        return result;
+    }
+
+    /**
+     * Returns the number of files parsed by the last {@link #load(List)}.
+     *
+     * @return number of parsed files
+     */
+    public int getLayersParsed() {
+        return layersParsed;
+    }
+
+    /**
+     * Returns the number of unchanged files loaded from the cache by the last {@link #load(List)}.
+     *
+     * @return number of files loaded from the cache
+     */
+    public int getLayersReused() {
+        return layersReused;
+    }
+
+    private Loaded parse(Path file, DocumentBuilder documentBuilder) throws IOException, SAXException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Element root;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), Compression.BUFFER_SIZE)) {
+            if (CompiledLayer.isCompiledLayer(stream)) {
+                return new Loaded(CompiledLayer.load(file), 0, null);
+            }
+            InputSource input = new InputSource(Compression.decompress(stream));
+            input.setSystemId(file.toUri().toString());
+            root = documentBuilder.parse(input).getDocumentElement();
+        }
+        int priority = 0;
+        String value = root.getAttribute(PRIORITY_ATTRIBUTE_NAME);
+        if (!value.isEmpty()) {
+            try {
+                priority = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new SAXException("The attribute '" + PRIORITY_ATTRIBUTE_NAME + "' of file '" + file
+                        + "' has invalid value '" + value + "'", e);
+            }
+            root.removeAttribute(PRIORITY_ATTRIBUTE_NAME);
+        }
+        String manifestEntry = attributes.size() + "," + attributes.lastModifiedTime().toMillis() + "," + priority
+                + "," + cacheFileName(file);
+        return new Loaded(CompiledLayer.compile(root, keyAttributeNames), priority, manifestEntry);
+    }
+
+    private Loaded fromPrevious(Path file) throws IOException {
+        Loaded layer = previous.get(file);
+        if (layer == null || layer.manifestEntry == null || !isUnchanged(file, layer.manifestEntry.split(","))) {
+            return null;
+        }
+        return layer;
+    }
+
+    private Loaded fromCache(Path file, Properties manifest) throws IOException {
+        String entry = manifest.getProperty(file.toAbsolutePath().toString());
+        if (cacheDirectory == null || entry == null) {
+            return null;
+        }
+        String[] fields = entry.split(",");
+        if (fields.length != 4 || !isUnchanged(file, fields)) {
+            return null;
+        }
+        Path cached = cacheDirectory.resolve(fields[3]);
+        if (!Files.isRegularFile(cached)) {
+            return null;
+        }
+        return new Loaded(CompiledLayer.load(cached), Integer.parseInt(fields[2]), entry);
+    }
+
+    private static boolean isUnchanged(Path file, String[] manifestFields) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return manifestFields[0].equals(Long.toString(attributes.size()))
+                && manifestFields[1].equals(Long.toString(attributes.lastModifiedTime().toMillis()));
+    }
+
+    private void store(Path file, Loaded layer) throws IOException {
+        if (cacheDirectory == null || layer.manifestEntry == null) {
+            return;
+        }
+        Path cached = cacheDirectory.resolve(cacheFileName(file));
+        // replace atomically, the previous version can still be memory-mapped
+        Path temporary = Files.createTempFile(cacheDirectory, cached.getFileName().toString(), ".tmp");
+        layer.layer.write(temporary);
+        Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties readManifest() throws IOException {
+        Properties manifest = new Properties();
+        if (cacheDirectory == null) {
+            return manifest;
+        }
+        Files.createDirectories(cacheDirectory);
+        Path file = cacheDirectory.resolve(MANIFEST);
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                manifest.load(in);
+            }
+        }
+        if (!Integer.toString(CompiledLayer.VERSION).equals(manifest.getProperty(VERSION_PROPERTY))
+                || !String.join(",", keyAttributeNames).equals(manifest.getProperty(KEYS_PROPERTY))) {
+            // layers were compiled in a different format or with different keys
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    private void writeManifest(Properties manifest) throws IOException {
+        if (cacheDirectory == null) {
+            return;
+        }
+        Path file = cacheDirectory.resolve(MANIFEST);
+        Path temporary = Files.createTempFile(cacheDirectory, MANIFEST, ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            manifest.store(out, "Layers compiled by " + LayerLoader.class.getName());
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String cacheFileName(Path file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(file.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return name.append(".xcl").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the depth of the directories below the base of the glob pattern which contain the matching files.
+     */
+    static int globDepth(String glob) {
+        if (glob.contains("**")) {
+            return Integer.MAX_VALUE;
+        }
+        int depth = 1;
+        for (int i = 0; i < glob.length(); i++) {
+            if (glob.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the index of the first wildcard of the glob pattern.
+     *
+     * @return index of the wildcard, -1 when there is none or when a file with exactly this name exists,
+     *     so the files whose names contain '[' or '{' are not treated as patterns
+     */
+    static int indexOfWildcard(String pattern) {
+        if (exists(pattern)) {
+            return -1;
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean exists(String file) {
+        try {
+            return Files.exists(Paths.get(file));
+        } catch (InvalidPathException e) {
+            // wildcards are not allowed in the file names on some platforms
+            return false;
+        }
+    }
+
+    private static class Loaded {
+        private final CompiledLayer layer;
+        private final int priority;
+        private final String manifestEntry;
+
+        Loaded(CompiledLayer layer, int priority, String manifestEntry) {
+            this.layer = layer;
+            this.priority = priority;
+            this.manifestEntry = manifestEntry;
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Combines many layer stacks which share common prefixes.
+ *
+ * <p>
+ * The stacks are arranged into a trie of their common prefixes. Each prefix is merged only once
+ * and the remaining suffixes are merged in parallel starting from the shared intermediate result.
+ * Since the intermediate results are {@link XmlTree immutable trees} they do not need to be copied
+ * before the suffixes are merged. Each layer file is parsed at most once.
+ * </p>
+ */
+public class LayerStackCombiner {
+    private final XmlTreeCombiner combiner;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates layer stack combiner which runs in the common {@link ForkJoinPool}.
+     *
+     * @param keyAttributeNames attribute names used as element keys
+     */
+    public LayerStackCombiner(List<String> keyAttributeNames) {
+        this(keyAttributeNames, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates layer stack combiner which runs in given {@link ForkJoinPool}.
+     *
+     * @param keyAttributeNames attribute names used as element keys
+     * @param pool pool used to parse and merge the layers
+     */
+    public LayerStackCombiner(List<String> keyAttributeNames, ForkJoinPool pool) {
+        this.combiner = new XmlTreeCombiner(keyAttributeNames);
+        this.pool = pool;
+    }
+
+    /**
+     * Combines given layer stacks.
+     *
+     * @param stacks ordered layer stacks, in each stack next layer is dominant over the previous ones
+     * @return merged documents in the order of the stacks with the report of the shared work
+     * @throws IOException when reading any of the layers fails
+     * @throws SAXException when parsing any of the layers fails
+     */
+    public Result combine(List<List<Path>> stacks) throws IOException, SAXException {
+        Map<Path, XmlTree> layers = parse(stacks);
+
+        TrieNode root = new TrieNode(null);
+        int mergesWithoutSharing = 0;
+        for (int i = 0; i < stacks.size(); i++) {
+            TrieNode node = root;
+            for (Path layer : stacks.get(i)) {
+                node = node.children.computeIfAbsent(layer, TrieNode::new);
+            }
+            node.stackIndexes.add(i);
+            mergesWithoutSharing += stacks.get(i).size();
+        }
+
+        XmlTree[] results = new XmlTree[stacks.size()];
+        AtomicInteger merges = new AtomicInteger();
+        pool.invoke(new MergeTask(root, null, layers, results, merges));
+
+        return new Result(Arrays.asList(results), new Report(stacks.size(), layers.size(), merges.get(),
+                mergesWithoutSharing));
+    }
+
+    private Map<Path, XmlTree> parse(List<List<Path>> stacks) throws IOException, SAXException {
+        Set<Path> distinct = new LinkedHashSet<>();
+        for (List<Path> stack : stacks) {
+            distinct.addAll(stack);
+        }
+
+        List<Path> paths = new ArrayList<>(distinct);
+        ThreadLocal<DocumentBuilder> documentBuilders = ParallelParsing.documentBuilders(ParserProfile.standard());
+        List<XmlTree> trees = ParallelParsing.map(paths, pool, path -> parse(path, documentBuilders.get()));
+        Map<Path, XmlTree> layers = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            layers.put(paths.get(i), trees.get(i));
+        }
+        return layers;
+    }
+
+    private static XmlTree parse(Path path, DocumentBuilder documentBuilder) throws IOException, SAXException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(path), Compression.BUFFER_SIZE)) {
+            if (CompiledLayer.isCompiledLayer(stream)) {
+                return XmlTree.fromElement(CompiledLayer.load(path).toElement(documentBuilder.newDocument()));
+            }
+            InputSource input = new InputSource(stream);
+            input.setSystemId(path.toUri().toString());
+            return XmlTree.fromDocument(documentBuilder.parse(input));
+        }
+    }
+
+    private class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TrieNode node;
+        private final XmlTree recessive;
+        private final Map<Path, XmlTree> layers;
+        private final XmlTree[] results;
+        private final AtomicInteger merges;
+
+        MergeTask(TrieNode node, XmlTree recessive, Map<Path, XmlTree> layers, XmlTree[] results,
+                AtomicInteger merges) {
+            this.node = node;
+            this.recessive = recessive;
+            this.layers = layers;
+            this.results = results;
+            this.merges = merges;
+        }
+
+        @Override
+        protected void compute() {
+            XmlTree result = recessive;
+            if (node.layer != null) {
+                result = combiner.combine(recessive, layers.get(node.layer));
+                merges.incrementAndGet();
+            }
+            for (int index : node.stackIndexes) {
+                results[index] = result;
+            }
+
+            List<MergeTask> tasks = new ArrayList<>(node.children.size());
+            for (TrieNode child : node.children.values()) {
+                tasks.add(new MergeTask(child, result, layers, results, merges));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static class TrieNode {
+        private final Path layer;
+        private final Map<Path, TrieNode> children = new LinkedHashMap<>();
+        private final List<Integer> stackIndexes = new ArrayList<>();
+
+        TrieNode(Path layer) {
+            this.layer = layer;
+        }
+    }
+
+    /**
+     * Merged documents with the report of the shared work.
+     */
+    public static class Result {
+        private final List<XmlTree> results;
+        private final Report report;
+
+        Result(List<XmlTree> results, Report report) {
+            this.results = unmodifiableList(results);
+            this.report = report;
+        }
+
+        /**
+         * Returns merged documents in the order of the stacks.
+         *
+         * @return merged documents, an element is null when the root element was removed
+         */
+        public List<XmlTree> getResults() {
+            return results;
+        }
+
+        /**
+         * Returns the report of the work shared between the stacks.
+         *
+         * @return the report
+         */
+        public Report getReport() {
+            return report;
+        }
+    }
+
+    /**
+     * Report of the work shared between the stacks.
+     */
+    public static class Report {
+        private final int stacks;
+        private final int layersParsed;
+        private final int merges;
+        private final int mergesWithoutSharing;
+
+        Report(int stacks, int layersParsed, int merges, int mergesWithoutSharing) {
+            this.stacks = stacks;
+            this.layersParsed = layersParsed;
+            this.merges = merges;
+            this.mergesWithoutSharing = mergesWithoutSharing;
+        }
+
+        /**
+         * Returns the number of combined stacks.
+         *
+         * @return number of stacks
+         */
+        public int getStacks() {
+            return stacks;
+        }
+
+        /**
+         * Returns the number of parsed layer files, each file is parsed once.
+         *
+         * @return number of parsed layers
+         */
+        public int getLayersParsed() {
+            return layersParsed;
+        }
+
+        /**
+         * Returns the number of merges performed.
+         *
+         * @return number of merges
+         */
+        public int getMerges() {
+            return merges;
+        }
+
+        /**
+         * Returns the number of merges which would be performed if each stack was combined separately.
+         *
+         * @return number of merges without sharing
+         */
+        public int getMergesWithoutSharing() {
+            return mergesWithoutSharing;
+        }
+
+        /**
+         * Returns the number of merges avoided thanks to the shared prefixes.
+         *
+         * @return number of shared merges
+         */
+        public int getSharedMerges() {
+            return mergesWithoutSharing - merges;
+        }
+
+        @Override
+        public String toString() {
+            return "stacks: " + stacks + ", layers parsed: " + layersParsed + ", merges: " + merges
+                    + " (" + getSharedMerges() + " of " + mergesWithoutSharing + " shared)";
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Watches the input layers and merges them again whenever any of them changes.
+ *
+ * <p>
+ * The directories of the inputs are monitored with {@link WatchService}. Bursts of changes are debounced:
+ * the merge starts only when no change was reported for the debounce period. Only the changed files
+ * are parsed again, see {@link LayerLoader}, and the output is written only when its content changed,
+ * see {@link XmlCombiner#buildDocumentIfChanged(Path, Compression)}.
+ * </p>
+ */
+public class LayerWatcher implements Closeable {
+    /**
+     * Receives the report of each merge cycle.
+     */
+    public interface Listener {
+        /**
+         * Called after each merge cycle, including the failed ones.
+         * @param cycle report of the cycle
+         */
+        void cycleCompleted(Cycle cycle);
+    }
+
+    private final ParserProfile profile;
+    private final List<String> keyAttributeNames;
+    private final List<String> patterns;
+    private final Path output;
+    private final LayerLoader loader;
+    private final WatchService watchService;
+    /**
+     * Registered directories, the ones which are no longer needed are cancelled.
+     */
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private Duration debounce = Duration.ofMillis(200);
+    private Listener listener = cycle -> { };
+    private MergeRules mergeRules;
+    private Compression compression;
+    /**
+     * Combiner reused by the cycles, created on the first cycle.
+     */
+    private XmlCombiner combiner;
+
+    /**
+     * Creates the watcher.
+     *
+     * @param profile profile of the parser used to parse the files
+     * @param keyAttributeNames attribute names used as element keys
+     * @param patterns files, directories or glob patterns as accepted by {@link LayerLoader}
+     * @param output file where the merged result is stored
+     * @throws IOException when the watch service cannot be created
+     */
+    public LayerWatcher(ParserProfile profile, List<String> keyAttributeNames, List<String> patterns, Path output)
+            throws IOException {
+        this.profile = profile;
+        this.keyAttributeNames = keyAttributeNames;
+        this.patterns = patterns;
+        this.output = output.toAbsolutePath();
+        this.loader = new LayerLoader(profile);
+        this.loader.setKeyAttributeNames(keyAttributeNames);
+        this.watchService = this.output.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Sets the period without any changes after which the layers are merged again.
+     *
+     * @param debounce debounce period, 200 ms by default
+     */
+    public void setDebounce(Duration debounce) {
+        this.debounce = debounce;
+    }
+
+    /**
+     * Sets the listener which receives the report of each merge cycle.
+     *
+     * @param listener cycle listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the merge rules used when the layers are merged, see {@link XmlCombiner#setMergeRules(MergeRules)}.
+     *
+     * @param mergeRules merge rules, null to use only the attributes
+     */
+    public void setMergeRules(MergeRules mergeRules) {
+        this.mergeRules = mergeRules;
+    }
+
+    /**
+     * Sets the compression of the output.
+     *
+     * @param compression compression of the output, null to select it from the extension of the output file,
+     *     see {@link Compression#forPath(Path)}
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the loader used to load the layers, for instance to set its cache directory.
+     *
+     * @return layer loader
+     */
+    public LayerLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * Merges the layers and then merges them again after each change until the watcher is closed
+     * or the thread is interrupted.
+     *
+     * @throws IOException when the directories cannot be watched
+     */
+    public void run() throws IOException {
+        register();
+        merge();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = drain(key);
+                // debounce: wait until there are no more events
+                while ((key = watchService.poll(debounce.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= drain(key);
+                }
+                if (relevant) {
+                    register();
+                    merge();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops watching.
+     *
+     * @throws IOException when closing the watch service fails
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Merges the layers once.
+     *
+     * @return report of the cycle
+     */
+    Cycle merge() {
+        long start = System.nanoTime();
+        try {
+            if (combiner == null) {
+                combiner = new XmlCombiner(profile, keyAttributeNames);
+            } else {
+                combiner.reset();
+            }
+            combiner.setMergeRules(mergeRules);
+            for (CompiledLayer layer : loader.load(patterns)) {
+                combiner.combine(layer);
+            }
+            boolean written = combiner.buildDocumentIfChanged(output,
+                    compression != null ? compression : Compression.forPath(output));
+            return report(new Cycle(Duration.ofNanos(System.nanoTime() - start), loader.getLayersParsed(),
+                    loader.getLayersReused(), written, null));
+        } catch (IOException | SAXException | ParserConfigurationException | TransformerException
+                | RuntimeException e) {
+            // the file may be in the middle of editing, report and wait for the next change
+            return report(new Cycle(Duration.ofNanos(System.nanoTime() - start), 0, 0, false, e));
+        }
+    }
+
+    private Cycle report(Cycle cycle) {
+        listener.cycleCompleted(cycle);
+        return cycle;
+    }
+
+    private void register() throws IOException {
+        Set<Path> directories = new HashSet<>();
+        for (String pattern : patterns) {
+            directories.addAll(directoriesOf(pattern));
+        }
+        for (Map.Entry<Path, WatchKey> entry : watchKeys.entrySet()) {
+            if (!directories.contains(entry.getKey())) {
+                entry.getValue().cancel();
+            }
+        }
+        watchKeys.keySet().retainAll(directories);
+        for (Path directory : directories) {
+            try {
+                watchKeys.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+            } catch (NoSuchFileException e) {
+                // removed since it was listed, its removal was reported and the directories will be listed again
+            }
+        }
+    }
+
+    /**
+     * Returns the directories which contain the files matching the pattern. When the directory of the pattern
+     * does not exist, its nearest existing ancestor is returned instead, so that its creation is reported
+     * and the directory is registered in the next cycle.
+     */
+    private static Set<Path> directoriesOf(String pattern) throws IOException {
+        Set<Path> directories = new HashSet<>();
+        int wildcard = LayerLoader.indexOfWildcard(pattern);
+        Path path;
+        if (wildcard == -1) {
+            path = Paths.get(pattern).toAbsolutePath();
+            if (!Files.isDirectory(path)) {
+                path = path.getParent();
+            }
+            directories.add(existingAncestor(path));
+            return directories;
+        }
+        int separator = pattern.lastIndexOf('/', wildcard);
+        path = Paths.get(separator == -1 ? "" : separator == 0 ? "/" : pattern.substring(0, separator))
+                .toAbsolutePath();
+        if (!Files.isDirectory(path)) {
+            directories.add(existingAncestor(path));
+            return directories;
+        }
+        // only the directories which can contain the matching files, the files are one level deeper
+        int depth = LayerLoader.globDepth(pattern.substring(separator + 1));
+        try (Stream<Path> subdirectories = Files.walk(path, depth == Integer.MAX_VALUE ? depth : depth - 1)) {
+            subdirectories.filter(Files::isDirectory).forEach(directories::add);
+        } catch (UncheckedIOException e) {
+            if (!(e.getCause() instanceof NoSuchFileException)) {
+                throw e.getCause();
+            }
+            // removed while listed, its removal was reported and the directories will be listed again
+            directories.add(path);
+        } catch (NoSuchFileException e) {
+            directories.add(existingAncestor(path));
+        }
+        return directories;
+    }
+
+    private static Path existingAncestor(Path directory) {
+        Path path = directory;
+        while (path.getParent() != null && !Files.isDirectory(path)) {
+            path = path.getParent();
+        }
+        return path;
+    }
+
+    /**
+     * Consumes the events of the key and checks whether any of them concerns other file than the output
+     * or the cache.
+     */
+    private boolean drain(WatchKey key) {
+        boolean relevant = false;
+        Path directory = (Path) key.watchable();
+        Path cacheDirectory = loader.getCacheDirectory() == null ? null
+                : loader.getCacheDirectory().toAbsolutePath().normalize();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (!(event.context() instanceof Path)) {
+                // overflow
+                relevant = true;
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context()).toAbsolutePath();
+            String name = file.getFileName().toString();
+            boolean outputFile = file.equals(output) || (file.getParent().equals(output.getParent())
+                    && name.startsWith("." + output.getFileName() + "."));
+            boolean cacheFile = cacheDirectory != null && file.normalize().startsWith(cacheDirectory);
+            if (!outputFile && !cacheFile) {
+                relevant = true;
+            }
+        }
+        if (!key.reset()) {
+            // the directory was removed, watch for it to appear again
+            relevant = true;
+        }
+        return relevant;
+    }
+
+    /**
+     * Report of a single merge cycle.
+     */
+    public static class Cycle {
+        private final Duration latency;
+        private final int layersParsed;
+        private final int layersReused;
+        private final boolean written;
+        private final Exception error;
+
+        Cycle(Duration latency, int layersParsed, int layersReused, boolean written, Exception error) {
+            this.latency = latency;
+            this.layersParsed = layersParsed;
+            this.layersReused = layersReused;
+            this.written = written;
+            this.error = error;
+        }
+
+        /**
+         * Returns the time it took to load, merge and write the layers.
+         *
+         * @return cycle latency
+         */
+        public Duration getLatency() {
+            return latency;
+        }
+
+        /**
+         * Returns the number of files parsed in this cycle.
+         *
+         * @return number of parsed files
+         */
+        public int getLayersParsed() {
+            return layersParsed;
+        }
+
+        /**
+         * Returns the number of unchanged files reused in this cycle.
+         *
+         * @return number of reused files
+         */
+        public int getLayersReused() {
+            return layersReused;
+        }
+
+        /**
+         * Whether the output file was written, it is not written when its content did not change.
+         *
+         * @return true if the output was written
+         */
+        public boolean isWritten() {
+            return written;
+        }
+
+        /**
+         * Returns the error which interrupted the cycle.
+         *
+         * @return the error or null if the cycle succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return "merge failed after " + latency.toMillis() + " ms: " + error;
+            }
+            return "merged in " + latency.toMillis() + " ms, layers parsed: " + layersParsed + ", reused: "
+                    + layersReused + ", output " + (written ? "written" : "unchanged");
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptySet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Merge directives assigned to the elements by their paths instead of 'combine.*' attributes.
+ *
+ * <p>
+ * Rules allow to merge files which cannot be modified. Each rule has a path pattern and any of
+ * {@link CombineSelf}, {@link CombineChildren} and key attribute names for the children of the matched elements.
+ * The pattern consists of tag names separated with '/'. The '*' step matches any single element and
+ * the '**' step matches any number of elements. Patterns starting with '/' are matched from the document element,
+ * other patterns can match at any depth. For instance:
+ * </p>
+ * <pre>
+ * {@code
+ * <merge-rules>
+ *     <rule path="/config/service" combine.self="override"/>
+ *     <rule path="list" combine.children="append"/>
+ *     <rule path="/config/*" combine.keys="id,name"/>
+ * </merge-rules>
+ * }
+ * </pre>
+ * <p>
+ * When many rules match the same element, the later ones take precedence. The attributes present
+ * in the document always take precedence over the rules.
+ * </p>
+ * <p>
+ * The patterns are compiled into a deterministic automaton which is built lazily and cached,
+ * so the merge finds the directives of each element with a single lookup as it descends the document.
+ * </p>
+ */
+public final class MergeRules {
+    private static final String ANY = "*";
+    private static final String ANY_DEPTH = "**";
+
+    private final PatternNode root = new PatternNode();
+    private final Map<Set<PatternNode>, State> states = new ConcurrentHashMap<>();
+    private int ruleCount;
+    private volatile State start;
+
+    /**
+     * Loads the rules from the XML file.
+     *
+     * <p>
+     * The document element contains 'rule' elements with 'path' attribute and any of 'combine.self',
+     * 'combine.children' and 'combine.keys' attributes.
+     * </p>
+     *
+     * @param file rules file
+     * @return loaded rules
+     * @throws IOException when reading fails
+     * @throws SAXException when parsing fails
+     * @throws ParserConfigurationException when the parser cannot be created
+     * @throws IllegalArgumentException when any of the rules is invalid
+     */
+    public static MergeRules load(Path file) throws IOException, SAXException, ParserConfigurationException {
+        Element documentElement = ParserProfile.offline().newDocumentBuilder().parse(file.toFile())
+                .getDocumentElement();
+        MergeRules rules = new MergeRules();
+        for (Node node = documentElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!(node instanceof Element)) {
+                continue;
+            }
+            Element rule = (Element) node;
+            if (!rule.hasAttribute("path")) {
+                throw new IllegalArgumentException("Rule without 'path' attribute in " + file);
+            }
+            CombineSelf combineSelf = XmlCombiner.getCombineSelf(rule);
+            CombineChildren combineChildren = XmlCombiner.getCombineChildren(rule);
+            List<String> keys = rule.hasAttribute(Context.KEYS_ATTRIBUTE_NAME)
+                    ? Arrays.asList(rule.getAttribute(Context.KEYS_ATTRIBUTE_NAME).split(",")) : null;
+            rules.addRule(rule.getAttribute("path"), combineSelf, combineChildren, keys);
+        }
+        return rules;
+    }
+
+    /**
+     * Adds the rule.
+     *
+     * @param pattern path pattern of the elements
+     * @param combineSelf how to combine the matched elements, null if not specified
+     * @param combineChildren how to combine the children of the matched elements, null if not specified
+     * @param keys key attribute names for the children of the matched elements, null if not specified
+     */
+    public synchronized void addRule(String pattern, CombineSelf combineSelf, CombineChildren combineChildren,
+            List<String> keys) {
+        if (pattern.isEmpty() || pattern.equals("/")) {
+            throw new IllegalArgumentException("Empty rule path");
+        }
+        PatternNode node = root;
+        String path = pattern;
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        } else {
+            node = node.child(ANY_DEPTH);
+        }
+        for (String step : path.split("/")) {
+            if (step.isEmpty()) {
+                throw new IllegalArgumentException("Empty step in rule path: " + pattern);
+            }
+            node = node.child(step);
+        }
+        int order = ruleCount++;
+        if (combineSelf != null) {
+            node.combineSelf = combineSelf;
+            node.combineSelfOrder = order;
+        }
+        if (combineChildren != null) {
+            node.combineChildren = combineChildren;
+            node.combineChildrenOrder = order;
+        }
+        if (keys != null) {
+            node.keys = keys;
+            node.keysOrder = order;
+        }
+        // the automaton must be rebuilt
+        states.clear();
+        start = null;
+    }
+
+    /**
+     * Returns the state before the document element.
+     */
+    State start() {
+        State state = start;
+        if (state == null) {
+            state = state(closure(Collections.singleton(root)));
+            start = state;
+        }
+        return state;
+    }
+
+    private State state(Set<PatternNode> nodes) {
+        return states.computeIfAbsent(nodes, State::new);
+    }
+
+    /**
+     * Adds the nodes reachable with '**' steps matching no elements.
+     */
+    private static Set<PatternNode> closure(Set<PatternNode> nodes) {
+        Set<PatternNode> result = new HashSet<>(nodes);
+        Deque<PatternNode> queue = new ArrayDeque<>(nodes);
+        while (!queue.isEmpty()) {
+            PatternNode anyDepth = queue.poll().children.get(ANY_DEPTH);
+            if (anyDepth != null && result.add(anyDepth)) {
+                queue.add(anyDepth);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Node of the trie of the patterns.
+     */
+    private static final class PatternNode {
+        private final Map<String, PatternNode> children = new HashMap<>();
+        private final boolean anyDepth;
+        private CombineSelf combineSelf;
+        private CombineChildren combineChildren;
+        private List<String> keys;
+        private int combineSelfOrder = -1;
+        private int combineChildrenOrder = -1;
+        private int keysOrder = -1;
+
+        PatternNode() {
+            this(false);
+        }
+
+        PatternNode(boolean anyDepth) {
+            this.anyDepth = anyDepth;
+        }
+
+        PatternNode child(String step) {
+            return children.computeIfAbsent(step, s -> new PatternNode(s.equals(ANY_DEPTH)));
+        }
+    }
+
+    /**
+     * State of the automaton, the set of the pattern nodes matching the path of the element.
+     */
+    final class State {
+        private final Set<PatternNode> nodes;
+        private final Map<String, State> transitions = new ConcurrentHashMap<>();
+        private final CombineSelf combineSelf;
+        private final CombineChildren combineChildren;
+        private final List<String> keys;
+
+        private State(Set<PatternNode> nodes) {
+            this.nodes = nodes;
+            PatternNode self = null;
+            PatternNode children = null;
+            PatternNode keyNode = null;
+            for (PatternNode node : nodes) {
+                if (node.combineSelfOrder > (self == null ? -1 : self.combineSelfOrder)) {
+                    self = node;
+                }
+                if (node.combineChildrenOrder > (children == null ? -1 : children.combineChildrenOrder)) {
+                    children = node;
+                }
+                if (node.keysOrder > (keyNode == null ? -1 : keyNode.keysOrder)) {
+                    keyNode = node;
+                }
+            }
+            this.combineSelf = self == null ? null : self.combineSelf;
+            this.combineChildren = children == null ? null : children.combineChildren;
+            this.keys = keyNode == null ? null : keyNode.keys;
+        }
+
+        /**
+         * Returns the state of the child element with given tag name.
+         */
+        State next(String tagName) {
+            if (nodes.isEmpty()) {
+                return this;
+            }
+            State state = transitions.get(tagName);
+            if (state == null) {
+                state = state(step(tagName));
+                transitions.put(tagName, state);
+            }
+            return state;
+        }
+
+        private Set<PatternNode> step(String tagName) {
+            Set<PatternNode> next = new HashSet<>();
+            for (PatternNode node : nodes) {
+                PatternNode child = node.children.get(tagName);
+                if (child != null) {
+                    next.add(child);
+                }
+                child = node.children.get(ANY);
+                if (child != null) {
+                    next.add(child);
+                }
+                if (node.anyDepth) {
+                    next.add(node);
+                }
+            }
+            return next.isEmpty() ? emptySet() : closure(next);
+        }
+
+        CombineSelf getCombineSelf() {
+            return combineSelf;
+        }
+
+        CombineChildren getCombineChildren() {
+            return combineChildren;
+        }
+
+        List<String> getKeys() {
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,1273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptyList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.namespace.QName;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Combines documents which are too large to be loaded into memory.
+ *
+ * <p>
+ * Only the root element is merged out of core: each of its direct children, together with the non-element nodes
+ * preceding it, is streamed with StAX and written to one of the spill files on disk, selected by the hash
+ * of its {@link Key}. Since the elements with the same key always land in the same partition, each pair of
+ * matching partitions is merged separately in memory, the matching elements are merged with
+ * {@link XmlTreeCombiner}. The merged partitions are then streamed to the output in the order
+ * in which {@link XmlCombiner} would produce them.
+ * </p>
+ * <p>
+ * Memory use is bounded by the partition size, see {@link #setPartitionSize(long)}, and by the size of the largest
+ * child of the root element, not by the size of the documents. Partitions larger than the partition size are split
+ * recursively into at most {@value #FAN_OUT} parts with differently seeded hashes, only the elements sharing
+ * the same key, which must be merged together, are never split. The tag names of the dominant children,
+ * needed to honor {@link CombineSelf#OVERRIDABLE_BY_TAG}, are spilled and partitioned the same way.
+ * The {@link CombineSelf} and {@link CombineChildren} directives, including 'append' and 'add', are honored
+ * at all levels. The documents are parsed without namespace awareness and {@link XmlCombiner.Filter filters}
+ * are not supported.
+ * </p>
+ */
+public class OutOfCoreCombiner {
+    /**
+     * Maximum number of partitions the children are split into at once.
+     */
+    static final int FAN_OUT = 64;
+    private static final int SPILL_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] WRAPPER_START = "<g>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WRAPPER_END = "</g>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMBINE_PREFIX = "combine.".getBytes(StandardCharsets.UTF_8);
+
+    private final List<String> defaultAttributeNames;
+    private final DocumentBuilder documentBuilder;
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private Path spillDirectory;
+    private long partitionSize = 64L * 1024 * 1024;
+
+    /**
+     * Creates out-of-core combiner using given key attributes.
+     *
+     * @param keyAttributeNames attribute names used as element keys
+     * @throws ParserConfigurationException when the parser cannot be created
+     */
+    public OutOfCoreCombiner(List<String> keyAttributeNames) throws ParserConfigurationException {
+        this.defaultAttributeNames = keyAttributeNames;
+        this.documentBuilder = ParserProfile.offline().newDocumentBuilder();
+        this.inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Sets the directory where the spill files are created.
+     *
+     * @param spillDirectory spill directory, null means the default temporary directory
+     */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Sets the approximate size of the partitions merged in memory.
+     *
+     * <p>
+     * The memory required to merge a partition is a few times larger than its size on disk.
+     * </p>
+     *
+     * @param partitionSize partition size in bytes, 64 MiB by default
+     */
+    public void setPartitionSize(long partitionSize) {
+        this.partitionSize = partitionSize;
+    }
+
+    /**
+     * Combines given files and writes the result to the stream.
+     *
+     * <p>
+     * The result is the same as when combining the files with {@link XmlCombiner}
+     * and storing it with {@link XmlCombiner#buildDocument(OutputStream)}.
+     * </p>
+     *
+     * @param files files to combine, each next file is dominant over the previous ones
+     * @param out stream to receive the merged XML, it is not closed
+     * @throws IOException when reading or writing fails
+     * @throws SAXException when parsing any of the children of the root elements fails
+     * @throws XMLStreamException when streaming any of the files fails
+     * @throws TransformerException when serializing the merged elements fails
+     */
+    public void combine(List<Path> files, OutputStream out)
+            throws IOException, SAXException, XMLStreamException, TransformerException {
+        Path directory = spillDirectory == null ? Files.createTempDirectory("xmlcombiner")
+                : Files.createTempDirectory(Files.createDirectories(spillDirectory), "xmlcombiner");
+        try {
+            Session session = new Session(directory);
+            if (files.isEmpty()) {
+                try (Sink sink = session.new OutputSink(out)) {
+                    sink.start(null);
+                }
+                return;
+            }
+            LayerSource recessive = null;
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    boolean last = i == files.size() - 1;
+                    Path result = directory.resolve("result-" + i);
+                    try (LayerSource dominant = session.new XmlSource(files.get(i));
+                            Sink sink = last ? session.new OutputSink(out) : session.new SpillSink(result)) {
+                        session.merge(recessive, dominant, sink);
+                    }
+                    if (recessive != null) {
+                        recessive.close();
+                        recessive = null;
+                    }
+                    if (!last) {
+                        recessive = session.new SpillSource(result);
+                    }
+                }
+            } finally {
+                if (recessive != null) {
+                    recessive.close();
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Child of the root element together with the non-element nodes preceding it.
+     */
+    private static class Group {
+        private final byte[] content;
+        private final boolean hasElement;
+
+        Group(byte[] content, boolean hasElement) {
+            this.content = content;
+            this.hasElement = hasElement;
+        }
+    }
+
+    /**
+     * Group read from a partition with its position in the layer.
+     */
+    private static class Record {
+        private final long sequence;
+        private final byte[] content;
+        private Element element;
+
+        Record(long sequence, byte[] content) {
+            this.sequence = sequence;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Group of the merged partition with its position in the result.
+     */
+    private static class Output {
+        private final int phase;
+        private final long sequence;
+        private final int index;
+        private final byte[] content;
+
+        Output(int phase, long sequence, int index, byte[] content) {
+            this.phase = phase;
+            this.sequence = sequence;
+            this.index = index;
+            this.content = content;
+        }
+    }
+
+    private static final Comparator<Output> OUTPUT_ORDER = Comparator.<Output>comparingInt(output -> output.phase)
+            .thenComparingLong(output -> output.sequence)
+            .thenComparingInt(output -> output.index);
+
+    private interface LayerSource extends Closeable {
+        /**
+         * Returns the root element without children, null if it was removed.
+         */
+        Element getRoot();
+
+        /**
+         * Returns the next group or null at the end.
+         */
+        Group next() throws IOException, XMLStreamException;
+
+        long size() throws IOException;
+    }
+
+    private interface Sink extends Closeable {
+        void start(Element root) throws IOException;
+
+        void add(byte[] content, boolean hasElement) throws IOException, SAXException, TransformerException;
+    }
+
+    private interface RecordConsumer {
+        void accept(long sequence, byte[] content) throws IOException;
+    }
+
+    private interface OutputConsumer {
+        void accept(Output output) throws IOException, SAXException, TransformerException;
+    }
+
+    /**
+     * State of a single {@link #combine(List, OutputStream)} call.
+     */
+    private class Session {
+        private final Path directory;
+        private final Document scratch;
+        private final Transformer transformer;
+        private final XmlTreeCombiner treeCombiner = new XmlTreeCombiner(defaultAttributeNames);
+        private final XmlCombiner outputCombiner = new XmlCombiner(documentBuilder, defaultAttributeNames);
+        private int spillCounter;
+
+        Session(Path directory) throws TransformerException {
+            this.directory = directory;
+            this.scratch = documentBuilder.newDocument();
+            this.transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        }
+
+        void merge(LayerSource recessive, LayerSource dominant, Sink sink)
+                throws IOException, SAXException, XMLStreamException, TransformerException {
+            Element dominantRoot = dominant.getRoot();
+            Element recessiveRoot = recessive == null ? null : recessive.getRoot();
+            if (recessiveRoot == null) {
+                recessive = null;
+            }
+            CombineSelf dominantCombineSelf = XmlCombiner.getCombineSelf(dominantRoot);
+            CombineSelf recessiveCombineSelf = XmlCombiner.getCombineSelf(recessiveRoot);
+
+            if (dominantCombineSelf == CombineSelf.REMOVE) {
+                sink.start(null);
+                return;
+            } else if (dominantCombineSelf == CombineSelf.OVERRIDE
+                    || recessiveCombineSelf == CombineSelf.OVERRIDABLE) {
+                Element root = (Element) dominantRoot.cloneNode(false);
+                root.removeAttribute(CombineSelf.ATTRIBUTE_NAME);
+                sink.start(root);
+                copyGroups(dominant, sink);
+                return;
+            }
+
+            CombineChildren combineChildren = XmlCombiner.getCombineChildren(dominantRoot);
+            if (combineChildren == null) {
+                combineChildren = XmlCombiner.getCombineChildren(recessiveRoot);
+            }
+            if (combineChildren == CombineChildren.APPEND) {
+                if (recessive == null) {
+                    sink.start((Element) dominantRoot.cloneNode(false));
+                } else {
+                    Element root = (Element) recessiveRoot.cloneNode(false);
+                    copyAttributes(dominantRoot, root);
+                    sink.start(root);
+                    Group group;
+                    while ((group = recessive.next()) != null) {
+                        // trailing non-element nodes of the recessive element are removed
+                        if (group.hasElement) {
+                            sink.add(group.content, true);
+                        }
+                    }
+                }
+                copyGroups(dominant, sink);
+                return;
+            }
+
+            Element root = scratch.createElement(dominantRoot.getTagName());
+            copyAttributes(recessiveRoot, root);
+            copyAttributes(dominantRoot, root);
+            CombineSelf combineSelf = dominantCombineSelf;
+            if (combineSelf == null && recessiveCombineSelf != CombineSelf.DEFAULTS) {
+                combineSelf = recessiveCombineSelf;
+            }
+            if (combineSelf != null) {
+                root.setAttribute(CombineSelf.ATTRIBUTE_NAME, combineSelf.name().toLowerCase());
+            } else {
+                root.removeAttribute(CombineSelf.ATTRIBUTE_NAME);
+            }
+            List<String> keys = defaultAttributeNames;
+            if (recessiveRoot != null && recessiveRoot.hasAttribute(Context.KEYS_ATTRIBUTE_NAME)) {
+                keys = Arrays.asList(recessiveRoot.getAttribute(Context.KEYS_ATTRIBUTE_NAME).split(","));
+            }
+            if (dominantRoot.hasAttribute(Context.KEYS_ATTRIBUTE_NAME)) {
+                keys = Arrays.asList(dominantRoot.getAttribute(Context.KEYS_ATTRIBUTE_NAME).split(","));
+            }
+            sink.start(root);
+            mergePartitioned(recessive, dominant, keys, sink);
+        }
+
+        private void mergePartitioned(LayerSource recessive, LayerSource dominant, List<String> keys, Sink sink)
+                throws IOException, SAXException, XMLStreamException, TransformerException {
+            long total = dominant.size() + (recessive == null ? 0 : recessive.size());
+            int partitions = (int) Math.max(1, Math.min(FAN_OUT, (total + partitionSize - 1) / partitionSize));
+
+            Path[] recessivePartitions = new Path[partitions];
+            if (recessive != null) {
+                try (PartitionWriter writer = new PartitionWriter(recessivePartitions, i -> newSpillFile())) {
+                    long sequence = 0;
+                    Group group;
+                    while ((group = recessive.next()) != null) {
+                        // trailing non-element nodes of the recessive element are dropped
+                        if (group.hasElement) {
+                            Key key = key(group.content, keys);
+                            writer.write(partition(key.hashCode(), 0, partitions), sequence++, group.content);
+                        }
+                    }
+                }
+            }
+
+            Path[] dominantPartitions = new Path[partitions];
+            byte[] dominantTail = null;
+            try (SpilledNames tagNamesInDominant = new SpilledNames()) {
+                try (PartitionWriter writer = new PartitionWriter(dominantPartitions, i -> newSpillFile())) {
+                    long sequence = 0;
+                    Group group;
+                    while ((group = dominant.next()) != null) {
+                        if (!group.hasElement) {
+                            dominantTail = group.content;
+                            continue;
+                        }
+                        Key key = key(group.content, keys);
+                        tagNamesInDominant.add(key.getName());
+                        writer.write(partition(key.hashCode(), 0, partitions), sequence++, group.content);
+                    }
+                }
+                tagNamesInDominant.finish();
+
+                List<Path> merged = new ArrayList<>();
+                for (int i = 0; i < partitions; i++) {
+                    merged.add(mergePartition(recessivePartitions[i], dominantPartitions[i], keys,
+                            tagNamesInDominant, 0));
+                }
+                mergeOutputs(merged, output -> sink.add(output.content, true));
+            }
+            if (dominantTail != null) {
+                sink.add(dominantTail, false);
+            }
+        }
+
+        /**
+         * Merges matching partitions the same way {@link XmlCombiner} merges the children of the root element.
+         *
+         * <p>
+         * Partitions larger than the partition size are split with the hash seeded by the next level
+         * and the merged parts are combined back in the result order.
+         * </p>
+         */
+        private Path mergePartition(Path recessivePartition, Path dominantPartition, List<String> keys,
+                SpilledNames tagNamesInDominant, int level)
+                throws IOException, SAXException, XMLStreamException, TransformerException {
+            if (size(recessivePartition) + size(dominantPartition) > partitionSize) {
+                Path[] recessiveParts = split(recessivePartition, keys, level + 1);
+                Path[] dominantParts = split(dominantPartition, keys, level + 1);
+                int nonEmpty = 0;
+                for (int i = 0; i < FAN_OUT; i++) {
+                    if (recessiveParts[i] != null || dominantParts[i] != null) {
+                        nonEmpty++;
+                    }
+                }
+                if (nonEmpty > 1) {
+                    delete(recessivePartition);
+                    delete(dominantPartition);
+                    List<Path> merged = new ArrayList<>();
+                    for (int i = 0; i < FAN_OUT; i++) {
+                        if (recessiveParts[i] != null || dominantParts[i] != null) {
+                            merged.add(mergePartition(recessiveParts[i], dominantParts[i], keys,
+                                    tagNamesInDominant, level + 1));
+                        }
+                    }
+                    Path path = newSpillFile();
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            Files.newOutputStream(path), Compression.BUFFER_SIZE))) {
+                        mergeOutputs(merged, output -> write(out, output));
+                        out.writeBoolean(false);
+                    }
+                    return path;
+                }
+                // all the elements share the same hash, most likely the same key, so they must be merged together
+                for (int i = 0; i < FAN_OUT; i++) {
+                    delete(recessiveParts[i]);
+                    delete(dominantParts[i]);
+                }
+            }
+
+            Map<Key, List<Record>> recessiveRecords = readPartition(recessivePartition, keys);
+            Map<Key, List<Record>> dominantRecords = readPartition(dominantPartition, keys);
+            delete(recessivePartition);
+            delete(dominantPartition);
+            List<Output> outputs = new ArrayList<>();
+
+            for (Map.Entry<Key, List<Record>> entry : recessiveRecords.entrySet()) {
+                Key key = entry.getKey();
+                List<Record> recessives = entry.getValue();
+                List<Record> dominants = dominantRecords.getOrDefault(key, emptyList());
+                long sequence = recessives.get(0).sequence;
+                int index = 0;
+                for (Record recessive : recessives) {
+                    if (XmlCombiner.getCombineSelf(recessive.element) == CombineSelf.OVERRIDABLE_BY_TAG) {
+                        if (!tagNamesInDominant.contains(key.getName())) {
+                            outputs.add(new Output(1, sequence, index++, recessive.content));
+                        }
+                        continue;
+                    }
+                    if (dominants.size() == 1 && recessives.size() == 1) {
+                        // 'combine.children' equal to 'add' is honored by the tree combiner
+                        byte[] combined = combine(recessive.content, dominants.get(0).content, keys);
+                        if (combined.length > 0) {
+                            outputs.add(new Output(1, sequence, index++, combined));
+                        }
+                    } else {
+                        outputs.add(new Output(1, sequence, index++, recessive.content));
+                    }
+                }
+            }
+
+            for (Map.Entry<Key, List<Record>> entry : dominantRecords.entrySet()) {
+                List<Record> dominants = entry.getValue();
+                List<Record> recessives = recessiveRecords.getOrDefault(entry.getKey(), emptyList());
+                long sequence = dominants.get(0).sequence;
+                int index = 0;
+                for (Record dominant : dominants) {
+                    if (dominants.size() == 1 && recessives.size() == 1
+                            && XmlCombiner.getCombineSelf(recessives.get(0).element)
+                                    != CombineSelf.OVERRIDABLE_BY_TAG) {
+                        // already added
+                        continue;
+                    }
+                    byte[] combined = combine(null, dominant.content, keys);
+                    if (combined.length > 0) {
+                        outputs.add(new Output(2, sequence, index++, combined));
+                    }
+                }
+            }
+
+            outputs.sort(OUTPUT_ORDER);
+            Path path = newSpillFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                    Compression.BUFFER_SIZE))) {
+                for (Output output : outputs) {
+                    write(out, output);
+                }
+                out.writeBoolean(false);
+            }
+            return path;
+        }
+
+        /**
+         * Splits the partition into {@value #FAN_OUT} parts using the hash seeded by given level.
+         */
+        private Path[] split(Path partition, List<String> keys, int level) throws IOException {
+            Path[] parts = new Path[FAN_OUT];
+            if (partition == null) {
+                return parts;
+            }
+            try (PartitionWriter writer = new PartitionWriter(parts, i -> newSpillFile())) {
+                readRecords(partition, (sequence, content) ->
+                        writer.write(partition(key(content, keys).hashCode(), level, FAN_OUT), sequence, content));
+            }
+            return parts;
+        }
+
+        /**
+         * Streams the sorted merged partitions to the consumer in the result order.
+         */
+        private void mergeOutputs(List<Path> merged, OutputConsumer consumer)
+                throws IOException, SAXException, XMLStreamException, TransformerException {
+            PriorityQueue<OutputReader> queue = new PriorityQueue<>(
+                    Comparator.comparing(reader -> reader.current, OUTPUT_ORDER));
+            try {
+                for (Path path : merged) {
+                    OutputReader reader = new OutputReader(path);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    OutputReader reader = queue.poll();
+                    consumer.accept(reader.current);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for (OutputReader reader : queue) {
+                    reader.close();
+                }
+            }
+            for (Path path : merged) {
+                delete(path);
+            }
+        }
+
+        /**
+         * Merges each child of the source separately, keeping their order, the same way
+         * {@link XmlCombiner} copies the element.
+         */
+        private void copyGroups(LayerSource source, Sink sink)
+                throws IOException, SAXException, XMLStreamException, TransformerException {
+            Group group;
+            while ((group = source.next()) != null) {
+                if (!group.hasElement) {
+                    sink.add(group.content, false);
+                    continue;
+                }
+                byte[] combined = combine(null, group.content, defaultAttributeNames);
+                if (combined.length > 0) {
+                    sink.add(combined, true);
+                }
+            }
+        }
+
+        /**
+         * Combines the groups with {@link XmlTreeCombiner} keeping the 'combine.*' attributes,
+         * so the result can be combined again with the next layer.
+         *
+         * @param recessive recessive group, null when the dominant group is only copied
+         * @param dominant dominant group
+         * @param keys key attribute names of the root element
+         * @return combined group, empty if the element was removed
+         */
+        private byte[] combine(byte[] recessive, byte[] dominant, List<String> keys)
+                throws IOException, SAXException {
+            XmlTree result = treeCombiner.combine(recessive == null ? null : wrapTree(recessive, keys),
+                    wrapTree(dominant, keys));
+            StringBuilder builder = new StringBuilder();
+            for (XmlTree child : result.getChildren()) {
+                appendRaw(builder, child);
+            }
+            return builder.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private XmlTree wrapTree(byte[] content, List<String> keys) throws IOException, SAXException {
+            Element wrapper = documentBuilder.parse(wrap(content)).getDocumentElement();
+            if (!keys.equals(defaultAttributeNames)) {
+                wrapper.setAttribute(Context.KEYS_ATTRIBUTE_NAME, String.join(",", keys));
+            }
+            return XmlTree.fromElement(wrapper);
+        }
+
+        private Map<Key, List<Record>> readPartition(Path path, List<String> keys) throws IOException {
+            Map<Key, List<Record>> records = new LinkedHashMap<>();
+            if (path == null) {
+                return records;
+            }
+            readRecords(path, (sequence, content) -> {
+                Record record = new Record(sequence, content);
+                record.element = startElement(content);
+                records.computeIfAbsent(key(record.element, keys), k -> new ArrayList<>()).add(record);
+            });
+            return records;
+        }
+
+        private Key key(byte[] content, List<String> keys) throws IOException {
+            return key(startElement(content), keys);
+        }
+
+        private Key key(Element element, List<String> keys) {
+            return OverriddenPaths.key(element.getTagName(),
+                    name -> element.hasAttribute(name) ? element.getAttribute(name) : null, keys);
+        }
+
+        /**
+         * Reads the records of the partition file.
+         */
+        private void readRecords(Path path, RecordConsumer consumer) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                    SPILL_BUFFER_SIZE))) {
+                while (in.readBoolean()) {
+                    long sequence = in.readLong();
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    consumer.accept(sequence, content);
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, Output output) throws IOException {
+            out.writeBoolean(true);
+            out.writeInt(output.phase);
+            out.writeLong(output.sequence);
+            out.writeInt(output.index);
+            out.writeInt(output.content.length);
+            out.write(output.content);
+        }
+
+        /**
+         * Reads only the start tag of the element in the group.
+         */
+        private Element startElement(byte[] content) throws IOException {
+            try {
+                XMLEventReader reader = inputFactory.createXMLEventReader(wrap(content));
+                try {
+                    int depth = 0;
+                    while (reader.hasNext()) {
+                        XMLEvent event = reader.nextEvent();
+                        if (event.isStartElement() && ++depth == 2) {
+                            return toElement(event.asStartElement());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Corrupted spill file", e);
+            }
+            throw new IOException("Corrupted spill file, no element in the group");
+        }
+
+        private Element toElement(StartElement startElement) {
+            Element element = scratch.createElement(rawName(startElement.getName()));
+            for (java.util.Iterator<?> i = startElement.getAttributes(); i.hasNext();) {
+                Attribute attribute = (Attribute) i.next();
+                element.setAttribute(rawName(attribute.getName()), attribute.getValue());
+            }
+            return element;
+        }
+
+        private byte[] serializeChildren(Element wrapper) throws TransformerException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(wrapper), new StreamResult(out));
+            byte[] bytes = out.toByteArray();
+            if (bytes.length < WRAPPER_START.length + WRAPPER_END.length) {
+                // empty element serialized as <g/>
+                return new byte[0];
+            }
+            return Arrays.copyOfRange(bytes, WRAPPER_START.length, bytes.length - WRAPPER_END.length);
+        }
+
+        private Path newSpillFile() {
+            return directory.resolve("spill-" + spillCounter++);
+        }
+
+        /**
+         * Writes the groups into the partition files.
+         */
+        private class PartitionWriter implements Closeable {
+            private final Path[] paths;
+            private final DataOutputStream[] outputs;
+
+            private final IntFunction<Path> newPath;
+
+            PartitionWriter(Path[] paths, IntFunction<Path> newPath) {
+                this.paths = paths;
+                this.outputs = new DataOutputStream[paths.length];
+                this.newPath = newPath;
+            }
+
+            void write(int partition, long sequence, byte[] content) throws IOException {
+                if (outputs[partition] == null) {
+                    paths[partition] = newPath.apply(partition);
+                    outputs[partition] = new DataOutputStream(new BufferedOutputStream(
+                            Files.newOutputStream(paths[partition]), SPILL_BUFFER_SIZE));
+                }
+                DataOutputStream out = outputs[partition];
+                out.writeBoolean(true);
+                out.writeLong(sequence);
+                out.writeInt(content.length);
+                out.write(content);
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (DataOutputStream out : outputs) {
+                    if (out != null) {
+                        out.writeBoolean(false);
+                        out.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Tag names of the children of the dominant root element, spilled to disk.
+         *
+         * <p>
+         * The names are partitioned by their hash. Partitions larger than the partition size are split
+         * on the first lookup into the subdirectory with the same name, so only one partition of the names
+         * is kept in memory at a time.
+         * </p>
+         */
+        private class SpilledNames implements Closeable {
+            private final Path root = newSpillFile();
+            private final PartitionWriter writer;
+            private final String[] lastNames = new String[FAN_OUT];
+            private Path loadedPath;
+            private Set<String> loaded;
+
+            SpilledNames() throws IOException {
+                Files.createDirectory(root);
+                writer = new PartitionWriter(new Path[FAN_OUT], i -> root.resolve(String.valueOf(i)));
+            }
+
+            void add(String name) throws IOException {
+                int partition = partition(name.hashCode(), 0, FAN_OUT);
+                // the children with the same tag name usually follow each other
+                if (!name.equals(lastNames[partition])) {
+                    lastNames[partition] = name;
+                    writer.write(partition, 0, name.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            /**
+             * Finishes adding the names.
+             */
+            void finish() throws IOException {
+                writer.close();
+            }
+
+            boolean contains(String name) throws IOException {
+                int hash = name.hashCode();
+                int level = 0;
+                Path path = root.resolve(String.valueOf(partition(hash, level, FAN_OUT)));
+                while (true) {
+                    if (Files.isDirectory(path)) {
+                        level++;
+                        path = path.resolve(String.valueOf(partition(hash, level, FAN_OUT)));
+                    } else if (!Files.exists(path)) {
+                        return false;
+                    } else if (path.equals(loadedPath)) {
+                        return loaded.contains(name);
+                    } else if (Files.size(path) <= partitionSize || !splitNames(path, level + 1)) {
+                        loaded = new HashSet<>();
+                        readRecords(path, (sequence, content) ->
+                                loaded.add(new String(content, StandardCharsets.UTF_8)));
+                        loadedPath = path;
+                        return loaded.contains(name);
+                    }
+                }
+            }
+
+            /**
+             * Replaces the partition file with the directory of its parts.
+             *
+             * @return false when all the names fall into the same part
+             */
+            private boolean splitNames(Path path, int level) throws IOException {
+                Path directory = path.resolveSibling(path.getFileName() + ".split");
+                Files.createDirectory(directory);
+                Path[] parts = new Path[FAN_OUT];
+                try (PartitionWriter partWriter = new PartitionWriter(parts,
+                        i -> directory.resolve(String.valueOf(i)))) {
+                    readRecords(path, (sequence, content) -> partWriter.write(
+                            partition(new String(content, StandardCharsets.UTF_8).hashCode(), level, FAN_OUT),
+                            sequence, content));
+                }
+                int nonEmpty = 0;
+                for (Path part : parts) {
+                    if (part != null) {
+                        nonEmpty++;
+                    }
+                }
+                if (nonEmpty <= 1) {
+                    for (Path part : parts) {
+                        delete(part);
+                    }
+                    Files.delete(directory);
+                    return false;
+                }
+                Files.delete(path);
+                Files.move(directory, path);
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        }
+
+        /**
+         * Reads the merged partition.
+         */
+        private class OutputReader implements Closeable {
+            private final DataInputStream in;
+            private Output current;
+
+            OutputReader(Path path) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), SPILL_BUFFER_SIZE));
+            }
+
+            boolean advance() throws IOException {
+                if (!in.readBoolean()) {
+                    current = null;
+                    return false;
+                }
+                int phase = in.readInt();
+                long sequence = in.readLong();
+                int index = in.readInt();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                current = new Output(phase, sequence, index, content);
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+
+        /**
+         * Streams the children of the root element of XML file.
+         */
+        private class XmlSource implements LayerSource {
+            private final Path file;
+            private final InputStream stream;
+            private final XMLEventReader reader;
+            private final Element root;
+            private boolean finished;
+
+            XmlSource(Path file) throws IOException, XMLStreamException {
+                this.file = file;
+                this.stream = Compression.decompress(Files.newInputStream(file));
+                this.reader = inputFactory.createXMLEventReader(stream);
+                Element element = null;
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (event.isStartElement()) {
+                        element = toElement(event.asStartElement());
+                        break;
+                    }
+                }
+                if (element == null) {
+                    throw new XMLStreamException("No root element in " + file);
+                }
+                this.root = element;
+            }
+
+            @Override
+            public Element getRoot() {
+                return root;
+            }
+
+            @Override
+            public Group next() throws XMLStreamException {
+                if (finished) {
+                    return null;
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                XMLEventWriter writer = outputFactory.createXMLEventWriter(buffer, "UTF-8");
+                boolean neighbours = false;
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (event.isEndElement()) {
+                        // end of the root element
+                        finished = true;
+                        writer.close();
+                        return neighbours ? new Group(buffer.toByteArray(), false) : null;
+                    }
+                    writer.add(event);
+                    if (event.isStartElement()) {
+                        int depth = 1;
+                        while (depth > 0) {
+                            XMLEvent nested = reader.nextEvent();
+                            if (nested.isStartElement()) {
+                                depth++;
+                            } else if (nested.isEndElement()) {
+                                depth--;
+                            }
+                            writer.add(nested);
+                        }
+                        writer.close();
+                        return new Group(buffer.toByteArray(), true);
+                    }
+                    neighbours = true;
+                }
+                throw new XMLStreamException("Unexpected end of " + file);
+            }
+
+            @Override
+            public long size() throws IOException {
+                return Files.size(file);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                } finally {
+                    stream.close();
+                }
+            }
+        }
+
+        /**
+         * Stores the intermediate result.
+         */
+        private class SpillSink implements Sink {
+            private final DataOutputStream out;
+
+            SpillSink(Path path) throws IOException {
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                        Compression.BUFFER_SIZE));
+            }
+
+            @Override
+            public void start(Element root) throws IOException {
+                if (root == null) {
+                    out.writeInt(-1);
+                    return;
+                }
+                byte[] bytes;
+                try {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    transformer.transform(new DOMSource(root), new StreamResult(buffer));
+                    bytes = buffer.toByteArray();
+                } catch (TransformerException e) {
+                    throw new IOException(e);
+                }
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public void add(byte[] content, boolean hasElement) throws IOException {
+                out.writeByte(hasElement ? 1 : 2);
+                out.writeInt(content.length);
+                out.write(content);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.writeByte(0);
+                out.close();
+            }
+        }
+
+        /**
+         * Reads the intermediate result.
+         */
+        private class SpillSource implements LayerSource {
+            private final Path path;
+            private final DataInputStream in;
+            private final Element root;
+
+            SpillSource(Path path) throws IOException, SAXException {
+                this.path = path;
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                        Compression.BUFFER_SIZE));
+                int length = in.readInt();
+                if (length == -1) {
+                    root = null;
+                } else {
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    root = (Element) scratch.importNode(
+                            documentBuilder.parse(new ByteArrayInputStream(bytes)).getDocumentElement(), false);
+                }
+            }
+
+            @Override
+            public Element getRoot() {
+                return root;
+            }
+
+            @Override
+            public Group next() throws IOException {
+                byte type = in.readByte();
+                if (type == 0) {
+                    return null;
+                }
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                return new Group(content, type == 1);
+            }
+
+            @Override
+            public long size() throws IOException {
+                return Files.size(path);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+
+        /**
+         * Writes the final result removing the elements marked as defaults and all the 'combine.*' attributes.
+         */
+        private class OutputSink implements Sink {
+            private final OutputStream out;
+            private Element root;
+
+            OutputSink(OutputStream out) {
+                this.out = new BufferedOutputStream(out, Compression.BUFFER_SIZE);
+            }
+
+            @Override
+            public void start(Element root) throws IOException {
+                write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+                this.root = root;
+                if (root == null) {
+                    return;
+                }
+                StringBuilder tag = new StringBuilder("<").append(root.getTagName());
+                NamedNodeMap attributes = root.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Node attribute = attributes.item(i);
+                    if (XmlCombiner.isCombineAttribute(attribute.getNodeName())) {
+                        continue;
+                    }
+                    tag.append(' ').append(attribute.getNodeName()).append("=\"")
+                            .append(escape(attribute.getNodeValue())).append('"');
+                }
+                write(tag.append('>').toString());
+            }
+
+            @Override
+            public void add(byte[] content, boolean hasElement)
+                    throws IOException, SAXException, TransformerException {
+                if (!hasElement || indexOf(content, COMBINE_PREFIX) == -1) {
+                    out.write(content);
+                    return;
+                }
+                // the combiner filters out the defaults and the 'combine.*' attributes as for any other document
+                outputCombiner.reset();
+                outputCombiner.combine(documentBuilder.parse(wrap(content)));
+                out.write(serializeChildren(outputCombiner.buildDocument().getDocumentElement()));
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (root != null) {
+                    write("</" + root.getTagName() + ">");
+                }
+                out.flush();
+            }
+
+            private void write(String text) throws IOException {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Returns the partition for given hash, mixed differently at each level of splitting,
+     * so the elements of one partition spread over the parts at the next level.
+     */
+    static int partition(int hash, int level, int partitions) {
+        int h = hash + level * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % partitions;
+    }
+
+    private static long size(Path path) throws IOException {
+        return path == null ? 0 : Files.size(path);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Appends the tree as XML keeping the elements marked as defaults and the 'combine.*' attributes.
+     */
+    private static void appendRaw(StringBuilder builder, XmlTree tree) {
+        switch (tree.getType()) {
+            case Node.ELEMENT_NODE:
+                builder.append('<').append(tree.getName());
+                for (XmlTree attribute : tree.getAttributes()) {
+                    builder.append(' ').append(attribute.getName()).append("=\"")
+                            .append(escape(attribute.getValue())).append('"');
+                }
+                List<XmlTree> children = tree.getChildren();
+                if (children.isEmpty()) {
+                    builder.append("/>");
+                    return;
+                }
+                builder.append('>');
+                for (XmlTree child : children) {
+                    appendRaw(builder, child);
+                }
+                builder.append("</").append(tree.getName()).append('>');
+                return;
+            case Node.TEXT_NODE:
+                builder.append(escapeText(tree.getValue()));
+                return;
+            case Node.CDATA_SECTION_NODE:
+                builder.append("<![CDATA[").append(tree.getValue().replace("]]>", "]]]]><![CDATA[>")).append("]]>");
+                return;
+            case Node.COMMENT_NODE:
+                builder.append("<!--").append(tree.getValue()).append("-->");
+                return;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                builder.append("<?").append(tree.getName()).append(' ').append(tree.getValue()).append("?>");
+                return;
+            default:
+                throw new IllegalStateException("Unsupported node type: " + tree.getType());
+        }
+    }
+
+    private static String escapeText(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    result.append("&amp;");
+                    break;
+                case '<':
+                    result.append("&lt;");
+                    break;
+                case '>':
+                    result.append("&gt;");
+                    break;
+                case '\r':
+                    result.append("&#13;");
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static InputStream wrap(byte[] content) {
+        byte[] bytes = new byte[WRAPPER_START.length + content.length + WRAPPER_END.length];
+        System.arraycopy(WRAPPER_START, 0, bytes, 0, WRAPPER_START.length);
+        System.arraycopy(content, 0, bytes, WRAPPER_START.length, content.length);
+        System.arraycopy(WRAPPER_END, 0, bytes, WRAPPER_START.length + content.length, WRAPPER_END.length);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static void copyAttributes(Element source, Element destination) {
+        if (source == null) {
+            return;
+        }
+        NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            destination.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+        }
+    }
+
+    private static String rawName(QName name) {
+        if (name.getPrefix() == null || name.getPrefix().isEmpty()) {
+            return name.getLocalPart();
+        }
+        return name.getPrefix() + ":" + name.getLocalPart();
+    }
+
+    private static String escape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    result.append("&amp;");
+                    break;
+                case '<':
+                    result.append("&lt;");
+                    break;
+                case '>':
+                    result.append("&gt;");
+                    break;
+                case '"':
+                    result.append("&quot;");
+                    break;
+                case '\n':
+                    result.append("&#10;");
+                    break;
+                case '\r':
+                    result.append("&#13;");
+                    break;
+                case '\t':
+                    result.append("&#9;");
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static int indexOf(byte[] content, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= content.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (content[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Comment;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * SHA-256 digest of the merged document computed while it was written.
+ *
+ * <p>
+ * The digest of the written bytes identifies the output exactly and can be used as a strong HTTP entity tag.
+ * Optionally the digest of the canonical form is computed as well, in a separate traversal of the merged tree,
+ * it does not depend on the formatting: the attributes are sorted by name, the whitespace in the text
+ * is collapsed, whitespace-only text and comments are skipped.
+ * </p>
+ *
+ * @see XmlCombiner#buildDocumentWithDigest(java.io.OutputStream, boolean)
+ */
+public final class OutputDigest {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] digest;
+    private final byte[] canonicalDigest;
+
+    OutputDigest(byte[] digest, byte[] canonicalDigest) {
+        this.digest = digest;
+        this.canonicalDigest = canonicalDigest;
+    }
+
+    /**
+     * Returns the digest of the written bytes.
+     *
+     * @return SHA-256 digest
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * Returns the digest of the written bytes as hexadecimal string.
+     *
+     * @return lower-case hexadecimal SHA-256 digest
+     */
+    public String getHex() {
+        return toHex(digest);
+    }
+
+    /**
+     * Returns the strong entity tag of the written bytes.
+     *
+     * @return quoted hexadecimal digest, suitable for the HTTP 'ETag' header
+     */
+    public String getETag() {
+        return '"' + toHex(digest) + '"';
+    }
+
+    /**
+     * Returns the digest of the canonical form of the document.
+     *
+     * @return SHA-256 digest, null when it was not requested
+     */
+    public byte[] getCanonicalDigest() {
+        return canonicalDigest == null ? null : canonicalDigest.clone();
+    }
+
+    /**
+     * Returns the digest of the canonical form of the document as hexadecimal string.
+     *
+     * @return lower-case hexadecimal SHA-256 digest, null when it was not requested
+     */
+    public String getCanonicalHex() {
+        return canonicalDigest == null ? null : toHex(canonicalDigest);
+    }
+
+    @Override
+    public String toString() {
+        if (canonicalDigest == null) {
+            return "sha256=" + getHex();
+        }
+        return "sha256=" + getHex() + ", canonical sha256=" + getCanonicalHex();
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Computes the digest of the canonical form of the node.
+     */
+    static byte[] canonicalDigest(Node node) {
+        MessageDigest digest = AtomicFileWriter.newDigest();
+        StringBuilder text = new StringBuilder();
+        update(digest, node, text);
+        flushText(digest, text);
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, Node node, StringBuilder text) {
+        if (node instanceof CharacterData && !(node instanceof Comment)) {
+            text.append(((CharacterData) node).getData());
+            return;
+        }
+        if (node instanceof Element) {
+            flushText(digest, text);
+            Element element = (Element) node;
+            token(digest, '<', name(element));
+            Map<String, String> attributes = new TreeMap<>();
+            NamedNodeMap attributeNodes = element.getAttributes();
+            for (int i = 0; i < attributeNodes.getLength(); i++) {
+                Attr attribute = (Attr) attributeNodes.item(i);
+                attributes.put(name(attribute), attribute.getValue());
+            }
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                token(digest, '@', attribute.getKey());
+                token(digest, '=', attribute.getValue());
+            }
+        } else if (node instanceof ProcessingInstruction) {
+            flushText(digest, text);
+            ProcessingInstruction instruction = (ProcessingInstruction) node;
+            token(digest, '?', instruction.getTarget());
+            token(digest, '=', instruction.getData());
+            return;
+        } else if (node instanceof Comment) {
+            return;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            update(digest, child, text);
+        }
+        if (node instanceof Element) {
+            flushText(digest, text);
+            token(digest, '>', "");
+        }
+    }
+
+    private static void flushText(MessageDigest digest, StringBuilder text) {
+        String collapsed = text.toString().trim().replaceAll("\\s+", " ");
+        text.setLength(0);
+        if (!collapsed.isEmpty()) {
+            token(digest, '"', collapsed);
+        }
+    }
+
+    private static String name(Node node) {
+        if (node.getNamespaceURI() != null && node.getLocalName() != null) {
+            return "{" + node.getNamespaceURI() + "}" + node.getLocalName();
+        }
+        return node.getNodeName();
+    }
+
+    /**
+     * Updates the digest with the token, NUL character which cannot occur in XML separates the tokens.
+     */
+    private static void token(MessageDigest digest, char type, String value) {
+        digest.update((byte) type);
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Trie of the key paths of the elements which are overridden or removed by more dominant layers.
+ *
+ * <p>
+ * The subtrees of recessive layers at those paths do not affect the result, so they can be replaced
+ * with childless stubs during parsing. The stubs keep all the attributes of the original element,
+ * so they are paired exactly like the original elements. Each stub is marked
+ * with {@value #MARKER_ATTRIBUTE_NAME} attribute. When any of the stubs survives the merge,
+ * the key paths did not match the actual pairing and the layers must be merged again without skipping.
+ * </p>
+ */
+final class OverriddenPaths {
+    /**
+     * Attribute which marks elements whose content was skipped.
+     */
+    static final String MARKER_ATTRIBUTE_NAME = "combine.skipped";
+
+    private final List<String> defaultAttributeNames;
+    private final PathNode root = new PathNode();
+
+    OverriddenPaths(List<String> defaultAttributeNames) {
+        this.defaultAttributeNames = defaultAttributeNames;
+    }
+
+    /**
+     * Returns the root of the trie, its children are document elements.
+     */
+    PathNode getRoot() {
+        return root;
+    }
+
+    boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    /**
+     * Adds the paths of all the elements of given layer which are marked to be overridden or removed.
+     */
+    void addOverrides(Element element) {
+        addOverrides(root, element, defaultAttributeNames);
+    }
+
+    private void addOverrides(PathNode parent, Element element, List<String> keyAttributeNames) {
+        if (element.hasAttribute(MARKER_ATTRIBUTE_NAME)) {
+            // the path is already in the trie
+            return;
+        }
+        Key key = key(element.getTagName(), name -> element.hasAttribute(name) ? element.getAttribute(name) : null,
+                keyAttributeNames);
+        PathNode node = parent.children.computeIfAbsent(key, k -> new PathNode());
+        if (node.overridden) {
+            return;
+        }
+        CombineSelf combineSelf = XmlCombiner.getCombineSelf(element);
+        if ((combineSelf == CombineSelf.OVERRIDE || combineSelf == CombineSelf.REMOVE)
+                && XmlCombiner.getCombineChildren(element) != CombineChildren.ADD) {
+            node.overridden = true;
+            node.children.clear();
+            return;
+        }
+        List<String> childKeyAttributeNames = childKeyAttributeNames(
+                element.hasAttribute(Context.KEYS_ATTRIBUTE_NAME)
+                        ? element.getAttribute(Context.KEYS_ATTRIBUTE_NAME) : null);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                addOverrides(node, (Element) child, childKeyAttributeNames);
+            }
+        }
+        if (node.children.isEmpty()) {
+            // nothing overridden below
+            parent.children.remove(key);
+        }
+    }
+
+    /**
+     * Returns the key attribute names used for the children of the element with given 'combine.keys' value.
+     */
+    List<String> childKeyAttributeNames(String keysValue) {
+        if (keysValue == null) {
+            return defaultAttributeNames;
+        }
+        return Arrays.asList(keysValue.split(","));
+    }
+
+    /**
+     * Computes the key of the element the same way {@link KeyAttributesChildContextsMapper} does it.
+     */
+    static Key key(String tagName, Function<String, String> attributes, List<String> keyAttributeNames) {
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (String keyAttributeName : keyAttributeNames) {
+            String value = attributes.apply(keyAttributeName);
+            if (value != null) {
+                keys.put(keyAttributeName, value);
+            }
+        }
+        String id = attributes.apply(Context.ID_ATTRIBUTE_NAME);
+        if (id != null) {
+            keys.put(Context.ID_ATTRIBUTE_NAME, id);
+        }
+        return new Key(tagName, keys);
+    }
+
+    /**
+     * Node of the trie.
+     */
+    static final class PathNode {
+        private final Map<Key, PathNode> children = new HashMap<>();
+        private boolean overridden;
+
+        /**
+         * Returns the child node with given key or null.
+         */
+        PathNode getChild(Key key) {
+            return children.get(key);
+        }
+
+        /**
+         * Whether the element at this path is overridden or removed.
+         */
+        boolean isOverridden() {
+            return overridden;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Reads and parses the inputs in parallel in given pool.
+ *
+ * <p>
+ * The checked exceptions thrown by the workers are rethrown to the caller unchanged.
+ * </p>
+ */
+final class ParallelParsing {
+    /**
+     * Reads or parses a single input.
+     */
+    interface Function<T, R> {
+        R apply(T input) throws IOException, SAXException;
+    }
+
+    private ParallelParsing() {
+    }
+
+    /**
+     * Returns the document builders created on demand, one per thread, since they are not thread-safe.
+     *
+     * @param profile profile of the created document builders
+     * @return per-thread document builders
+     */
+    static ThreadLocal<DocumentBuilder> documentBuilders(ParserProfile profile) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return profile.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Applies the function to each input in parallel.
+     *
+     * @param inputs inputs to process
+     * @param pool pool to run the function in
+     * @param function function to apply
+     * @return results in the order of the inputs
+     * @throws IOException when the function throws it for any input
+     * @throws SAXException when the function throws it for any input
+     */
+    static <T, R> List<R> map(List<T> inputs, ForkJoinPool pool, Function<T, R> function)
+            throws IOException, SAXException {
+        Object[] results = new Object[inputs.size()];
+        try {
+            pool.submit(() -> IntStream.range(0, results.length).parallel().forEach(i -> {
+                try {
+                    results[i] = function.apply(inputs.get(i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (SAXException e) {
+                    throw new ParsingException(e);
+                }
+            })).join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (ParsingException e) {
+            throw (SAXException) e.getCause();
+        }
+        @SuppressWarnings("unchecked")
+        List<R> list = (List<R>) Arrays.asList(results);
+        return list;
+    }
+
+    private static class ParsingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ParsingException(SAXException cause) {
+            super(cause);
+        }
+    }
+}
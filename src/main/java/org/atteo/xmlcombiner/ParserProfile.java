@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Configuration of the XML parser with cached {@link DocumentBuilderFactory} and {@link SAXParserFactory}.
+ *
+ * <p>
+ * {@link #standard()} profile uses JAXP defaults. {@link #offline()} profile never accesses the network:
+ * validation and loading of external DTDs and entities are disabled, unless they are mapped
+ * to local files using {@link #withCatalog(Map)}. Any external resource not found in the catalog
+ * is resolved to empty content.
+ * </p>
+ */
+public final class ParserProfile {
+    private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+    private static final String EXTERNAL_PARAMETER_ENTITIES =
+            "http://xml.org/sax/features/external-parameter-entities";
+    private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+    private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+    private static final ParserProfile STANDARD = new ParserProfile(false, false, null, emptyMap());
+    private static final ParserProfile OFFLINE = new ParserProfile(true, false, false, emptyMap());
+
+    private final boolean offline;
+    private final boolean namespaceAware;
+    private final Boolean deferredNodeExpansion;
+    private final Map<String, Path> catalog;
+    private DocumentBuilderFactory factory;
+    private SAXParserFactory saxParserFactory;
+
+    private ParserProfile(boolean offline, boolean namespaceAware, Boolean deferredNodeExpansion,
+            Map<String, Path> catalog) {
+        this.offline = offline;
+        this.namespaceAware = namespaceAware;
+        this.deferredNodeExpansion = deferredNodeExpansion;
+        this.catalog = catalog;
+    }
+
+    /**
+     * Returns the profile with JAXP default settings.
+     *
+     * @return standard profile
+     */
+    public static ParserProfile standard() {
+        return STANDARD;
+    }
+
+    /**
+     * Returns the profile which never accesses external resources.
+     *
+     * @return offline profile
+     */
+    public static ParserProfile offline() {
+        return OFFLINE;
+    }
+
+    /**
+     * Returns the copy of this profile with namespace awareness enabled or disabled.
+     *
+     * <p>
+     * Namespace awareness is disabled by default, which is faster and is enough for merging.
+     * </p>
+     *
+     * @param namespaceAware whether the parser should be namespace aware
+     * @return new profile
+     */
+    public ParserProfile withNamespaceAware(boolean namespaceAware) {
+        return new ParserProfile(offline, namespaceAware, deferredNodeExpansion, catalog);
+    }
+
+    /**
+     * Returns the copy of this profile with deferred DOM node expansion enabled or disabled.
+     *
+     * <p>
+     * Deferred DOM creates the nodes only when they are first accessed. It pays off when large parts
+     * of the parsed documents are never visited, for instance when they are overridden.
+     * The setting is ignored by parsers which do not support it.
+     * </p>
+     *
+     * @param deferredNodeExpansion whether node expansion should be deferred
+     * @return new profile
+     */
+    public ParserProfile withDeferredNodeExpansion(boolean deferredNodeExpansion) {
+        return new ParserProfile(offline, namespaceAware, deferredNodeExpansion, catalog);
+    }
+
+    /**
+     * Returns the copy of this profile which resolves external resources using given catalog.
+     *
+     * @param catalog mapping from public or system identifiers to local files
+     * @return new profile
+     */
+    public ParserProfile withCatalog(Map<String, Path> catalog) {
+        Map<String, Path> merged = new LinkedHashMap<>(this.catalog);
+        merged.putAll(catalog);
+        return new ParserProfile(offline, namespaceAware, deferredNodeExpansion, unmodifiableMap(merged));
+    }
+
+    /**
+     * Creates new {@link DocumentBuilder} configured according to this profile.
+     *
+     * @return new document builder
+     * @throws ParserConfigurationException when the parser cannot be configured
+     */
+    public DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder documentBuilder;
+        synchronized (this) {
+            if (factory == null) {
+                factory = createFactory();
+            }
+            documentBuilder = factory.newDocumentBuilder();
+        }
+        if (offline || !catalog.isEmpty()) {
+            documentBuilder.setEntityResolver(entityResolver());
+        }
+        return documentBuilder;
+    }
+
+    /**
+     * Creates new {@link XMLReader} configured according to this profile.
+     *
+     * @return new XML reader
+     * @throws ParserConfigurationException when the parser cannot be configured
+     * @throws SAXException when the parser cannot be created
+     */
+    public XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        XMLReader reader;
+        synchronized (this) {
+            if (saxParserFactory == null) {
+                saxParserFactory = createSAXParserFactory();
+            }
+            reader = saxParserFactory.newSAXParser().getXMLReader();
+        }
+        if (offline || !catalog.isEmpty()) {
+            reader.setEntityResolver(entityResolver());
+        }
+        return reader;
+    }
+
+    /**
+     * Whether parsers created by this profile are namespace aware.
+     *
+     * @return true when namespace awareness is enabled
+     */
+    public boolean isNamespaceAware() {
+        return namespaceAware;
+    }
+
+    /**
+     * Returns the resolver which maps external resources using the catalog.
+     *
+     * @return entity resolver
+     */
+    public EntityResolver entityResolver() {
+        return (publicId, systemId) -> {
+            Path path = null;
+            if (publicId != null) {
+                path = catalog.get(publicId);
+            }
+            if (path == null && systemId != null) {
+                path = catalog.get(systemId);
+            }
+            if (path != null) {
+                InputSource source = new InputSource(path.toUri().toString());
+                source.setPublicId(publicId);
+                return source;
+            }
+            if (offline) {
+                InputSource empty = new InputSource(new StringReader(""));
+                empty.setPublicId(publicId);
+                empty.setSystemId(systemId);
+                return empty;
+            }
+            return null;
+        };
+    }
+
+    private DocumentBuilderFactory createFactory() throws ParserConfigurationException {
+        DocumentBuilderFactory result = DocumentBuilderFactory.newInstance();
+        result.setNamespaceAware(namespaceAware);
+        if (offline) {
+            boolean external = !catalog.isEmpty();
+            result.setValidating(false);
+            result.setXIncludeAware(false);
+            result.setFeature(LOAD_EXTERNAL_DTD, external);
+            result.setFeature(EXTERNAL_GENERAL_ENTITIES, external);
+            result.setFeature(EXTERNAL_PARAMETER_ENTITIES, external);
+        }
+        if (deferredNodeExpansion != null) {
+            try {
+                result.setFeature(DEFER_NODE_EXPANSION, deferredNodeExpansion);
+            } catch (ParserConfigurationException e) {
+                // not supported by this parser
+            }
+        }
+        return result;
+    }
+
+    private SAXParserFactory createSAXParserFactory() throws ParserConfigurationException, SAXException {
+        SAXParserFactory result = SAXParserFactory.newInstance();
+        result.setNamespaceAware(namespaceAware);
+        if (namespaceAware) {
+            // report namespace declarations as attributes, the same way DOM does
+            result.setFeature(NAMESPACE_PREFIXES, true);
+        }
+        if (offline) {
+            boolean external = !catalog.isEmpty();
+            result.setValidating(false);
+            result.setXIncludeAware(false);
+            result.setFeature(LOAD_EXTERNAL_DTD, external);
+            result.setFeature(EXTERNAL_GENERAL_ENTITIES, external);
+            result.setFeature(EXTERNAL_PARAMETER_ENTITIES, external);
+        }
+        return result;
+    }
+}
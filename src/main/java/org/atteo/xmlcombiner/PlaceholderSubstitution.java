@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Element;
+
+/**
+ * Substitutes '${name}' placeholders during a single traversal of the merged document.
+ *
+ * <p>
+ * The values of the properties are resolved once per traversal, the references which cannot be resolved,
+ * including the cyclic ones, are left as is and reported with the key path of the element.
+ * The steps of the path include the values of the key attributes, as accepted by {@link XmlCombiner#lookup(String)},
+ * so the keyed siblings can be told apart.
+ * </p>
+ */
+final class PlaceholderSubstitution {
+    private static final String PREFIX = "${";
+    private static final String SUFFIX = "}";
+
+    private final PropertyResolver resolver;
+    private final List<String> defaultKeyAttributeNames;
+    /**
+     * Fully substituted values of the properties, null values are stored for unresolved properties.
+     */
+    private final Map<String, String> values = new HashMap<>();
+    private final Set<String> resolving = new HashSet<>();
+    private final List<String> path = new ArrayList<>();
+    /**
+     * Key attribute names of the children of the elements on the path.
+     */
+    private final Deque<List<String>> keyAttributeNames = new ArrayDeque<>();
+    private final List<String> unresolved = new ArrayList<>();
+
+    PlaceholderSubstitution(PropertyResolver resolver, List<String> defaultKeyAttributeNames) {
+        this.resolver = resolver;
+        this.defaultKeyAttributeNames = defaultKeyAttributeNames;
+    }
+
+    /**
+     * Descends into the element, it must still have its 'combine.*' attributes.
+     *
+     * @param element element to descend into
+     * @param rules merge rules of the element, null if there are none
+     */
+    void enter(Element element, MergeRules.State rules) {
+        List<String> keys = keyAttributeNames.isEmpty() ? Collections.<String>emptyList() : keyAttributeNames.peek();
+        path.add(step(OverriddenPaths.key(element.getTagName(),
+                name -> element.hasAttribute(name) ? element.getAttribute(name) : null, keys)));
+        if (element.hasAttribute(Context.KEYS_ATTRIBUTE_NAME)) {
+            keys = Arrays.asList(element.getAttribute(Context.KEYS_ATTRIBUTE_NAME).split(","));
+        } else if (rules != null && rules.getKeys() != null) {
+            keys = rules.getKeys();
+        } else {
+            keys = defaultKeyAttributeNames;
+        }
+        keyAttributeNames.push(keys);
+    }
+
+    /**
+     * Returns to the parent element.
+     */
+    void exit() {
+        path.remove(path.size() - 1);
+        keyAttributeNames.pop();
+    }
+
+    private static String step(Key key) {
+        StringBuilder step = new StringBuilder(key.getName());
+        for (Map.Entry<String, String> entry : key.getId().entrySet()) {
+            String value = entry.getValue();
+            step.append('[').append(entry.getKey()).append('=');
+            if (value.indexOf(']') != -1 || value.indexOf('/') != -1 || value.startsWith("'")
+                    || value.startsWith("\"")) {
+                char quote = value.indexOf('\'') == -1 ? '\'' : '"';
+                step.append(quote).append(value).append(quote);
+            } else {
+                step.append(value);
+            }
+            step.append(']');
+        }
+        return step.toString();
+    }
+
+    /**
+     * Substitutes the placeholders in the value found at given location of the current element.
+     *
+     * @param value value to substitute the placeholders in
+     * @param location location of the value within the current element, for instance '@name' or 'text()'
+     * @return value with the resolved placeholders substituted
+     */
+    String substitute(String value, String location) {
+        if (!value.contains(PREFIX)) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int position = 0;
+        while (true) {
+            int start = value.indexOf(PREFIX, position);
+            int end = start < 0 ? -1 : value.indexOf(SUFFIX, start + PREFIX.length());
+            if (end < 0) {
+                result.append(value, position, value.length());
+                return result.toString();
+            }
+            result.append(value, position, start);
+            String name = value.substring(start + PREFIX.length(), end);
+            String resolved = resolve(name, location);
+            if (resolved != null) {
+                result.append(resolved);
+            } else {
+                result.append(value, start, end + SUFFIX.length());
+                unresolved.add(location(location) + ": " + PREFIX + name + SUFFIX);
+            }
+            position = end + SUFFIX.length();
+        }
+    }
+
+    private String resolve(String name, String location) {
+        if (values.containsKey(name)) {
+            return values.get(name);
+        }
+        if (!resolving.add(name)) {
+            // cyclic reference
+            return null;
+        }
+        String value = resolver.resolve(name);
+        if (value != null) {
+            value = substitute(value, location);
+        }
+        resolving.remove(name);
+        values.put(name, value);
+        return value;
+    }
+
+    private String location(String location) {
+        StringBuilder builder = new StringBuilder();
+        for (String step : path) {
+            builder.append('/').append(step);
+        }
+        return builder.append('/').append(location).toString();
+    }
+
+    /**
+     * Returns the unresolved references with their locations.
+     */
+    List<String> getUnresolved() {
+        return unresolved;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.util.Map;
+
+/**
+ * Provides the values of '${name}' placeholders substituted in the merged document.
+ *
+ * @see XmlCombiner#setPropertyResolver(PropertyResolver)
+ */
+@FunctionalInterface
+public interface PropertyResolver {
+    /**
+     * Returns the value of the property.
+     *
+     * <p>
+     * The value can contain further placeholders. Each property is resolved at most once
+     * per {@link XmlCombiner#buildDocument()}.
+     * </p>
+     *
+     * @param name name of the property
+     * @return value of the property, null when it is not defined
+     */
+    String resolve(String name);
+
+    /**
+     * Returns the resolver of the properties from given map.
+     *
+     * @param properties property values by their names
+     * @return resolver backed by the map
+     */
+    static PropertyResolver of(Map<String, String> properties) {
+        return properties::get;
+    }
+
+    /**
+     * Returns the resolver of the system properties falling back to the environment variables.
+     *
+     * @return resolver of the system properties and the environment variables
+     */
+    static PropertyResolver system() {
+        return name -> {
+            String value = System.getProperty(name);
+            return value != null ? value : System.getenv(name);
+        };
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the resources with the same name from the directories and the JAR files of the classpath.
+ *
+ * <p>
+ * The JAR files are opened with the zip file system, so the entries are read directly without extraction.
+ * The roots are read in parallel, but the resources are returned in the order of the roots.
+ * The resources found by a class loader in other locations, like nested JAR files, are read through their URLs.
+ * </p>
+ */
+final class ResourceReader {
+    /**
+     * Content of the resource found in one of the roots.
+     */
+    static final class Resource {
+        private final String uri;
+        private final byte[] content;
+
+        Resource(String uri, byte[] content) {
+            this.uri = uri;
+            this.content = content;
+        }
+
+        String getUri() {
+            return uri;
+        }
+
+        byte[] getContent() {
+            return content;
+        }
+    }
+
+    private ResourceReader() {
+    }
+
+    /**
+     * Reads the resource from each location where given class loader finds it.
+     *
+     * @param name name of the resource, for instance 'META-INF/beans.xml'
+     * @param classLoader class loader which finds the resources
+     * @param pool pool used to read the resources
+     * @return found resources in the order returned by {@link ClassLoader#getResources(String)}
+     */
+    static List<Resource> read(String name, ClassLoader classLoader, ForkJoinPool pool) throws IOException {
+        String relative = name.startsWith("/") ? name.substring(1) : name;
+        Map<String, URL> distinct = new LinkedHashMap<>();
+        for (URL url : Collections.list(classLoader.getResources(relative))) {
+            distinct.putIfAbsent(url.toString(), url);
+        }
+        return readAll(new ArrayList<>(distinct.values()), pool, url -> read(relative, url));
+    }
+
+    /**
+     * Reads the resource from each of the roots which contain it.
+     *
+     * @param name name of the resource relative to the root, for instance 'META-INF/beans.xml'
+     * @param roots directories and JAR files, the duplicates are skipped
+     * @param pool pool used to read the roots
+     * @return found resources in the order of the roots
+     */
+    static List<Resource> read(String name, List<Path> roots, ForkJoinPool pool) throws IOException {
+        String relative = name.startsWith("/") ? name.substring(1) : name;
+        Set<Path> distinct = new LinkedHashSet<>();
+        for (Path root : roots) {
+            distinct.add(root.toAbsolutePath().normalize());
+        }
+        return readAll(new ArrayList<>(distinct), pool, root -> read(relative, root));
+    }
+
+    private static <T> List<Resource> readAll(List<T> locations, ForkJoinPool pool,
+            ParallelParsing.Function<T, Resource> reader) throws IOException {
+        List<Resource> resources;
+        try {
+            resources = ParallelParsing.map(locations, pool, reader);
+        } catch (SAXException e) {
+            // resources are only read
+            throw new IllegalStateException(e);
+        }
+        List<Resource> result = new ArrayList<>();
+        for (Resource resource : resources) {
+            if (resource != null) {
+                result.add(resource);
+            }
+        }
+        return result;
+    }
+
+    private static Resource read(String name, URL url) throws IOException {
+        Path root = root(name, url);
+        if (root != null) {
+            // read the directories and the JAR files in the same way as the explicit roots
+            return read(name, root);
+        }
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            return new Resource(url.toString(), content.toByteArray());
+        }
+    }
+
+    /**
+     * Returns the local directory or JAR file which contains the resource with given URL, null if there is none.
+     */
+    private static Path root(String name, URL url) {
+        try {
+            if ("file".equals(url.getProtocol())) {
+                Path root = Paths.get(url.toURI());
+                for (String segment : name.split("/")) {
+                    if (!segment.isEmpty()) {
+                        root = root.getParent();
+                    }
+                }
+                return root;
+            } else if ("jar".equals(url.getProtocol())) {
+                String file = url.getFile();
+                int separator = file.indexOf("!/");
+                if (separator == -1 || !file.substring(separator + 2).equals(name)) {
+                    // nested JAR file
+                    return null;
+                }
+                return FragmentCache.toLocalFile(file.substring(0, separator));
+            }
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // not a local file
+        }
+        return null;
+    }
+
+    private static Resource read(String name, Path root) throws IOException {
+        if (Files.isDirectory(root)) {
+            Path file = root.resolve(name);
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            return new Resource(file.toUri().toString(), Files.readAllBytes(file));
+        }
+        if (!Files.isRegularFile(root)) {
+            // classpath entries which do not exist are ignored
+            return null;
+        }
+        try (FileSystem zip = FileSystems.newFileSystem(root, (ClassLoader) null)) {
+            Path entry = zip.getPath(name);
+            if (!Files.isRegularFile(entry)) {
+                return null;
+            }
+            return new Resource(entry.toUri().toString(), Files.readAllBytes(entry));
+        } catch (ProviderNotFoundException | ZipException e) {
+            // not a JAR file: no provider accepts a file without the zip signature
+            // and the zip provider rejects a file which has it but is not a valid archive
+            return null;
+        }
+    }
+}
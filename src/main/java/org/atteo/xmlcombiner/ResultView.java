@@ -0,0 +1,876 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Read-only views of the merged document as it would be returned by {@link XmlCombiner#buildDocument()}.
+ *
+ * <p>
+ * The views walk the result tree directly and skip 'combine.*' attributes and {@link CombineSelf#DEFAULTS}
+ * elements on the fly, so the tree is neither modified nor copied. The placeholders are substituted on the fly
+ * as well, a new {@link PlaceholderSubstitution} is used for each read.
+ * </p>
+ */
+final class ResultView {
+    private static final String XMLNS_PREFIX = XMLConstants.XMLNS_ATTRIBUTE + ":";
+
+    private ResultView() {
+    }
+
+    /**
+     * Returns the children of the element without {@link CombineSelf#DEFAULTS} elements and the nodes preceding them.
+     */
+    static List<Node> visibleChildren(Element element, MergeRules.State rules) {
+        Context context = Context.fromElement(element);
+        context.setRules(rules);
+        List<Node> nodes = new ArrayList<>();
+        for (Context child : context.groupChildContexts()) {
+            if (child.getElement() != null && XmlCombiner.getCombineSelf(child) == CombineSelf.DEFAULTS) {
+                continue;
+            }
+            nodes.addAll(child.getNeighbours());
+            if (child.getElement() != null) {
+                nodes.add(child.getElement());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the value of the attribute or the text with the placeholders substituted.
+     */
+    private static String value(Node node, PlaceholderSubstitution substitution) {
+        String value = node.getNodeValue();
+        if (substitution == null) {
+            return value;
+        } else if (node instanceof Attr) {
+            return substitution.substitute(value, "@" + node.getNodeName());
+        } else if (node.getParentNode() instanceof Element) {
+            // like buildDocument() does not substitute the text of entity references
+            return substitution.substitute(value, "text()");
+        }
+        return value;
+    }
+
+    private static boolean isNamespaceDeclaration(Attr attribute) {
+        String name = attribute.getName();
+        return name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLNS_PREFIX);
+    }
+
+    private static String declaredPrefix(Attr attribute) {
+        String name = attribute.getName();
+        return name.equals(XMLConstants.XMLNS_ATTRIBUTE) ? "" : name.substring(XMLNS_PREFIX.length());
+    }
+
+    private static String prefix(Node node) {
+        String name = node.getNodeName();
+        int colon = name.indexOf(':');
+        return colon == -1 ? "" : name.substring(0, colon);
+    }
+
+    private static String localName(Node node) {
+        if (node.getLocalName() != null) {
+            return node.getLocalName();
+        }
+        String name = node.getNodeName();
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    /**
+     * Returns the namespace of the node, resolving its prefix when the document is not namespace aware.
+     */
+    private static String namespaceURI(Node node) {
+        if (node.getLocalName() != null) {
+            return node.getNamespaceURI() == null ? "" : node.getNamespaceURI();
+        }
+        String prefix = prefix(node);
+        if (node instanceof Attr) {
+            if (prefix.isEmpty()) {
+                return "";
+            }
+            node = ((Attr) node).getOwnerElement();
+        }
+        String namespace = lookupNamespaceURI(node, prefix);
+        return namespace == null ? "" : namespace;
+    }
+
+    /**
+     * Finds the namespace bound to the prefix in the scope of the node.
+     */
+    static String lookupNamespaceURI(Node node, String prefix) {
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        } else if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+            return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+        }
+        String name = prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLNS_PREFIX + prefix;
+        for (; node instanceof Element; node = node.getParentNode()) {
+            Attr declaration = ((Element) node).getAttributeNode(name);
+            if (declaration != null) {
+                return declaration.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Emits the result as SAX events, see {@link XmlCombiner#toSource()}.
+     */
+    static final class SaxReader implements XMLReader {
+        private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+        private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+        private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+        private final Document document;
+        private final MergeRules.State rules;
+        private final Supplier<PlaceholderSubstitution> substitutions;
+        private PlaceholderSubstitution substitution;
+        private ContentHandler contentHandler = new DefaultHandler();
+        private LexicalHandler lexicalHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+        private boolean namespacePrefixes;
+
+        SaxReader(Document document, MergeRules.State rules, Supplier<PlaceholderSubstitution> substitutions) {
+            this.document = document;
+            this.rules = rules;
+            this.substitutions = substitutions;
+        }
+
+        @Override
+        public boolean getFeature(String name) throws SAXNotRecognizedException {
+            if (NAMESPACES.equals(name)) {
+                return true;
+            } else if (NAMESPACE_PREFIXES.equals(name)) {
+                return namespacePrefixes;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (NAMESPACES.equals(name)) {
+                if (!value) {
+                    throw new SAXNotSupportedException(name);
+                }
+            } else if (NAMESPACE_PREFIXES.equals(name)) {
+                namespacePrefixes = value;
+            } else {
+                throw new SAXNotRecognizedException(name);
+            }
+        }
+
+        @Override
+        public Object getProperty(String name) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER.equals(name)) {
+                return lexicalHandler;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER.equals(name)) {
+                lexicalHandler = (LexicalHandler) value;
+                return;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setEntityResolver(EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+
+        /**
+         * Emits the result, the input source is ignored.
+         */
+        @Override
+        public void parse(InputSource input) throws SAXException {
+            parse();
+        }
+
+        /**
+         * Emits the result, the system id is ignored.
+         */
+        @Override
+        public void parse(String systemId) throws SAXException {
+            parse();
+        }
+
+        private void parse() throws SAXException {
+            substitution = substitutions.get();
+            contentHandler.startDocument();
+            for (Node node = document.getFirstChild(); node != null; node = node.getNextSibling()) {
+                emit(node, node == document.getDocumentElement() ? rules : null);
+            }
+            contentHandler.endDocument();
+        }
+
+        private void emit(Node node, MergeRules.State nodeRules) throws SAXException {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    emitElement((Element) node, nodeRules);
+                    break;
+                case Node.TEXT_NODE:
+                    characters(value(node, substitution));
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    if (lexicalHandler != null) {
+                        lexicalHandler.startCDATA();
+                    }
+                    characters(value(node, substitution));
+                    if (lexicalHandler != null) {
+                        lexicalHandler.endCDATA();
+                    }
+                    break;
+                case Node.COMMENT_NODE:
+                    if (lexicalHandler != null) {
+                        char[] chars = node.getNodeValue().toCharArray();
+                        lexicalHandler.comment(chars, 0, chars.length);
+                    }
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    contentHandler.processingInstruction(node.getNodeName(), node.getNodeValue());
+                    break;
+                case Node.ENTITY_REFERENCE_NODE:
+                    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        emit(child, null);
+                    }
+                    break;
+                default:
+                    // document type declarations are not reported
+            }
+        }
+
+        private void characters(String text) throws SAXException {
+            char[] chars = text.toCharArray();
+            contentHandler.characters(chars, 0, chars.length);
+        }
+
+        private void emitElement(Element element, MergeRules.State elementRules) throws SAXException {
+            if (substitution != null) {
+                substitution.enter(element, elementRules);
+            }
+            List<String> prefixes = new ArrayList<>();
+            AttributesImpl attributes = new AttributesImpl();
+            NamedNodeMap map = element.getAttributes();
+            for (int i = 0; i < map.getLength(); i++) {
+                Attr attribute = (Attr) map.item(i);
+                if (XmlCombiner.isCombineAttribute(attribute.getName())) {
+                    continue;
+                }
+                if (isNamespaceDeclaration(attribute)) {
+                    String prefix = declaredPrefix(attribute);
+                    contentHandler.startPrefixMapping(prefix, attribute.getValue());
+                    prefixes.add(prefix);
+                    if (!namespacePrefixes) {
+                        continue;
+                    }
+                }
+                attributes.addAttribute(namespaceURI(attribute), localName(attribute), attribute.getName(), "CDATA",
+                        value(attribute, substitution));
+            }
+            String namespace = namespaceURI(element);
+            String localName = localName(element);
+            contentHandler.startElement(namespace, localName, element.getTagName(), attributes);
+            for (Node child : visibleChildren(element, elementRules)) {
+                emit(child, child instanceof Element && elementRules != null
+                        ? elementRules.next(((Element) child).getTagName()) : null);
+            }
+            contentHandler.endElement(namespace, localName, element.getTagName());
+            for (String prefix : prefixes) {
+                contentHandler.endPrefixMapping(prefix);
+            }
+            if (substitution != null) {
+                substitution.exit();
+            }
+        }
+    }
+
+    /**
+     * Pulls the result as StAX events, see {@link XmlCombiner#toXMLStreamReader()}.
+     */
+    static final class StreamReader implements XMLStreamReader {
+        private static final Location UNKNOWN_LOCATION = new Location() {
+            @Override
+            public int getLineNumber() {
+                return -1;
+            }
+
+            @Override
+            public int getColumnNumber() {
+                return -1;
+            }
+
+            @Override
+            public int getCharacterOffset() {
+                return -1;
+            }
+
+            @Override
+            public String getPublicId() {
+                return null;
+            }
+
+            @Override
+            public String getSystemId() {
+                return null;
+            }
+        };
+
+        /**
+         * Children of the element, entity reference or the document which are being read.
+         */
+        private static final class Frame {
+            private final Node node;
+            private final MergeRules.State rules;
+            private final List<Node> children;
+            private int index;
+
+            Frame(Node node, MergeRules.State rules, List<Node> children) {
+                this.node = node;
+                this.rules = rules;
+                this.children = children;
+            }
+        }
+
+        private final Document document;
+        private final MergeRules.State rules;
+        private final Supplier<PlaceholderSubstitution> substitutions;
+        private PlaceholderSubstitution substitution;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private int eventType = START_DOCUMENT;
+        private Node current;
+        private MergeRules.State currentRules;
+        private final List<Attr> attributes = new ArrayList<>();
+        /**
+         * Values of the attributes of the current start element with the placeholders substituted.
+         */
+        private final List<String> attributeValues = new ArrayList<>();
+        private final List<Attr> namespaces = new ArrayList<>();
+        private String currentText;
+        private char[] text;
+
+        StreamReader(Document document, MergeRules.State rules, Supplier<PlaceholderSubstitution> substitutions) {
+            this.document = document;
+            this.rules = rules;
+            this.substitutions = substitutions;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            if (eventType == START_DOCUMENT) {
+                substitution = substitutions.get();
+                List<Node> children = new ArrayList<>();
+                for (Node node = document.getFirstChild(); node != null; node = node.getNextSibling()) {
+                    children.add(node);
+                }
+                frames.push(new Frame(document, null, children));
+            } else if (eventType == START_ELEMENT) {
+                frames.push(new Frame(current, currentRules, visibleChildren((Element) current, currentRules)));
+            } else if (eventType == END_DOCUMENT) {
+                throw new NoSuchElementException("No more events");
+            }
+            text = null;
+            while (true) {
+                Frame frame = frames.peek();
+                if (frame.index == frame.children.size()) {
+                    frames.pop();
+                    if (frame.node instanceof Element) {
+                        if (substitution != null) {
+                            substitution.exit();
+                        }
+                        return setCurrent(END_ELEMENT, frame.node);
+                    } else if (frame.node instanceof Document) {
+                        current = null;
+                        return eventType = END_DOCUMENT;
+                    }
+                    continue;
+                }
+                Node node = frame.children.get(frame.index++);
+                switch (node.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        if (frame.node == document) {
+                            currentRules = rules;
+                        } else {
+                            currentRules = frame.rules == null ? null : frame.rules.next(node.getNodeName());
+                        }
+                        if (substitution != null) {
+                            substitution.enter((Element) node, currentRules);
+                        }
+                        return setCurrent(START_ELEMENT, node);
+                    case Node.TEXT_NODE:
+                        return setCurrent(CHARACTERS, node);
+                    case Node.CDATA_SECTION_NODE:
+                        return setCurrent(CDATA, node);
+                    case Node.COMMENT_NODE:
+                        return setCurrent(COMMENT, node);
+                    case Node.PROCESSING_INSTRUCTION_NODE:
+                        return setCurrent(PROCESSING_INSTRUCTION, node);
+                    case Node.ENTITY_REFERENCE_NODE:
+                        List<Node> children = new ArrayList<>();
+                        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                            children.add(child);
+                        }
+                        frames.push(new Frame(node, null, children));
+                        break;
+                    default:
+                        // document type declarations are not reported
+                }
+            }
+        }
+
+        private int setCurrent(int eventType, Node node) {
+            this.eventType = eventType;
+            this.current = node;
+            currentText = null;
+            if (eventType == CHARACTERS || eventType == CDATA) {
+                currentText = value(node, substitution);
+            } else if (eventType == START_ELEMENT || eventType == END_ELEMENT) {
+                attributes.clear();
+                attributeValues.clear();
+                namespaces.clear();
+                NamedNodeMap map = node.getAttributes();
+                for (int i = 0; i < map.getLength(); i++) {
+                    Attr attribute = (Attr) map.item(i);
+                    if (XmlCombiner.isCombineAttribute(attribute.getName())) {
+                        continue;
+                    }
+                    if (isNamespaceDeclaration(attribute)) {
+                        namespaces.add(attribute);
+                    } else {
+                        attributes.add(attribute);
+                        if (eventType == START_ELEMENT) {
+                            attributeValues.add(value(attribute, substitution));
+                        }
+                    }
+                }
+            }
+            return eventType;
+        }
+
+        @Override
+        public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+            if (type != eventType) {
+                throw new XMLStreamException("Expected event " + type + " but was " + eventType);
+            }
+            if (namespaceURI != null && !namespaceURI.equals(namespaceURI(current))) {
+                throw new XMLStreamException("Expected namespace " + namespaceURI);
+            }
+            if (localName != null && !localName.equals(getLocalName())) {
+                throw new XMLStreamException("Expected local name " + localName);
+            }
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            if (eventType != START_ELEMENT) {
+                throw new XMLStreamException("Current event is not START_ELEMENT");
+            }
+            StringBuilder content = new StringBuilder();
+            int event = next();
+            while (event != END_ELEMENT) {
+                if (event == CHARACTERS || event == CDATA || event == SPACE || event == ENTITY_REFERENCE) {
+                    content.append(getText());
+                } else if (event == START_ELEMENT) {
+                    throw new XMLStreamException("Element text content may not contain START_ELEMENT");
+                } else if (event == END_DOCUMENT) {
+                    throw new XMLStreamException("Unexpected end of document when reading element text content");
+                }
+                event = next();
+            }
+            return content.toString();
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while ((event == CHARACTERS && isWhiteSpace()) || (event == CDATA && isWhiteSpace())
+                    || event == SPACE || event == PROCESSING_INSTRUCTION || event == COMMENT) {
+                event = next();
+            }
+            if (event != START_ELEMENT && event != END_ELEMENT) {
+                throw new XMLStreamException("Expected start or end tag");
+            }
+            return event;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return eventType != END_DOCUMENT;
+        }
+
+        @Override
+        public void close() {
+            frames.clear();
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return getNamespaceContext().getNamespaceURI(prefix);
+        }
+
+        @Override
+        public boolean isStartElement() {
+            return eventType == START_ELEMENT;
+        }
+
+        @Override
+        public boolean isEndElement() {
+            return eventType == END_ELEMENT;
+        }
+
+        @Override
+        public boolean isCharacters() {
+            return eventType == CHARACTERS;
+        }
+
+        @Override
+        public boolean isWhiteSpace() {
+            if (eventType != CHARACTERS && eventType != CDATA) {
+                return false;
+            }
+            return currentText.trim().isEmpty();
+        }
+
+        @Override
+        public String getAttributeValue(String namespaceURI, String localName) {
+            requireStartElement();
+            for (int i = 0; i < attributes.size(); i++) {
+                Attr attribute = attributes.get(i);
+                if (localName.equals(localName(attribute))
+                        && (namespaceURI == null || namespaceURI.equals(namespaceURI(attribute)))) {
+                    return attributeValues.get(i);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int getAttributeCount() {
+            requireStartElement();
+            return attributes.size();
+        }
+
+        @Override
+        public QName getAttributeName(int index) {
+            Attr attribute = attribute(index);
+            return new QName(namespaceURI(attribute), localName(attribute), prefix(attribute));
+        }
+
+        @Override
+        public String getAttributeNamespace(int index) {
+            String namespace = namespaceURI(attribute(index));
+            return namespace.isEmpty() ? null : namespace;
+        }
+
+        @Override
+        public String getAttributeLocalName(int index) {
+            return localName(attribute(index));
+        }
+
+        @Override
+        public String getAttributePrefix(int index) {
+            return prefix(attribute(index));
+        }
+
+        @Override
+        public String getAttributeType(int index) {
+            attribute(index);
+            return "CDATA";
+        }
+
+        @Override
+        public String getAttributeValue(int index) {
+            attribute(index);
+            return attributeValues.get(index);
+        }
+
+        @Override
+        public boolean isAttributeSpecified(int index) {
+            return attribute(index).getSpecified();
+        }
+
+        private Attr attribute(int index) {
+            requireStartElement();
+            return attributes.get(index);
+        }
+
+        private void requireStartElement() {
+            if (eventType != START_ELEMENT) {
+                throw new IllegalStateException("Current event is not START_ELEMENT");
+            }
+        }
+
+        @Override
+        public int getNamespaceCount() {
+            requireElement();
+            return namespaces.size();
+        }
+
+        @Override
+        public String getNamespacePrefix(int index) {
+            requireElement();
+            String prefix = declaredPrefix(namespaces.get(index));
+            return prefix.isEmpty() ? null : prefix;
+        }
+
+        @Override
+        public String getNamespaceURI(int index) {
+            requireElement();
+            return namespaces.get(index).getValue();
+        }
+
+        private void requireElement() {
+            if (eventType != START_ELEMENT && eventType != END_ELEMENT) {
+                throw new IllegalStateException("Current event is not START_ELEMENT or END_ELEMENT");
+            }
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            Node scope = current instanceof Element ? current : frames.isEmpty() ? null : frames.peek().node;
+            return new NamespaceContext() {
+                @Override
+                public String getNamespaceURI(String prefix) {
+                    if (prefix == null) {
+                        throw new IllegalArgumentException("Prefix cannot be null");
+                    }
+                    String namespace = lookupNamespaceURI(scope, prefix);
+                    return namespace == null ? XMLConstants.NULL_NS_URI : namespace;
+                }
+
+                @Override
+                public String getPrefix(String namespaceURI) {
+                    Iterator<String> prefixes = getPrefixes(namespaceURI);
+                    return prefixes.hasNext() ? prefixes.next() : null;
+                }
+
+                @Override
+                public Iterator<String> getPrefixes(String namespaceURI) {
+                    if (XMLConstants.XML_NS_URI.equals(namespaceURI)) {
+                        return Collections.singletonList(XMLConstants.XML_NS_PREFIX).iterator();
+                    } else if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)) {
+                        return Collections.singletonList(XMLConstants.XMLNS_ATTRIBUTE).iterator();
+                    }
+                    List<String> prefixes = new ArrayList<>();
+                    for (Node node = scope; node instanceof Element; node = node.getParentNode()) {
+                        NamedNodeMap map = node.getAttributes();
+                        for (int i = 0; i < map.getLength(); i++) {
+                            Attr attribute = (Attr) map.item(i);
+                            if (isNamespaceDeclaration(attribute) && attribute.getValue().equals(namespaceURI)) {
+                                String prefix = declaredPrefix(attribute);
+                                // skip prefixes redeclared closer to the scope
+                                if (!prefixes.contains(prefix) && namespaceURI.equals(getNamespaceURI(prefix))) {
+                                    prefixes.add(prefix);
+                                }
+                            }
+                        }
+                    }
+                    return prefixes.iterator();
+                }
+            };
+        }
+
+        @Override
+        public int getEventType() {
+            return eventType;
+        }
+
+        @Override
+        public String getText() {
+            if (eventType != CHARACTERS && eventType != CDATA && eventType != COMMENT && eventType != SPACE) {
+                throw new IllegalStateException("Current event has no text");
+            }
+            return currentText != null ? currentText : current.getNodeValue();
+        }
+
+        @Override
+        public char[] getTextCharacters() {
+            if (text == null) {
+                text = getText().toCharArray();
+            }
+            return text;
+        }
+
+        @Override
+        public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) {
+            char[] characters = getTextCharacters();
+            int count = Math.max(0, Math.min(length, characters.length - sourceStart));
+            System.arraycopy(characters, sourceStart, target, targetStart, count);
+            return count;
+        }
+
+        @Override
+        public int getTextStart() {
+            return 0;
+        }
+
+        @Override
+        public int getTextLength() {
+            return getTextCharacters().length;
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public boolean hasText() {
+            return eventType == CHARACTERS || eventType == CDATA || eventType == COMMENT || eventType == SPACE;
+        }
+
+        @Override
+        public Location getLocation() {
+            return UNKNOWN_LOCATION;
+        }
+
+        @Override
+        public QName getName() {
+            requireElement();
+            return new QName(namespaceURI(current), localName(current), prefix(current));
+        }
+
+        @Override
+        public String getLocalName() {
+            requireElement();
+            return localName(current);
+        }
+
+        @Override
+        public boolean hasName() {
+            return eventType == START_ELEMENT || eventType == END_ELEMENT;
+        }
+
+        @Override
+        public String getNamespaceURI() {
+            requireElement();
+            String namespace = namespaceURI(current);
+            return namespace.isEmpty() ? null : namespace;
+        }
+
+        @Override
+        public String getPrefix() {
+            requireElement();
+            return prefix(current);
+        }
+
+        @Override
+        public String getVersion() {
+            return null;
+        }
+
+        @Override
+        public boolean isStandalone() {
+            return false;
+        }
+
+        @Override
+        public boolean standaloneSet() {
+            return false;
+        }
+
+        @Override
+        public String getCharacterEncodingScheme() {
+            return null;
+        }
+
+        @Override
+        public String getPITarget() {
+            return eventType == PROCESSING_INSTRUCTION ? current.getNodeName() : null;
+        }
+
+        @Override
+        public String getPIData() {
+            return eventType == PROCESSING_INSTRUCTION ? current.getNodeValue() : null;
+        }
+    }
+}
@@ -16,29 +16,47 @@ package org.atteo.xmlcombiner;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Attr;
@@ -47,7 +65,11 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 /**
  * Combines two or more XML DOM trees.
@@ -85,18 +107,96 @@ public class XmlCombiner {
     }
 
     private final DocumentBuilder documentBuilder;
-    private final Document document;
+    private final XMLReader xmlReader;
+    private final boolean namespaceAware;
+    private Document document;
     private final List<String> defaultAttributeNames;
+    /**
+     * Attributes with merge directives which are removed from the result.
+     */
+    private static final List<String> COMBINE_ATTRIBUTE_NAMES = Arrays.asList(CombineSelf.ATTRIBUTE_NAME,
+            CombineChildren.ATTRIBUTE_NAME, Context.KEYS_ATTRIBUTE_NAME, Context.ID_ATTRIBUTE_NAME);
+    private static final String XINCLUDE_NAMESPACE = "http://www.w3.org/2001/XInclude";
     private static final Filter NULL_FILTER = new Filter() {
         @Override
         public void postProcess(Element recessive, Element dominant, Element result) {}
     };
     private Filter filter = NULL_FILTER;
-    private final ChildContextsMapper childContextMapper = new KeyAttributesChildContextsMapper();
+    /**
+     * Directives and keys precomputed by {@link CompiledLayer} for the dominant elements created from it.
+     * They are valid only until the elements are merged, so the map is cleared after each {@link #combine(Element)}.
+     */
+    private final Map<Element, CompiledLayer.Directives> compiledElements = new IdentityHashMap<>();
+    /**
+     * Maps the children to their keys, reusing the maps between the merges, see
+     * {@link KeyAttributesChildContextsMapper#release(Map)}.
+     */
+    private final KeyAttributesChildContextsMapper childContextMapper =
+            new KeyAttributesChildContextsMapper(compiledElements);
+    /**
+     * Sets of the tag names of the dominant children reused between the merges.
+     */
+    private final Deque<Set<String>> freeTagNameSets = new ArrayDeque<>();
+    /**
+     * Parsed values of the 'combine.keys' attributes reused between the merges.
+     */
+    private final Map<String, List<String>> keyLists = new HashMap<>();
+    /**
+     * Whether the nodes of the combined element belong to the document and can be moved instead of copied.
+     */
+    private boolean consumeDominant;
+    /**
+     * Children of each merged element grouped by their keys, null when indexing is disabled.
+     */
+    private Map<Element, Map<Key, List<Element>>> index;
+    /**
+     * Dominant elements which cannot be copied in bulk, see {@link #isDirectiveFree(Element, MergeRules.State)}.
+     * The set is retained between the merges and is cleared after each {@link #combine(Element)}.
+     */
+    private final Set<Element> directiveElements = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * Whether {@link #combine(Element)} is in progress, only then the elements can be copied in bulk.
+     */
+    private boolean bulkCopyEnabled;
+    /**
+     * Serializer of the result, created on first use.
+     */
+    private Transformer transformer;
+    private AsyncFileReader asyncReader;
+    private boolean ignoreWhitespace;
+    private MergeRules mergeRules;
+    private LayerCache layerCache;
+    private FragmentCache fragmentCache;
+    private PropertyResolver propertyResolver;
+    private String propertiesElement;
+    private List<String> unresolvedPlaceholders = emptyList();
+    /**
+     * Entity resolver of the parser without the fragment cache.
+     */
+    private final EntityResolver entityResolver;
 
     /**
      * CLI entry point that combines provided XML files and prints the result.
      *
+     * <p>
+     * Files are parsed using {@link ParserProfile#offline()} profile. Compressed files are detected automatically.
+     * The result is printed to the standard output, unless '--output' file is given.
+     * The compression of the result is selected with '--compress none|gzip|deflate' option
+     * or from the extension of the output file. The output file is replaced atomically and only when
+     * its content changed.
+     * Plain files are parsed directly into the result. Directories and glob patterns are expanded
+     * by {@link LayerLoader}, an argument is a pattern only when no file with that name exists.
+     * The '--cache' option sets the cache directory of the loader, which is then used for all the inputs.
+     * With '--watch' option the inputs are merged again whenever they change, see {@link LayerWatcher}.
+     * The '--rules' option loads {@link MergeRules} which apply to the inputs without 'combine.*' attributes.
+     * The '--resource name' option combines the resources with that name found in the directories
+     * and JAR files given instead of the input files, or on the classpath when none are given.
+     * The '--digest' option prints the {@link OutputDigest} of the result to the standard error,
+     * '--canonical-digest' adds the digest of its canonical form.
+     * Additionally 'compile' subcommand converts XML file into {@link CompiledLayer}
+     * and 'inspect' subcommand prints the content of compiled layers.
+     * </p>
+     *
      * @param args command-line arguments such as files and --key flags
      * @throws ParserConfigurationException when the parser cannot be configured
      * @throws SAXException when parsing any input document fails
@@ -105,44 +205,170 @@ public class XmlCombiner {
      */
     public static void main(String[] args)
             throws ParserConfigurationException, SAXException, IOException, TransformerException {
-        List<Path> files = new ArrayList<>();
+        List<String> files = new ArrayList<>();
         List<String> ids = new ArrayList<>();
+        Path cache = null;
+        Path output = null;
+        Path rules = null;
+        String resource = null;
+        Compression compression = null;
+        boolean watch = false;
+        boolean digest = false;
+        boolean canonical = false;
 
         boolean onlyFiles = false;
+        String command = null;
+        if (args.length > 0 && (args[0].equals("compile") || args[0].equals("inspect"))) {
+            command = args[0];
+        }
 
-        for (int i = 0; i < args.length; i++) {
+        for (int i = command == null ? 0 : 1; i < args.length; i++) {
             if (!onlyFiles) {
                 switch (args[i]) {
                     case "--key":
                         ids.add(args[i + 1]);
                         i++;
                         break;
+                    case "--cache":
+                        cache = Paths.get(args[i + 1]);
+                        i++;
+                        break;
+                    case "--watch":
+                        watch = true;
+                        break;
+                    case "--output":
+                        output = Paths.get(args[i + 1]);
+                        i++;
+                        break;
+                    case "--rules":
+                        rules = Paths.get(args[i + 1]);
+                        i++;
+                        break;
+                    case "--resource":
+                        resource = args[i + 1];
+                        i++;
+                        break;
+                    case "--digest":
+                        digest = true;
+                        break;
+                    case "--canonical-digest":
+                        digest = true;
+                        canonical = true;
+                        break;
+                    case "--compress":
+                        compression = Compression.valueOf(args[i + 1].toUpperCase());
+                        i++;
+                        break;
                     case "--":
                         onlyFiles = true;
                         break;
                     default:
-                        files.add(Paths.get(args[i]));
+                        files.add(args[i]);
                 }
             } else {
-                files.add(Paths.get(args[i]));
+                files.add(args[i]);
             }
         }
 
-        XmlCombiner xmlCombiner = new XmlCombiner(ids);
+        if ("compile".equals(command)) {
+            if (files.size() != 2) {
+                throw new IllegalArgumentException("Usage: compile <input.xml> <output>");
+            }
+            DocumentBuilder documentBuilder = ParserProfile.offline().newDocumentBuilder();
+            Element root = documentBuilder.parse(Paths.get(files.get(0)).toFile()).getDocumentElement();
+            CompiledLayer.compile(root, ids).write(Paths.get(files.get(1)));
+            return;
+        } else if ("inspect".equals(command)) {
+            for (String file : files) {
+                CompiledLayer.load(Paths.get(file)).describe(System.out);
+            }
+            return;
+        }
 
-        for (Path file : files) {
-            xmlCombiner.combine(file);
+        MergeRules mergeRules = rules != null ? MergeRules.load(rules) : null;
+        if (watch) {
+            if (output == null) {
+                throw new IllegalArgumentException("--watch requires --output");
+            }
+            if (resource != null) {
+                throw new IllegalArgumentException("--watch cannot be combined with --resource");
+            }
+            if (digest) {
+                throw new IllegalArgumentException("--watch cannot be combined with --digest");
+            }
+            try (LayerWatcher watcher = new LayerWatcher(ParserProfile.offline(), ids, files, output)) {
+                watcher.getLoader().setCacheDirectory(cache);
+                watcher.setCompression(compression);
+                watcher.setListener(cycle -> System.err.println(cycle));
+                watcher.setMergeRules(mergeRules);
+                watcher.run();
+            }
+            return;
         }
 
-        xmlCombiner.buildDocument(System.out);
+        XmlCombiner xmlCombiner = new XmlCombiner(ParserProfile.offline(), ids);
+        xmlCombiner.setMergeRules(mergeRules);
+        if (resource != null) {
+            List<Path> roots = new ArrayList<>();
+            for (String file : files) {
+                roots.add(Paths.get(file));
+            }
+            if (roots.isEmpty()) {
+                xmlCombiner.combineResources(resource);
+            } else {
+                xmlCombiner.combineResources(resource, roots);
+            }
+        } else if (cache == null && files.stream().allMatch(file -> Files.isRegularFile(Paths.get(file)))) {
+            // plain files need neither the expansion nor the priorities, parse them directly into the result
+            for (String file : files) {
+                xmlCombiner.combine(Paths.get(file));
+            }
+        } else {
+            LayerLoader loader = new LayerLoader(ParserProfile.offline());
+            loader.setKeyAttributeNames(ids);
+            loader.setCacheDirectory(cache);
+
+            for (CompiledLayer layer : loader.load(files)) {
+                xmlCombiner.combine(layer);
+            }
+        }
+
+        boolean computeDigest = digest;
+        boolean computeCanonical = canonical;
+        OutputDigest[] outputDigest = new OutputDigest[1];
+        AtomicFileWriter.Content content = out -> {
+            if (computeDigest) {
+                outputDigest[0] = xmlCombiner.buildDocumentWithDigest(out, computeCanonical);
+            } else {
+                xmlCombiner.buildDocument(out);
+            }
+        };
+        if (output != null) {
+            Compression outputCompression = compression != null ? compression : Compression.forPath(output);
+            AtomicFileWriter.writeIfChanged(output, out -> {
+                try (OutputStream compressed = outputCompression.compress(out)) {
+                    content.writeTo(compressed);
+                }
+            });
+        } else if (compression != null && compression != Compression.NONE) {
+            OutputStream out = compression.compress(System.out);
+            content.writeTo(out);
+            Compression.finish(out);
+        } else {
+            content.writeTo(System.out);
+        }
+        if (outputDigest[0] != null) {
+            System.err.println(outputDigest[0]);
+        }
     }
 
     /**
      * Creates XML combiner using default {@link DocumentBuilder}.
      * @throws ParserConfigurationException when {@link DocumentBuilder} creation fails
+     * @see ParserProfile#standard()
      */
     public XmlCombiner() throws ParserConfigurationException {
-        this(DocumentBuilderFactory.newInstance().newDocumentBuilder());
+        this(ParserProfile.standard().newDocumentBuilder());
     }
 
     /**
@@ -171,8 +397,36 @@ public class XmlCombiner {
      * @param keyAttributeNames attribute names used as element keys
      */
     public XmlCombiner(DocumentBuilder documentBuilder, List<String> keyAttributeNames) {
+        this(documentBuilder, null, false, keyAttributeNames);
+    }
 
+    /**
+     * Creates XML combiner using given parser profile and key attributes.
+     *
+     * <p>
+     * The combined files and streams are parsed with SAX directly into the document of the combiner,
+     * no intermediate DOM document is created.
+     * </p>
+     *
+     * @param profile parser profile
+     * @param keyAttributeNames attribute names used as element keys
+     * @throws ParserConfigurationException when the parser cannot be configured
+     * @throws SAXException when the parser cannot be created
+     */
+    public XmlCombiner(ParserProfile profile, List<String> keyAttributeNames)
+            throws ParserConfigurationException, SAXException {
+        this(profile.newDocumentBuilder(), profile.newXMLReader(), profile.isNamespaceAware(), keyAttributeNames);
+    }
+
+    private XmlCombiner(DocumentBuilder documentBuilder, XMLReader xmlReader, boolean namespaceAware,
+            List<String> keyAttributeNames) {
         this.documentBuilder = documentBuilder;
+        this.xmlReader = xmlReader;
+        this.entityResolver = xmlReader == null ? null : xmlReader.getEntityResolver();
+        if (xmlReader != null) {
+            xmlReader.setEntityResolver(Dependencies.entityResolver(entityResolver));
+        }
+        this.namespaceAware = namespaceAware;
         document = documentBuilder.newDocument();
         this.defaultAttributeNames = keyAttributeNames;
     }
@@ -182,113 +436,1044 @@ public class XmlCombiner {
      *
      * @param keyAttributeNames attribute names used as element keys
      * @throws ParserConfigurationException when the default parser cannot be created
+     * @see ParserProfile#standard()
+     */
+    public XmlCombiner(List<String> keyAttributeNames) throws ParserConfigurationException {
+        this(ParserProfile.standard().newDocumentBuilder(), keyAttributeNames);
+    }
+
+    /**
+     * Discards the merged result, so the combiner can be reused for another merge.
+     *
+     * <p>
+     * The parser, the serializer and the settings, like the filter, the merge rules and the caches, are kept,
+     * so a reused combiner does not create them again. The scratch structures of the merge, the maps and lists
+     * which group the children by their keys, the scratch space for the key attributes and the sets of tag names,
+     * are cleared but kept, so the steady-state merges allocate mostly the result and the keys of its elements.
+     * The document returned earlier by {@link #buildDocument()} is not modified.
+     * </p>
+     *
+     * @see XmlCombinerPool
+     */
+    public void reset() {
+        document = documentBuilder.newDocument();
+        if (index != null) {
+            index.clear();
+        }
+        childContextMapper.reset();
+        keyLists.clear();
+        unresolvedPlaceholders = emptyList();
+    }
+
+    /**
+     * Sets the optional filter that post-processes merged elements.
+     *
+     * @param filter post-processing filter (nullable)
+     */
+    public void setFilter(Filter filter) {
+        if (filter == null) {
+            this.filter = NULL_FILTER;
+            return;
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Enables ignoring of the whitespace between elements.
+     *
+     * <p>
+     * Whitespace-only text nodes in the elements which contain child elements and no other text are discarded
+     * when the documents are combined, so they are neither merged nor copied. Comments and processing
+     * instructions are kept in front of the elements they precede. Trailing comments of the recessive element
+     * are kept when the children are appended. The result is indented consistently with four spaces
+     * by {@link #buildDocument()}. Elements with mixed content are left intact.
+     * </p>
+     *
+     * @param ignoreWhitespace whether to discard whitespace between elements and indent the result
+     */
+    public void setIgnoreWhitespace(boolean ignoreWhitespace) {
+        this.ignoreWhitespace = ignoreWhitespace;
+    }
+
+    /**
+     * Sets the merge rules which assign the merge directives to the elements by their paths.
+     *
+     * <p>
+     * The rules are consulted only for the directives which are not given by the attributes of the element itself.
+     * The automaton of the rules is advanced by one transition for each element the merge descends into,
+     * so the documents which cannot be modified can be merged without 'combine.*' attributes.
+     * </p>
+     *
+     * @param mergeRules merge rules, null to use only the attributes
+     */
+    public void setMergeRules(MergeRules mergeRules) {
+        this.mergeRules = mergeRules;
+    }
+
+    /**
+     * Sets the cache of the parsed files consulted by {@link #combine(Path)}.
+     *
+     * <p>
+     * On cache miss the file is parsed as usual and additionally compiled into {@link CompiledLayer}
+     * which is stored in the cache. On cache hit the DOM is created from the cached layer without parsing.
+     * </p>
+     *
+     * @param layerCache cache of the parsed files, null to parse the files every time
+     */
+    public void setLayerCache(LayerCache layerCache) {
+        this.layerCache = layerCache;
+    }
+
+    /**
+     * Enables XInclude processing with the included fragments read through given cache.
+     *
+     * <p>
+     * The 'xi:include' elements of the parsed files are replaced with the included content.
+     * Both 'xml' and 'text' parse modes are supported together with 'xi:fallback', but 'xpointer' is not.
+     * Only local files are included, other URIs are first mapped by the entity resolver of the parser,
+     * for instance using {@link ParserProfile#withCatalog(Map) the catalog}. The included documents are parsed
+     * once and reused by all the files and all the combiners sharing the cache.
+     * When the combiner was created with {@link ParserProfile}, local external entities are read
+     * through the cache as well.
+     * </p>
+     *
+     * @param fragmentCache cache of the included fragments, null to disable XInclude processing
+     */
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+        if (xmlReader != null) {
+            xmlReader.setEntityResolver(Dependencies.entityResolver(fragmentCache == null ? entityResolver
+                    : fragmentCache.entityResolver(entityResolver)));
+        }
+    }
+
+    /**
+     * Sets the resolver of '${name}' placeholders substituted in the attribute values and the text
+     * of the merged document.
+     *
+     * <p>
+     * The placeholders are substituted by {@link #buildDocument()} in the same traversal which removes
+     * 'combine.*' attributes, each property is resolved once. The placeholders which cannot be resolved
+     * are left as is and reported by {@link #getUnresolvedPlaceholders()}.
+     * </p>
+     *
+     * @param propertyResolver resolver of the properties, null to substitute only the properties
+     *     defined in the document, see {@link #setPropertiesElement(String)}
+     */
+    public void setPropertyResolver(PropertyResolver propertyResolver) {
+        this.propertyResolver = propertyResolver;
+    }
+
+    /**
+     * Sets the tag name of the element which defines the properties within the merged document.
+     *
+     * <p>
+     * The children of that element of the document element define the properties with their tag names
+     * and text, for instance {@code <properties><host>localhost</host></properties>}. Since the element
+     * is merged like any other, each layer can define or override the properties. The properties
+     * of the {@link #setPropertyResolver(PropertyResolver) resolver} take precedence.
+     * </p>
+     *
+     * @param propertiesElement tag name of the properties element, null to disable
+     */
+    public void setPropertiesElement(String propertiesElement) {
+        this.propertiesElement = propertiesElement;
+    }
+
+    /**
+     * Enables building of the index of merged elements by their key paths.
+     *
+     * <p>
+     * The index is built during the merge from the keys which are computed anyway to pair the elements,
+     * so no additional traversal of the result is needed. It allows to find elements
+     * with {@link #lookup(String)} in time proportional to the depth of the path.
+     * Indexing should be enabled before the first document is combined.
+     * </p>
+     *
+     * @param indexed whether to build the index
+     */
+    public void setIndexed(boolean indexed) {
+        this.index = indexed ? new IdentityHashMap<>() : null;
+    }
+
+    /**
+     * Finds the merged elements at given key path.
+     *
+     * <p>
+     * The path is relative to the document element and consists of steps separated with '/'.
+     * Each step is a tag name followed by the values of all the key attributes of the element,
+     * for instance {@code service[id=foo]/parameter} or {@code service[id='foo'][combine.id='bar']}.
+     * The key attributes are those from the 'combine.keys' attribute of the parent element, or the default ones,
+     * and the 'combine.id' attribute.
+     * </p>
+     *
+     * @param path key path of the elements
+     * @return matching elements, empty if there are none
+     * @throws IllegalStateException when indexing is not enabled, see {@link #setIndexed(boolean)}
+     * @throws IllegalArgumentException when the path is malformed
+     */
+    public List<Element> lookup(String path) {
+        if (index == null) {
+            throw new IllegalStateException("Index is not enabled");
+        }
+        Element root = document.getDocumentElement();
+        if (root == null) {
+            return emptyList();
+        }
+        List<Element> current = singletonList(root);
+        for (Key step : parseKeyPath(path)) {
+            List<Element> next = new ArrayList<>();
+            for (Element element : current) {
+                Map<Key, List<Element>> children = index.get(element);
+                if (children == null) {
+                    continue;
+                }
+                for (Element child : children.getOrDefault(step, emptyList())) {
+                    // skip elements filtered out since then
+                    if (child.getParentNode() == element) {
+                        next.add(child);
+                    }
+                }
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static List<Key> parseKeyPath(String path) {
+        List<Key> steps = new ArrayList<>();
+        int position = 0;
+        while (position < path.length()) {
+            int end = position;
+            while (end < path.length() && path.charAt(end) != '[' && path.charAt(end) != '/') {
+                end++;
+            }
+            String name = path.substring(position, end);
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Missing tag name at position " + position + " of: " + path);
+            }
+            Map<String, String> keys = new LinkedHashMap<>();
+            position = end;
+            while (position < path.length() && path.charAt(position) == '[') {
+                int equals = path.indexOf('=', position);
+                if (equals == -1) {
+                    throw new IllegalArgumentException("Missing '=' at position " + position + " of: " + path);
+                }
+                String attributeName = path.substring(position + 1, equals);
+                int valueStart = equals + 1;
+                int valueEnd;
+                if (valueStart < path.length() && (path.charAt(valueStart) == '\'' || path.charAt(valueStart) == '"')) {
+                    valueEnd = path.indexOf(path.charAt(valueStart), valueStart + 1);
+                    position = valueEnd + 1;
+                    valueStart++;
+                } else {
+                    valueEnd = path.indexOf(']', valueStart);
+                    position = valueEnd;
+                }
+                if (valueEnd == -1 || position >= path.length() || path.charAt(position) != ']') {
+                    throw new IllegalArgumentException("Unterminated key at position " + equals + " of: " + path);
+                }
+                keys.put(attributeName, path.substring(valueStart, valueEnd));
+                position++;
+            }
+            if (position < path.length()) {
+                if (path.charAt(position) != '/') {
+                    throw new IllegalArgumentException("Expected '/' at position " + position + " of: " + path);
+                }
+                position++;
+            }
+            steps.add(new Key(name, keys));
+        }
+        return steps;
+    }
+
+    /**
+     * Combine given file.
+     *
+     * <p>
+     * The file can contain either XML document or {@link CompiledLayer}.
+     * Gzip and deflate compressed XML documents are detected by their magic bytes and decompressed on the fly.
+     * When {@link #setLayerCache(LayerCache) the cache} is set, the file is parsed only if it is not cached.
+     * </p>
+     *
+     * @param file file to combine
+     * @throws SAXException when parsing fails
+     * @throws IOException when reading fails
+     */
+    public void combine(Path file) throws SAXException, IOException {
+        if (layerCache != null) {
+            Element[] parsed = new Element[1];
+            CompiledLayer layer = layerCache.get(file, path -> {
+                parsed[0] = parse(path, null);
+                return CompiledLayer.compile(parsed[0], defaultAttributeNames);
+            });
+            if (parsed[0] != null) {
+                // the file was just parsed, do not recreate its DOM from the layer
+                combine(parsed[0]);
+            } else {
+                combine(layer);
+            }
+            return;
+        }
+        combine(parse(file, null));
+    }
+
+    /**
+     * Combine given files in order, analysing the dominant files first to skip the recessive content
+     * which would be overridden anyway.
+     *
+     * <p>
+     * The files are parsed from the most dominant one. The paths of the elements marked with
+     * {@link CombineSelf#OVERRIDE} or {@link CombineSelf#REMOVE} are collected and when the more recessive files
+     * are parsed the content of the elements at those paths is skipped without creating any DOM nodes.
+     * The result is the same as when combining the files one by one. If the skipped paths turn out not to match
+     * the actual pairing of the elements, the files are combined again without skipping.
+     * </p>
+     * <p>
+     * Skipping requires the combiner to be created with {@link ParserProfile}
+     * and is disabled when the filter is set, since the filter could observe the skipped content.
+     * </p>
+     *
+     * @param files files to combine, each next file is dominant over the previous ones
+     * @throws SAXException when parsing fails
+     * @throws IOException when reading fails
+     */
+    public void combineDominantFirst(List<Path> files) throws SAXException, IOException {
+        if (xmlReader == null || filter != NULL_FILTER) {
+            for (Path file : files) {
+                combine(file);
+            }
+            return;
+        }
+
+        Element base = document.getDocumentElement();
+        Node baseCopy = base == null ? null : base.cloneNode(true);
+
+        OverriddenPaths overriddenPaths = new OverriddenPaths(defaultAttributeNames);
+        Element[] layers = new Element[files.size()];
+        for (int i = files.size() - 1; i >= 0; i--) {
+            layers[i] = parse(files.get(i), overriddenPaths.isEmpty() ? null : overriddenPaths);
+            if (i > 0) {
+                overriddenPaths.addOverrides(layers[i]);
+            }
+        }
+        for (Element layer : layers) {
+            combine(layer);
+        }
+
+        Element result = document.getDocumentElement();
+        if (result != null && containsSkipped(result)) {
+            // fall back to the full merge
+            document.removeChild(result);
+            if (baseCopy != null) {
+                document.appendChild(baseCopy);
+            }
+            for (Path file : files) {
+                combine(file);
+            }
+        }
+    }
+
+    private static boolean containsSkipped(Element element) {
+        if (element.hasAttribute(OverriddenPaths.MARKER_ATTRIBUTE_NAME)) {
+            return true;
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element && containsSkipped((Element) child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Combine given files in order asynchronously using the common fork-join pool.
+     *
+     * @param files files to combine, each next file is dominant over the previous ones
+     * @return future completed when all the files are combined
+     * @see #combineAsync(List, Executor)
+     */
+    public CompletableFuture<Void> combineAsync(List<Path> files) {
+        return combineAsync(files, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Combine given files in order asynchronously.
+     *
+     * <p>
+     * The files are read with {@link java.nio.channels.AsynchronousFileChannel} into pooled buffers.
+     * The next file is read while the previous one is parsed and combined, so the latency of slow storage
+     * is hidden behind the merge. The files are still combined one at a time in the given order.
+     * The combiner must not be used until the returned future completes.
+     * </p>
+     *
+     * @param files files to combine, each next file is dominant over the previous ones
+     * @param executor executor which parses and combines the files
+     * @return future completed when all the files are combined, or exceptionally with
+     * {@link IOException} or {@link SAXException} when reading or parsing any of them fails
+     */
+    public CompletableFuture<Void> combineAsync(List<Path> files, Executor executor) {
+        if (asyncReader == null) {
+            asyncReader = new AsyncFileReader(Compression.BUFFER_SIZE, 64);
+        }
+        return combineAsync(asyncReader, files, executor);
+    }
+
+    CompletableFuture<Void> combineAsync(AsyncFileReader reader, List<Path> files, Executor executor) {
+        if (files.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return combineAsync(reader, files, 0, reader.read(files.get(0)), executor);
+    }
+
+    private CompletableFuture<Void> combineAsync(AsyncFileReader reader, List<Path> files, int index,
+            CompletableFuture<AsyncFileReader.Content> read, Executor executor) {
+        return read.thenComposeAsync(content -> {
+            // prefetch the next file while this one is combined
+            CompletableFuture<AsyncFileReader.Content> next = index + 1 < files.size()
+                    ? reader.read(files.get(index + 1)) : null;
+            try {
+                combine(files.get(index), content);
+            } catch (IOException | SAXException | RuntimeException e) {
+                if (next != null) {
+                    next.thenAccept(AsyncFileReader.Content::release);
+                }
+                throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+            } finally {
+                content.release();
+            }
+            if (next == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return combineAsync(reader, files, index + 1, next, executor);
+        }, executor);
+    }
+
+    private void combine(Path file, AsyncFileReader.Content content) throws IOException, SAXException {
+        byte[] header = content.header(4);
+        try (InputStream stream = content.newInputStream()) {
+            if (CompiledLayer.isCompiledLayer(header, header.length)) {
+                combine(CompiledLayer.read(stream));
+                return;
+            }
+            InputSource input = new InputSource(Compression.decompress(stream));
+            input.setSystemId(file.toUri().toString());
+            combine(parse(input));
+        }
+    }
+
+    /**
+     * Combine given precompiled layer.
+     *
+     * @param layer layer to combine
+     */
+    public void combine(CompiledLayer layer) {
+        combine(layer.toElement(document, compiledElements));
+    }
+
+    /**
+     * Combine given input stream.
+     *
+     * <p>
+     * Gzip and deflate compressed content is detected by its magic bytes and decompressed on the fly.
+     * </p>
+     *
+     * @param stream input stream to combine
+     * @throws SAXException when parsing fails
+     * @throws IOException when reading fails
+     */
+    public void combine(InputStream stream) throws SAXException, IOException {
+        combine(parse(new InputSource(Compression.decompress(stream))));
+    }
+
+    /**
+     * Combines the resources with given name found by the context class loader of the current thread.
+     *
+     * <p>
+     * The resources are combined in the reverse order of {@link ClassLoader#getResources(String)},
+     * so the first one found is the most dominant. The resources in the local directories and JAR files
+     * are read as described in {@link #combineResources(String, List)}, the others through their URLs.
+     * </p>
+     *
+     * @param name name of the resource, for instance 'META-INF/beans.xml'
+     * @return number of combined resources
+     * @throws SAXException when parsing any of the resources fails
+     * @throws IOException when reading any of the resources fails
+     * @see #combineResources(String, List)
+     */
+    public int combineResources(String name) throws SAXException, IOException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = XmlCombiner.class.getClassLoader();
+        }
+        return combineResources(ResourceReader.read(name, classLoader, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Combines the resources with given name found in the directories and JAR files.
+     *
+     * <p>
+     * The resources are read directly from the JAR files with the zip file system, without extraction,
+     * and the roots are read in parallel. As in class loading the earlier roots take precedence,
+     * so the resources are combined in the reverse order of the roots and the resource of the first root
+     * is the most dominant one. The roots without the resource are skipped.
+     * </p>
+     *
+     * @param name name of the resource relative to the roots, for instance 'META-INF/beans.xml'
+     * @param roots directories and JAR files in the order of precedence
+     * @return number of combined resources
+     * @throws SAXException when parsing any of the resources fails
+     * @throws IOException when reading any of the resources fails
+     */
+    public int combineResources(String name, List<Path> roots) throws SAXException, IOException {
+        return combineResources(ResourceReader.read(name, roots, ForkJoinPool.commonPool()));
+    }
+
+    private int combineResources(List<ResourceReader.Resource> resources) throws SAXException, IOException {
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            ResourceReader.Resource resource = resources.get(i);
+            InputSource input = new InputSource(Compression.decompress(
+                    new ByteArrayInputStream(resource.getContent())));
+            input.setSystemId(resource.getUri());
+            combine(parse(input));
+        }
+        return resources.size();
+    }
+
+    private Element parse(Path file, OverriddenPaths overriddenPaths) throws SAXException, IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), Compression.BUFFER_SIZE)) {
+            // detect compiled layers from the same stream, so plain files are opened only once
+            if (CompiledLayer.isCompiledLayer(stream)) {
+                return CompiledLayer.load(file).toElement(document, compiledElements);
+            }
+            InputSource input = new InputSource(Compression.decompress(stream));
+            input.setSystemId(file.toUri().toString());
+            if (overriddenPaths != null) {
+                return expandIncludes(
+                        DocumentBuildingHandler.parse(xmlReader, input, document, namespaceAware, overriddenPaths),
+                        input.getSystemId(), new HashSet<>());
+            }
+            return parse(input);
+        }
+    }
+
+    private Element parse(InputSource input) throws SAXException, IOException {
+        return expandIncludes(parseDocument(input), input.getSystemId(), new HashSet<>());
+    }
+
+    private Element parseDocument(InputSource input) throws SAXException, IOException {
+        if (xmlReader == null) {
+            Document parsed = documentBuilder.parse(input);
+            Dependencies.addEntities(parsed);
+            return parsed.getDocumentElement();
+        }
+        return DocumentBuildingHandler.parse(xmlReader, input, document, namespaceAware);
+    }
+
+    /**
+     * Replaces the 'xi:include' elements with the included content.
+     *
+     * @param element parsed element
+     * @param base URI of the parsed document, null when not known
+     * @param including URIs of the documents being included, to detect cycles
+     * @return the element or its replacement when the element itself was an include
+     */
+    private Element expandIncludes(Element element, String base, Set<String> including)
+            throws SAXException, IOException {
+        if (fragmentCache == null) {
+            return element;
+        }
+        if (isXInclude(element, "include")) {
+            List<Node> included = include(element, base, including);
+            if (included.size() != 1 || !(included.get(0) instanceof Element)) {
+                throw new SAXException("Included content of the document element must be a single element");
+            }
+            return (Element) included.get(0);
+        }
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child instanceof Element) {
+                if (isXInclude(child, "include")) {
+                    for (Node node : include((Element) child, base, including)) {
+                        element.insertBefore(node, child);
+                    }
+                    element.removeChild(child);
+                } else {
+                    expandIncludes((Element) child, base, including);
+                }
+            }
+            child = next;
+        }
+        return element;
+    }
+
+    private static boolean isXInclude(Node node, String name) {
+        if (!(node instanceof Element)) {
+            return false;
+        }
+        Element element = (Element) node;
+        String namespace = element.getNamespaceURI();
+        String localName = element.getLocalName();
+        if (localName == null) {
+            // not namespace aware
+            String tagName = element.getTagName();
+            int colon = tagName.indexOf(':');
+            localName = tagName.substring(colon + 1);
+            if (!localName.equals(name)) {
+                return false;
+            }
+            namespace = ResultView.lookupNamespaceURI(element, colon == -1 ? "" : tagName.substring(0, colon));
+        }
+        return name.equals(localName) && XINCLUDE_NAMESPACE.equals(namespace);
+    }
+
+    /**
+     * Returns the nodes included by given 'xi:include' element.
+     */
+    private List<Node> include(Element include, String base, Set<String> including)
+            throws SAXException, IOException {
+        Document owner = include.getOwnerDocument();
+        if (include.hasAttribute("xpointer")) {
+            throw new SAXException("XInclude 'xpointer' attribute is not supported");
+        }
+        String href = include.getAttribute("href");
+        String parse = include.hasAttribute("parse") ? include.getAttribute("parse") : "xml";
+        if (href.isEmpty()) {
+            throw new SAXException("XInclude without 'href' attribute");
+        } else if (!parse.equals("xml") && !parse.equals("text")) {
+            throw new SAXException("Unsupported XInclude parse mode '" + parse + "'");
+        }
+
+        Path file = resolveInclude(href, base);
+        if (file == null || !Files.isRegularFile(file)) {
+            if (file != null) {
+                // the layer has to be reloaded when the missing file appears
+                Dependencies.add(file);
+            }
+            for (Node child = include.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (isXInclude(child, "fallback")) {
+                    List<Node> fallback = new ArrayList<>();
+                    Node node;
+                    while ((node = child.getFirstChild()) != null) {
+                        child.removeChild(node);
+                        if (node instanceof Element) {
+                            node = expandIncludes((Element) node, base, including);
+                        }
+                        fallback.add(node);
+                    }
+                    return fallback;
+                }
+            }
+            throw new SAXException("Cannot include '" + href + "'" + (base == null ? "" : " from " + base));
+        }
+
+        if (parse.equals("text")) {
+            String encoding = include.hasAttribute("encoding") ? include.getAttribute("encoding") : "UTF-8";
+            return singletonList(owner.createTextNode(new String(fragmentCache.content(file), encoding)));
+        }
+        String uri = file.toUri().toString();
+        if (!including.add(uri)) {
+            throw new SAXException("Cyclic XInclude of " + uri);
+        }
+        try {
+            CompiledLayer fragment = fragmentCache.document(file, path -> {
+                InputSource input = new InputSource(uri);
+                Element root = expandIncludes(parseDocument(input), uri, including);
+                return CompiledLayer.compile(root, defaultAttributeNames);
+            });
+            return singletonList(fragment.toElement(owner));
+        } finally {
+            including.remove(uri);
+        }
+    }
+
+    /**
+     * Resolves the included URI to the local file, null when it is not local.
+     */
+    private Path resolveInclude(String href, String base) throws SAXException, IOException {
+        URI uri;
+        try {
+            uri = base == null ? Paths.get("").toUri().resolve(href) : new URI(base).resolve(href);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new SAXException("Invalid XInclude URI '" + href + "'", e);
+        }
+        Path file = FragmentCache.toLocalFile(uri.toString());
+        if (file == null && entityResolver != null) {
+            InputSource mapped = entityResolver.resolveEntity(null, uri.toString());
+            if (mapped != null && mapped.getByteStream() == null && mapped.getCharacterStream() == null) {
+                file = FragmentCache.toLocalFile(mapped.getSystemId());
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Combine given document.
+     * @param document document to combine
+     */
+    public void combine(Document document) {
+        combine(document.getDocumentElement());
+    }
+
+    /**
+     * Combine given document taking over its nodes instead of copying them.
+     *
+     * <p>
+     * The document must not be used afterwards.
+     * </p>
+     *
+     * @param document disposable document to combine
+     */
+    public void adoptAndCombine(Document document) {
+        Element element = document.getDocumentElement();
+        Node adopted = this.document.adoptNode(element);
+        if (adopted == null) {
+            // adopting from a different DOM implementation is not supported
+            combine(element);
+            return;
+        }
+        combine((Element) adopted);
+    }
+
+    /**
+     * Combine given element.
+     *
+     * <p>
+     * When the element is not attached and belongs to the document of this combiner,
+     * for instance when it was created by {@link #adoptAndCombine(Document)} or by the SAX parser,
+     * its nodes are moved to the result instead of being copied. This is not done when a filter is set,
+     * since filters are allowed to examine dominant elements.
+     * </p>
+     *
+     * @param element element to combine
+     */
+    public void combine(Element element) {
+        Element parent = document.getDocumentElement();
+        if (parent != null) {
+            document.removeChild(parent);
+        }
+        if (ignoreWhitespace) {
+            if (element.getOwnerDocument() != document || element.getParentNode() != null) {
+                // do not modify the caller's element
+                element = (Element) document.importNode(element, true);
+            }
+            removeWhitespace(element);
+        }
+        consumeDominant = filter == NULL_FILTER && element.getOwnerDocument() == document
+                && element.getParentNode() == null;
+        bulkCopyEnabled = true;
+        try {
+            Context result = combine(rootContext(parent), rootContext(element));
+            if (result != null) {
+                result.addAsChildTo(document);
+            }
+        } finally {
+            consumeDominant = false;
+            bulkCopyEnabled = false;
+            directiveElements.clear();
+            compiledElements.clear();
+        }
+    }
+
+    /**
+     * Returns the merged document.
+     *
+     * @return merged DOM document
+     */
+    public Document buildDocument() {
+        Element element = document.getDocumentElement();
+        if (element != null) {
+            filterOutDefaults(rootContext(element));
+            PlaceholderSubstitution substitution = placeholderSubstitution();
+            filterOutCombines(element, substitution == null ? null : resultRules(), substitution);
+            unresolvedPlaceholders = substitution == null ? emptyList()
+                    : Collections.unmodifiableList(substitution.getUnresolved());
+            if (ignoreWhitespace) {
+                indent(element, 1);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Returns the substitution of the placeholders in the current result, null when it is not enabled.
+     */
+    private PlaceholderSubstitution placeholderSubstitution() {
+        Element element = document.getDocumentElement();
+        if (element == null || (propertyResolver == null && propertiesElement == null)) {
+            return null;
+        }
+        return new PlaceholderSubstitution(properties(element), defaultAttributeNames);
+    }
+
+    /**
+     * Returns the resolver of the placeholders, the given resolver takes precedence over the properties
+     * defined in the merged document.
+     */
+    private PropertyResolver properties(Element documentElement) {
+        Map<String, String> defined = new HashMap<>();
+        if (propertiesElement != null) {
+            for (Node node = documentElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node instanceof Element && ((Element) node).getTagName().equals(propertiesElement)) {
+                    for (Node property = node.getFirstChild(); property != null;
+                            property = property.getNextSibling()) {
+                        if (property instanceof Element) {
+                            defined.put(((Element) property).getTagName(), property.getTextContent().trim());
+                        }
+                    }
+                }
+            }
+        }
+        if (propertyResolver == null) {
+            return defined::get;
+        }
+        return name -> {
+            String value = propertyResolver.resolve(name);
+            return value != null ? value : defined.get(name);
+        };
+    }
+
+    /**
+     * Returns the placeholders which could not be resolved by the last {@link #buildDocument()}.
+     *
+     * @return unresolved placeholders prefixed with the path of the element and the attribute or text
+     *     they were found in, for instance '/config/service[id=api]/@url: ${host}'
+     * @see #setPropertyResolver(PropertyResolver)
+     */
+    public List<String> getUnresolvedPlaceholders() {
+        return unresolvedPlaceholders;
+    }
+
+    /**
+     * Returns the merged document as {@link Source} which can be passed directly to a transformer
+     * or an unmarshaller.
+     *
+     * <p>
+     * The source emits SAX events while walking the merged tree. The 'combine.*' attributes
+     * and {@link CombineSelf#DEFAULTS} elements are skipped on the fly, so unlike {@link #buildDocument()}
+     * the tree is not modified and further documents can still be combined. The result is not indented.
+     * The placeholders are substituted like in {@link #buildDocument()}, the unresolved ones are left as is
+     * but are reported only by {@link #buildDocument()}.
+     * The source reflects the tree at the time it is read, so it must not be read while another document
+     * is combined.
+     * </p>
+     *
+     * @return source of the merged document
+     */
+    public Source toSource() {
+        return new SAXSource(new ResultView.SaxReader(document, resultRules(), this::placeholderSubstitution),
+                new InputSource());
+    }
+
+    /**
+     * Returns the reader which pulls the merged document.
+     *
+     * <p>
+     * The events are read directly from the merged tree with 'combine.*' attributes
+     * and {@link CombineSelf#DEFAULTS} elements skipped and the placeholders substituted, see {@link #toSource()}.
+     * The reader can be wrapped in {@link javax.xml.transform.stax.StAXSource}.
+     * </p>
+     *
+     * @return reader positioned at the start of the document
+     */
+    public XMLStreamReader toXMLStreamReader() {
+        return new ResultView.StreamReader(document, resultRules(), this::placeholderSubstitution);
+    }
+
+    private MergeRules.State resultRules() {
+        Element element = document.getDocumentElement();
+        return element == null ? null : rootContext(element).getRules();
+    }
+
+    /**
+     * Stores the result of the merging process to an output stream.
+     *
+     * @param out output stream to receive the merged XML
+     * @throws TransformerException when marshalling fails
      */
-    public XmlCombiner(List<String> keyAttributeNames) throws ParserConfigurationException {
-        this(DocumentBuilderFactory.newInstance().newDocumentBuilder(), keyAttributeNames);
+    public void buildDocument(OutputStream out) throws TransformerException {
+        Document result = buildDocument();
+
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+        } else {
+            transformer.reset();
+        }
+        Result output = new StreamResult(out);
+        Source input = new DOMSource(result);
+
+        transformer.transform(input, output);
     }
 
     /**
-     * Sets the optional filter that post-processes merged elements.
+     * Stores the result of the merging process to a file path.
      *
-     * @param filter post-processing filter (nullable)
+     * <p>
+     * The result is compressed when the file has '.gz' or '.deflate' extension, see {@link Compression#forPath(Path)}.
+     * </p>
+     *
+     * @param path destination file path
+     * @throws TransformerException when marshalling fails or when the file cannot be written or closed,
+     *     use {@link #buildDocument(Path, Compression)} to get {@link IOException} instead
+     * @throws FileNotFoundException when the file cannot be opened
      */
-    public void setFilter(Filter filter) {
-        if (filter == null) {
-            this.filter = NULL_FILTER;
-            return;
+    public void buildDocument(Path path) throws TransformerException, FileNotFoundException {
+        Compression compression = Compression.forPath(path);
+        try (OutputStream out = compression.compress(new FileOutputStream(path.toFile()))) {
+            buildDocument(out);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new TransformerException("Cannot write " + path, e);
         }
-        this.filter = filter;
     }
 
     /**
-     * Combine given file.
+     * Stores the result of the merging process to a file path using given compression.
      *
-     * @param file file to combine
-     * @throws SAXException when parsing fails
-     * @throws IOException when reading fails
+     * @param path destination file path
+     * @param compression compression of the result
+     * @throws TransformerException when marshalling fails
+     * @throws IOException when the file cannot be written
      */
-    public void combine(Path file) throws SAXException, IOException {
-        combine(documentBuilder.parse(file.toFile()));
+    public void buildDocument(Path path, Compression compression) throws TransformerException, IOException {
+        try (OutputStream out = compression.compress(Files.newOutputStream(path))) {
+            buildDocument(out);
+        }
     }
 
     /**
-     * Combine given input stream.
+     * Stores the result of the merging process to an output stream computing its digest at the same time.
      *
-     * @param stream input stream to combine
-     * @throws SAXException when parsing fails
-     * @throws IOException when reading fails
+     * <p>
+     * The digest is computed from the bytes as they are written, so the output does not need to be read again.
+     * The digest of the canonical form does not change when only the formatting of the result changes.
+     * It is computed from the merged tree in a second traversal after the result is written, which is cheaper
+     * than the serialization since nothing is encoded nor written, but it is not free, so request it only
+     * when needed.
+     * </p>
+     *
+     * @param out output stream to receive the merged XML, it is not closed
+     * @param canonical whether to compute the digest of the canonical form as well
+     * @return digest of the written XML
+     * @throws TransformerException when marshalling fails
+     * @throws IOException when flushing the stream fails
      */
-    public void combine(InputStream stream) throws SAXException, IOException {
-        combine(documentBuilder.parse(stream));
+    public OutputDigest buildDocumentWithDigest(OutputStream out, boolean canonical)
+            throws TransformerException, IOException {
+        MessageDigest digest = AtomicFileWriter.newDigest();
+        DigestOutputStream digestStream = new DigestOutputStream(out, digest);
+        buildDocument(digestStream);
+        digestStream.flush();
+        Element element = document.getDocumentElement();
+        byte[] canonicalDigest = canonical && element != null ? OutputDigest.canonicalDigest(element) : null;
+        return new OutputDigest(digest.digest(), canonicalDigest);
     }
 
     /**
-     * Combine given document.
-     * @param document document to combine
+     * Stores the result of the merging process to a file path computing its digest at the same time.
+     *
+     * <p>
+     * The result is compressed when the file has '.gz' or '.deflate' extension, see {@link Compression#forPath(Path)}.
+     * The digest is computed from the uncompressed XML.
+     * </p>
+     *
+     * @param path destination file path
+     * @param canonical whether to compute the digest of the canonical form as well
+     * @return digest of the written XML
+     * @throws TransformerException when marshalling fails
+     * @throws IOException when the file cannot be written
+     * @see #buildDocumentWithDigest(Path, Compression, boolean)
      */
-    public void combine(Document document) {
-        combine(document.getDocumentElement());
+    public OutputDigest buildDocumentWithDigest(Path path, boolean canonical)
+            throws TransformerException, IOException {
+        return buildDocumentWithDigest(path, Compression.forPath(path), canonical);
     }
 
     /**
-     * Combine given element.
-     * @param element element to combine
+     * Stores the result of the merging process to a file path using given compression computing its digest
+     * at the same time.
+     *
+     * <p>
+     * The digest is computed from the uncompressed XML.
+     * </p>
+     *
+     * @param path destination file path
+     * @param compression compression of the result
+     * @param canonical whether to compute the digest of the canonical form as well
+     * @return digest of the written XML
+     * @throws TransformerException when marshalling fails
+     * @throws IOException when the file cannot be written
+     * @see #buildDocumentWithDigest(OutputStream, boolean)
      */
-    public void combine(Element element) {
-        Element parent = document.getDocumentElement();
-        if (parent != null) {
-            document.removeChild(parent);
-        }
-        Context result = combine(Context.fromElement(parent), Context.fromElement(element));
-        if (result != null) {
-            result.addAsChildTo(document);
+    public OutputDigest buildDocumentWithDigest(Path path, Compression compression, boolean canonical)
+            throws TransformerException, IOException {
+        try (OutputStream out = compression.compress(Files.newOutputStream(path))) {
+            return buildDocumentWithDigest(out, canonical);
         }
     }
 
     /**
-     * Returns the merged document.
+     * Atomically stores the result of the merging process to a file path, but only if its content changed.
      *
-     * @return merged DOM document
+     * <p>
+     * The result is compressed when the file has '.gz' or '.deflate' extension, see {@link Compression#forPath(Path)}.
+     * </p>
+     *
+     * @param path destination file path
+     * @return true if the file was written, false if it already had the same content
+     * @throws TransformerException when marshalling fails
+     * @throws IOException when the file cannot be written
+     * @see #buildDocumentIfChanged(Path, Compression)
      */
-    public Document buildDocument() {
-        Element element = document.getDocumentElement();
-        if (element != null) {
-            filterOutDefaults(Context.fromElement(element));
-            filterOutCombines(element);
-        }
-        return document;
+    public boolean buildDocumentIfChanged(Path path) throws TransformerException, IOException {
+        return buildDocumentIfChanged(path, Compression.forPath(path));
     }
 
     /**
-     * Stores the result of the merging process to an output stream.
+     * Atomically stores the result of the merging process to a file path, but only if its content changed.
      *
-     * @param out output stream to receive the merged XML
+     * <p>
+     * The result is written to a temporary file in the same directory while its digest is computed.
+     * When the digest differs from the digest of the existing file, the temporary file atomically replaces it.
+     * Otherwise it is deleted and the existing file is not touched. This way readers never see partially
+     * written file and file watchers are not triggered when the content is the same.
+     * </p>
+     *
+     * @param path destination file path
+     * @param compression compression of the result
+     * @return true if the file was written, false if it already had the same content
      * @throws TransformerException when marshalling fails
+     * @throws IOException when the file cannot be written
      */
-    public void buildDocument(OutputStream out) throws TransformerException {
-        Document result = buildDocument();
-
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        Result output = new StreamResult(out);
-        Source input = new DOMSource(result);
-
-        transformer.transform(input, output);
+    public boolean buildDocumentIfChanged(Path path, Compression compression)
+            throws TransformerException, IOException {
+        return AtomicFileWriter.writeIfChanged(path, out -> {
+            try (OutputStream compressed = compression.compress(out)) {
+                buildDocument(compressed);
+            }
+        });
     }
 
     /**
-     * Stores the result of the merging process to a file path.
-     *
-     * @param path destination file path
-     * @throws TransformerException when marshalling fails
-     * @throws FileNotFoundException when the file cannot be opened
+     * Returns the context of the document element with the initial state of the merge rules.
      */
-    public void buildDocument(Path path) throws TransformerException, FileNotFoundException {
-        buildDocument(new FileOutputStream(path.toFile()));
+    private Context rootContext(Element element) {
+        Context context = Context.fromElement(element);
+        if (mergeRules != null && element != null) {
+            context.setRules(mergeRules.start().next(element.getTagName()));
+        }
+        return context;
     }
 
     private Context combine(Context recessive, Context dominant) {
-        CombineSelf dominantCombineSelf = getCombineSelf(dominant.getElement());
-        CombineSelf recessiveCombineSelf = getCombineSelf(recessive.getElement());
+        if (recessive.getElement() == null && bulkCopyEnabled
+                && isDirectiveFree(dominant.getElement(), dominant.getRules())) {
+            return bulkCopy(dominant);
+        }
+        CombineSelf dominantCombineSelf = combineSelf(dominant);
+        CombineSelf recessiveCombineSelf = combineSelf(recessive);
 
         if (dominantCombineSelf == CombineSelf.REMOVE) {
             return null;
@@ -298,9 +1483,9 @@ public class XmlCombiner {
             return result;
         }
 
-        CombineChildren combineChildren = getCombineChildren(dominant.getElement());
+        CombineChildren combineChildren = combineChildren(dominant);
         if (combineChildren == null) {
-            combineChildren = getCombineChildren(recessive.getElement());
+            combineChildren = combineChildren(recessive);
             if (combineChildren == null) {
                 combineChildren = CombineChildren.MERGE;
             }
@@ -308,7 +1493,9 @@ public class XmlCombiner {
 
         if (combineChildren == CombineChildren.APPEND) {
             if (recessive.getElement() != null) {
-                removeWhitespaceTail(recessive.getElement());
+                if (!ignoreWhitespace) {
+                    removeWhitespaceTail(recessive.getElement());
+                }
                 appendRecursively(dominant, recessive);
                 return recessive;
             } else {
@@ -316,10 +1503,15 @@ public class XmlCombiner {
             }
         }
 
-        Element resultElement = document.createElement(dominant.getElement().getTagName());
-
-        copyAttributes(recessive.getElement(), resultElement);
-        copyAttributes(dominant.getElement(), resultElement);
+        Element resultElement;
+        if (consumeDominant) {
+            resultElement = dominant.getElement();
+            copyMissingAttributes(recessive.getElement(), resultElement);
+        } else {
+            resultElement = document.createElement(dominant.getElement().getTagName());
+            copyAttributes(recessive.getElement(), resultElement);
+            copyAttributes(dominant.getElement(), resultElement);
+        }
 
         // when dominant combineSelf is null or DEFAULTS use combineSelf from recessive
         CombineSelf combineSelf = dominantCombineSelf;
@@ -335,23 +1527,39 @@ public class XmlCombiner {
         }
 
         List<String> keys = defaultAttributeNames;
+        if (recessive.getRules() != null && recessive.getRules().getKeys() != null) {
+            keys = recessive.getRules().getKeys();
+        }
+        if (dominant.getRules() != null && dominant.getRules().getKeys() != null) {
+            keys = dominant.getRules().getKeys();
+        }
         if (recessive.getElement() != null) {
             Attr keysNode = recessive.getElement().getAttributeNode(Context.KEYS_ATTRIBUTE_NAME);
             if (keysNode != null) {
-                keys = Arrays.asList(keysNode.getValue().split(","));
+                keys = keyList(keysNode.getValue());
             }
         }
         if (dominant.getElement() != null) {
             Attr keysNode = dominant.getElement().getAttributeNode(Context.KEYS_ATTRIBUTE_NAME);
             if (keysNode != null) {
-                keys = Arrays.asList(keysNode.getValue().split(","));
+                keys = keyList(keysNode.getValue());
             }
         }
 
         Map<Key, List<Context>> recessiveContexts = childContextMapper.mapChildContexts(recessive, keys);
         Map<Key, List<Context>> dominantContexts = childContextMapper.mapChildContexts(dominant, keys);
 
-        Set<String> tagNamesInDominant = getTagNames(dominantContexts);
+        Set<String> tagNamesInDominant = getTagNames(dominantContexts,
+                freeTagNameSets.isEmpty() ? new HashSet<>() : freeTagNameSets.pop());
+        if (resultElement == dominant.getElement()) {
+            removeChildren(resultElement);
+        }
+        Map<Key, List<Element>> childIndex = null;
+        if (index != null) {
+            index.remove(recessive.getElement());
+            childIndex = new LinkedHashMap<>();
+            index.put(resultElement, childIndex);
+        }
 
         // Execute only if there is at least one subelement in recessive
         if (!recessiveContexts.isEmpty()) {
@@ -362,9 +1570,10 @@ public class XmlCombiner {
                         continue;
                     }
 
-                    if (getCombineSelf(recessiveContext.getElement()) == CombineSelf.OVERRIDABLE_BY_TAG) {
+                    if (combineSelf(recessiveContext) == CombineSelf.OVERRIDABLE_BY_TAG) {
                         if (!tagNamesInDominant.contains(key.getName())) {
                             recessiveContext.addAsChildTo(resultElement);
+                            addToIndex(childIndex, key, recessiveContext.getElement());
                             filter.postProcess(recessiveContext.getElement(), null, recessiveContext.getElement());
                         }
                         continue;
@@ -376,20 +1585,22 @@ public class XmlCombiner {
                         Context dominantContext =
                                 dominantContexts.get(key).iterator().next();
 
-                        CombineChildren recessiveCombineChildren = getCombineChildren(recessiveContext.getElement());
-                        CombineChildren dominantCombineChildren = getCombineChildren(dominantContext.getElement());
+                        CombineChildren recessiveCombineChildren = combineChildren(recessiveContext);
+                        CombineChildren dominantCombineChildren = combineChildren(dominantContext);
 
                         if (recessiveCombineChildren == CombineChildren.ADD
                                 || dominantCombineChildren == CombineChildren.ADD) {
                             // Add both elements without merging
                             Context recessiveCopy = copyRecursively(recessiveContext);
                             recessiveCopy.addAsChildTo(resultElement);
+                            addToIndex(childIndex, key, recessiveCopy.getElement());
                             if (recessiveCopy.getElement() != null) {
                                 filter.postProcess(recessiveContext.getElement(), null, recessiveCopy.getElement());
                             }
 
                             Context dominantCopy = copyRecursively(dominantContext);
                             dominantCopy.addAsChildTo(resultElement);
+                            addToIndex(childIndex, key, dominantCopy.getElement());
                             if (dominantCopy.getElement() != null) {
                                 filter.postProcess(null, dominantContext.getElement(), dominantCopy.getElement());
                             }
@@ -397,10 +1608,12 @@ public class XmlCombiner {
                             Context combined = combine(recessiveContext, dominantContext);
                             if (combined != null) {
                                 combined.addAsChildTo(resultElement);
+                                addToIndex(childIndex, key, combined.getElement());
                             }
                         }
                     } else {
                         recessiveContext.addAsChildTo(resultElement);
+                        addToIndex(childIndex, key, recessiveContext.getElement());
                         if (recessiveContext.getElement() != null) {
                             filter.postProcess(recessiveContext.getElement(), null, recessiveContext.getElement());
                         }
@@ -413,7 +1626,7 @@ public class XmlCombiner {
             for (Context dominantContext : dominantContexts.get(key)) {
 
                 if (key == Key.BEFORE_END) {
-                    dominantContext.addAsChildTo(resultElement, document);
+                    addCopyAsChildTo(dominantContext, resultElement);
                     if (dominantContext.getElement() != null) {
                         filter.postProcess(null, dominantContext.getElement(), dominantContext.getElement());
                     }
@@ -423,19 +1636,26 @@ public class XmlCombiner {
                 List<Context> associatedRecessives = recessiveContexts.getOrDefault(key, emptyList());
                 if (dominantContexts.getOrDefault(key, emptyList()).size() == 1
                         && associatedRecessives.size() == 1
-                        && getCombineSelf(associatedRecessives.get(0).getElement()) != CombineSelf.OVERRIDABLE_BY_TAG) {
+                        && combineSelf(associatedRecessives.get(0)) != CombineSelf.OVERRIDABLE_BY_TAG) {
                     // already added
                 } else {
                     Context combined = combine(Context.fromElement(null), dominantContext);
                     if (combined != null) {
                         combined.addAsChildTo(resultElement);
+                        addToIndex(childIndex, key, combined.getElement());
                     }
                 }
             }
         }
 
+        childContextMapper.release(recessiveContexts);
+        childContextMapper.release(dominantContexts);
+        tagNamesInDominant.clear();
+        freeTagNameSets.push(tagNamesInDominant);
+
         Context result = new Context();
         result.setElement(resultElement);
+        result.setRules(dominant.getRules());
         appendNeighbours(dominant, result);
 
         filter.postProcess(recessive.getElement(), dominant.getElement(), result.getElement());
@@ -443,6 +1663,144 @@ public class XmlCombiner {
         return result;
     }
 
+    /**
+     * Returns the key attribute names listed in the value of 'combine.keys' attribute.
+     */
+    private List<String> keyList(String value) {
+        List<String> keys = keyLists.get(value);
+        if (keys == null) {
+            keys = Arrays.asList(value.split(","));
+            if (keyLists.size() < 1024) {
+                keyLists.put(value, keys);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Checks whether the subtree of the dominant element would be merged into an identical copy of itself.
+     *
+     * <p>
+     * This is the case when neither the elements of the subtree nor the merge rules matching them have
+     * any directives and the children with the same key are adjacent, so grouping them does not reorder them.
+     * The subtree is scanned once, the elements which are not directive-free are remembered, so each element
+     * is visited at most twice regardless of the depth at which the directives are found.
+     * </p>
+     */
+    private boolean isDirectiveFree(Element element, MergeRules.State rules) {
+        if (directiveElements.contains(element)) {
+            return false;
+        }
+        CompiledLayer.Directives compiled = compiledElements.isEmpty() ? null : compiledElements.get(element);
+        boolean free = (compiled != null ? compiled.getCombineSelf() == null && compiled.getCombineChildren() == null
+                : !element.hasAttribute(CombineSelf.ATTRIBUTE_NAME)
+                        && !element.hasAttribute(CombineChildren.ATTRIBUTE_NAME))
+                && (rules == null || (rules.getCombineSelf() == null && rules.getCombineChildren() == null));
+        List<String> keys = getKeys(element, rules);
+        Set<Key> seen = null;
+        Key previous = null;
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!(node instanceof Element)) {
+                continue;
+            }
+            Element child = (Element) node;
+            if (!isDirectiveFree(child, rules == null ? null : rules.next(child.getTagName()))) {
+                free = false;
+            }
+            Key key = key(child, keys);
+            if (!key.equals(previous)) {
+                if (seen == null) {
+                    seen = new HashSet<>();
+                }
+                if (!seen.add(key)) {
+                    free = false;
+                }
+                previous = key;
+            }
+        }
+        if (!free) {
+            directiveElements.add(element);
+        }
+        return free;
+    }
+
+    /**
+     * Copies the directive-free subtree with a single deep import.
+     *
+     * <p>
+     * The children are indexed and the filter is notified about every element in the same order
+     * as if the subtree was merged element by element.
+     * </p>
+     */
+    private Context bulkCopy(Context context) {
+        Context copy = new Context();
+        copy.setRules(context.getRules());
+        appendNeighbours(context, copy);
+        Element element = (Element) importNode(context.getElement(), true);
+        if (index != null || filter != NULL_FILTER) {
+            afterBulkCopy(context.getElement(), element, context.getRules());
+        }
+        copy.setElement(element);
+        return copy;
+    }
+
+    private void afterBulkCopy(Element source, Element copy, MergeRules.State rules) {
+        List<Element> sourceChildren = childElements(source);
+        List<Element> copyChildren = sourceChildren;
+        if (copy != source) {
+            copyChildren = childElements(copy);
+        }
+        Map<Key, List<Element>> childIndex = null;
+        List<String> keys = null;
+        if (index != null) {
+            childIndex = new LinkedHashMap<>();
+            index.put(copy, childIndex);
+            keys = getKeys(copy, rules);
+        }
+        for (int i = 0; i < copyChildren.size(); i++) {
+            Element child = copyChildren.get(i);
+            afterBulkCopy(sourceChildren.get(i), child, rules == null ? null : rules.next(child.getTagName()));
+            if (childIndex != null) {
+                addToIndex(childIndex, key(child, keys), child);
+            }
+        }
+        filter.postProcess(null, source, copy);
+    }
+
+    private static List<Element> childElements(Element element) {
+        List<Element> children = new ArrayList<>();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns the key attribute names for the children of the element which has no recessive counterpart.
+     */
+    private List<String> getKeys(Element element, MergeRules.State rules) {
+        Attr keysNode = element.getAttributeNode(Context.KEYS_ATTRIBUTE_NAME);
+        if (keysNode != null) {
+            return keyList(keysNode.getValue());
+        }
+        if (rules != null && rules.getKeys() != null) {
+            return rules.getKeys();
+        }
+        return defaultAttributeNames;
+    }
+
+    private Key key(Element element, List<String> keys) {
+        CompiledLayer.Directives compiled = compiledElements.isEmpty() ? null : compiledElements.get(element);
+        Key key = compiled == null ? null : compiled.getKey(keys);
+        if (key != null) {
+            return key;
+        }
+        return OverriddenPaths.key(element.getTagName(),
+                name -> element.hasAttribute(name) ? element.getAttribute(name) : null, keys);
+    }
+
     /**
      * Copy element recursively.
      * @param context context to copy, it is assumed it is from unrelated document
@@ -450,13 +1808,21 @@ public class XmlCombiner {
      */
     private Context copyRecursively(Context context) {
         Context copy = new Context();
+        copy.setRules(context.getRules());
 
         appendNeighbours(context, copy);
 
-        Element element = (Element) document.importNode(context.getElement(), false);
+        List<Context> contexts = context.groupChildContexts();
+        Element element = (Element) importNode(context.getElement(), false);
+        if (element == context.getElement()) {
+            removeChildren(element);
+        }
+        if (index != null) {
+            index.remove(element);
+        }
         copy.setElement(element);
 
-        appendRecursively(context, copy);
+        appendRecursively(contexts, context.getElement(), copy);
 
         return copy;
     }
@@ -468,7 +1834,7 @@ public class XmlCombiner {
      */
     private void appendNeighbours(Context source, Context destination) {
         for (Node neighbour : source.getNeighbours()) {
-            destination.addNeighbour(document.importNode(neighbour, true));
+            destination.addNeighbour(importNode(neighbour, true));
         }
     }
 
@@ -478,18 +1844,98 @@ public class XmlCombiner {
      * @param destination destination element
      */
     private void appendRecursively(Context source, Context destination) {
-        copyAttributes(source.getElement(), destination.getElement());
+        appendRecursively(source.groupChildContexts(), source.getElement(), destination);
+    }
 
-        List<Context> contexts = source.groupChildContexts();
+    private void appendRecursively(List<Context> contexts, Element source, Context destination) {
+        copyAttributes(source, destination.getElement());
 
+        Map<Key, List<Element>> childIndex = null;
+        List<String> keys = null;
+        if (index != null) {
+            childIndex = index.computeIfAbsent(destination.getElement(), element -> new LinkedHashMap<>());
+            keys = defaultAttributeNames;
+            if (destination.getRules() != null && destination.getRules().getKeys() != null) {
+                keys = destination.getRules().getKeys();
+            }
+            Attr keysNode = destination.getElement().getAttributeNode(Context.KEYS_ATTRIBUTE_NAME);
+            if (keysNode != null) {
+                keys = keyList(keysNode.getValue());
+            }
+        }
         for (Context context : contexts) {
             if (context.getElement() == null) {
-                context.addAsChildTo(destination.getElement(), document);
+                addCopyAsChildTo(context, destination.getElement());
                 continue;
             }
             Context combined = combine(Context.fromElement(null), context);
             if (combined != null) {
                 combined.addAsChildTo(destination.getElement());
+                if (childIndex != null) {
+                    Element element = combined.getElement();
+                    addToIndex(childIndex, OverriddenPaths.key(element.getTagName(),
+                            name -> element.hasAttribute(name) ? element.getAttribute(name) : null, keys), element);
+                }
+            }
+        }
+    }
+
+    private static void addToIndex(Map<Key, List<Element>> childIndex, Key key, Element element) {
+        if (childIndex != null && element != null) {
+            childIndex.computeIfAbsent(key, k -> new ArrayList<>(1)).add(element);
+        }
+    }
+
+    /**
+     * Adds copies of the context nodes as children of given node.
+     * @param context context to copy, it is assumed it is from unrelated document
+     * @param node parent node
+     */
+    private void addCopyAsChildTo(Context context, Node node) {
+        for (Node neighbour : context.getNeighbours()) {
+            node.appendChild(importNode(neighbour, true));
+        }
+        if (context.getElement() != null) {
+            node.appendChild(importNode(context.getElement(), true));
+        }
+    }
+
+    /**
+     * Imports node into the document.
+     *
+     * <p>
+     * When the combined element is consumed, its nodes already belong to the document,
+     * so they are returned as is to be moved instead of copied.
+     * </p>
+     */
+    private Node importNode(Node node, boolean deep) {
+        if (consumeDominant && node.getOwnerDocument() == document) {
+            return node;
+        }
+        return document.importNode(node, deep);
+    }
+
+    private static void removeChildren(Element element) {
+        Node child;
+        while ((child = element.getLastChild()) != null) {
+            element.removeChild(child);
+        }
+    }
+
+    /**
+     * Copies only those attributes which do not exist in the destination element.
+     * @param source source element
+     * @param destination destination element
+     */
+    private void copyMissingAttributes(Element source, Element destination) {
+        if (source == null) {
+            return;
+        }
+        NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (destination.getAttributeNodeNS(attribute.getNamespaceURI(), attribute.getName()) == null) {
+                destination.setAttributeNodeNS((Attr) document.importNode(attribute, true));
             }
         }
     }
@@ -500,7 +1946,7 @@ public class XmlCombiner {
      * @param destination destination element
      */
     private void copyAttributes(Element source, Element destination) {
-        if (source == null) {
+        if (source == null || source == destination) {
             return;
         }
         NamedNodeMap attributes = source.getAttributes();
@@ -516,7 +1962,63 @@ public class XmlCombiner {
         }
     }
 
-    private static CombineSelf getCombineSelf(Element element) {
+    /**
+     * Returns how to combine the element of the context, from its attribute or else from the merge rules.
+     */
+    static CombineSelf getCombineSelf(Context context) {
+        CombineSelf combine = getCombineSelf(context.getElement());
+        if (combine == null && context.getElement() != null && context.getRules() != null) {
+            combine = context.getRules().getCombineSelf();
+        }
+        return combine;
+    }
+
+    /**
+     * Returns how to combine the children of the context element, from its attribute or else from the merge rules.
+     */
+    static CombineChildren getCombineChildren(Context context) {
+        CombineChildren combine = getCombineChildren(context.getElement());
+        if (combine == null && context.getElement() != null && context.getRules() != null) {
+            combine = context.getRules().getCombineChildren();
+        }
+        return combine;
+    }
+
+    /**
+     * Returns how to combine the element of the context, using the directive precomputed by {@link CompiledLayer}
+     * when the element was created from it.
+     */
+    private CombineSelf combineSelf(Context context) {
+        CompiledLayer.Directives compiled = compiledElements.isEmpty() ? null
+                : compiledElements.get(context.getElement());
+        if (compiled == null) {
+            return getCombineSelf(context);
+        }
+        CombineSelf combine = compiled.getCombineSelf();
+        if (combine == null && context.getRules() != null) {
+            combine = context.getRules().getCombineSelf();
+        }
+        return combine;
+    }
+
+    /**
+     * Returns how to combine the children of the context element, using the directive precomputed
+     * by {@link CompiledLayer} when the element was created from it.
+     */
+    private CombineChildren combineChildren(Context context) {
+        CompiledLayer.Directives compiled = compiledElements.isEmpty() ? null
+                : compiledElements.get(context.getElement());
+        if (compiled == null) {
+            return getCombineChildren(context);
+        }
+        CombineChildren combine = compiled.getCombineChildren();
+        if (combine == null && context.getRules() != null) {
+            combine = context.getRules().getCombineChildren();
+        }
+        return combine;
+    }
+
+    static CombineSelf getCombineSelf(Element element) {
         CombineSelf combine = null;
         if (element == null) {
             return null;
@@ -536,7 +2038,7 @@ public class XmlCombiner {
         return combine;
     }
 
-    private static CombineChildren getCombineChildren(Element element) {
+    static CombineChildren getCombineChildren(Element element) {
         CombineChildren combine = null;
         if (element == null) {
             return null;
@@ -567,6 +2069,89 @@ public class XmlCombiner {
         }
     }
 
+    private static boolean isWhitespace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the element contains child elements and no text other than whitespace.
+     */
+    private static boolean hasElementContent(Element element) {
+        boolean elements = false;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    elements = true;
+                    break;
+                case Node.TEXT_NODE:
+                    if (!isWhitespace(child.getNodeValue())) {
+                        return false;
+                    }
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                case Node.ENTITY_REFERENCE_NODE:
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Removes whitespace-only text nodes from the elements with element content.
+     */
+    private static void removeWhitespace(Element element) {
+        boolean elementContent = hasElementContent(element);
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child instanceof Element) {
+                removeWhitespace((Element) child);
+            } else if (elementContent && child.getNodeType() == Node.TEXT_NODE) {
+                element.removeChild(child);
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * Replaces the whitespace in the elements with element content with consistent indentation.
+     */
+    private void indent(Element element, int depth) {
+        if (!hasElementContent(element)) {
+            return;
+        }
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                element.removeChild(child);
+            } else {
+                element.insertBefore(document.createTextNode(indentation(depth)), child);
+                if (child instanceof Element) {
+                    indent((Element) child, depth + 1);
+                }
+            }
+            child = next;
+        }
+        element.appendChild(document.createTextNode(indentation(depth - 1)));
+    }
+
+    private static String indentation(int depth) {
+        StringBuilder builder = new StringBuilder("\n");
+        for (int i = 0; i < depth; i++) {
+            builder.append("    ");
+        }
+        return builder.toString();
+    }
+
     private static void filterOutDefaults(Context context) {
         Element element = context.getElement();
         List<Context> childContexts = context.groupChildContexts();
@@ -575,7 +2160,7 @@ public class XmlCombiner {
             if (childContext.getElement() == null) {
                 continue;
             }
-            CombineSelf combineSelf = getCombineSelf(childContext.getElement());
+            CombineSelf combineSelf = getCombineSelf(childContext);
             if (combineSelf == CombineSelf.DEFAULTS) {
                 for (Node neighbour : childContext.getNeighbours()) {
                     element.removeChild(neighbour);
@@ -587,23 +2172,58 @@ public class XmlCombiner {
         }
     }
 
-    private static void filterOutCombines(Element element) {
-        element.removeAttribute(CombineSelf.ATTRIBUTE_NAME);
-        element.removeAttribute(CombineChildren.ATTRIBUTE_NAME);
-        element.removeAttribute(Context.KEYS_ATTRIBUTE_NAME);
-        element.removeAttribute(Context.ID_ATTRIBUTE_NAME);
+    static boolean isCombineAttribute(String attributeName) {
+        return COMBINE_ATTRIBUTE_NAMES.contains(attributeName);
+    }
+
+    /**
+     * Removes the 'combine.*' attributes and, in the same traversal, substitutes the placeholders
+     * in the attribute values and the text.
+     * @param element element to process recursively
+     * @param rules merge rules of the element, only used by the substitution
+     * @param substitution placeholder substitution, null to skip it
+     */
+    private static void filterOutCombines(Element element, MergeRules.State rules,
+            PlaceholderSubstitution substitution) {
+        if (substitution != null) {
+            substitution.enter(element, rules);
+        }
+        for (String attributeName : COMBINE_ATTRIBUTE_NAMES) {
+            element.removeAttribute(attributeName);
+        }
+        if (substitution != null) {
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                String value = attribute.getValue();
+                String substituted = substitution.substitute(value, "@" + attribute.getName());
+                if (!substituted.equals(value)) {
+                    attribute.setValue(substituted);
+                }
+            }
+        }
 
         NodeList childNodes = element.getChildNodes();
         for (int i = 0; i < childNodes.getLength(); i++) {
             Node item = childNodes.item(i);
             if (item instanceof Element) {
-                filterOutCombines((Element) item);
+                filterOutCombines((Element) item, rules == null ? null : rules.next(item.getNodeName()),
+                        substitution);
+            } else if (substitution != null && item instanceof Text) {
+                Text text = (Text) item;
+                String value = text.getData();
+                String substituted = substitution.substitute(value, "text()");
+                if (!substituted.equals(value)) {
+                    text.setData(substituted);
+                }
             }
         }
+        if (substitution != null) {
+            substitution.exit();
+        }
     }
 
-    private static Set<String> getTagNames(Map<Key, List<Context>> dominantContexts) {
-        Set<String> names = new HashSet<>();
+    private static Set<String> getTagNames(Map<Key, List<Context>> dominantContexts, Set<String> names) {
         for (Key key : dominantContexts.keySet()) {
             names.add(key.getName());
         }
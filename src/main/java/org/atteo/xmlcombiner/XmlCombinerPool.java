@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Pool of reusable combiners for callers which merge documents at high rate.
+ *
+ * <p>
+ * Creating a combiner creates the parser and the serializer, which is expensive compared to merging small
+ * documents. The pool keeps the released combiners and hands them out again after {@link XmlCombiner#reset()},
+ * so in the steady state the merges create neither them nor the scratch structures of the merge again.
+ * The pool is thread-safe, but each combiner
+ * must be used by one thread at a time:
+ * </p>
+ * <pre>
+ * {@code
+ * XmlCombinerPool pool = new XmlCombinerPool(() -> new XmlCombiner(ParserProfile.standard(), keys), 8);
+ * XmlCombiner combiner = pool.acquire();
+ * try {
+ *     combiner.combine(stream);
+ *     combiner.buildDocument(out);
+ * } finally {
+ *     pool.release(combiner);
+ * }
+ * }
+ * </pre>
+ */
+public final class XmlCombinerPool {
+    /**
+     * Creates the combiners when the pool is empty.
+     */
+    public interface Factory {
+        /**
+         * Creates new combiner.
+         *
+         * @return created combiner
+         * @throws ParserConfigurationException when the parser cannot be configured
+         * @throws SAXException when the parser cannot be created
+         */
+        XmlCombiner create() throws ParserConfigurationException, SAXException;
+    }
+
+    private final Factory factory;
+    private final int maximumIdle;
+    private final Deque<XmlCombiner> idle = new ArrayDeque<>();
+    private long createdCount;
+
+    /**
+     * Creates the pool.
+     *
+     * @param factory factory of the combiners, all of them should be configured the same way
+     * @param maximumIdle maximum number of the released combiners kept for reuse
+     */
+    public XmlCombinerPool(Factory factory, int maximumIdle) {
+        if (maximumIdle < 0) {
+            throw new IllegalArgumentException("Negative maximum idle count: " + maximumIdle);
+        }
+        this.factory = factory;
+        this.maximumIdle = maximumIdle;
+    }
+
+    /**
+     * Returns the combiner with empty result, reusing the released one if possible.
+     *
+     * @return combiner which must be {@link #release(XmlCombiner) released} after use
+     * @throws ParserConfigurationException when new combiner cannot be created
+     * @throws SAXException when new combiner cannot be created
+     */
+    public XmlCombiner acquire() throws ParserConfigurationException, SAXException {
+        synchronized (this) {
+            XmlCombiner combiner = idle.pollFirst();
+            if (combiner != null) {
+                return combiner;
+            }
+            createdCount++;
+        }
+        return factory.create();
+    }
+
+    /**
+     * Returns the combiner to the pool.
+     *
+     * <p>
+     * The result of the combiner is discarded immediately, so the pool does not keep it in memory.
+     * The combiner is dropped when the pool already keeps the maximum number of idle combiners.
+     * </p>
+     *
+     * @param combiner combiner acquired from this pool, it must not be used afterwards
+     */
+    public void release(XmlCombiner combiner) {
+        combiner.reset();
+        synchronized (this) {
+            if (idle.size() < maximumIdle) {
+                idle.addFirst(combiner);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of combiners waiting for reuse.
+     *
+     * @return number of idle combiners
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of combiners created by the pool.
+     *
+     * @return number of created combiners
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+}
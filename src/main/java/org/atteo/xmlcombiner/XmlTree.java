@@ -0,0 +1,465 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Immutable XML node.
+ *
+ * <p>
+ * Unlike DOM nodes, the nodes do not know their parent, so the same subtree can be shared between many trees.
+ * {@link XmlTreeCombiner} uses that to share unchanged subtrees of the recessive document between the results
+ * and to materialize only the paths which were modified by the dominant document.
+ * </p>
+ * <p>
+ * Node types are identified by {@link Node} constants. Elements have attributes represented as nodes
+ * of {@link Node#ATTRIBUTE_NODE} type.
+ * </p>
+ * <p>
+ * The children of the elements created by {@link XmlTreeCombiner#setLazy(boolean) lazy combiner} are merged
+ * only when they are accessed for the first time and then remembered.
+ * </p>
+ */
+public final class XmlTree {
+    private final short type;
+    private final String namespaceURI;
+    private final String name;
+    private final String value;
+    private final List<XmlTree> attributes;
+    private List<XmlTree> children;
+    private volatile Supplier<List<XmlTree>> childrenSupplier;
+    private int size;
+    private final boolean normalized;
+
+    XmlTree(short type, String namespaceURI, String name, String value, List<XmlTree> attributes,
+            List<XmlTree> children, boolean normalized) {
+        this.type = type;
+        this.namespaceURI = namespaceURI;
+        this.name = name;
+        this.value = value;
+        this.attributes = attributes;
+        this.children = children;
+        this.normalized = normalized;
+        this.size = sizeOf(children);
+    }
+
+    private XmlTree(String namespaceURI, String name, List<XmlTree> attributes,
+            Supplier<List<XmlTree>> childrenSupplier) {
+        this.type = Node.ELEMENT_NODE;
+        this.namespaceURI = namespaceURI;
+        this.name = name;
+        this.value = null;
+        this.attributes = attributes;
+        this.childrenSupplier = childrenSupplier;
+        this.normalized = true;
+        this.size = -1;
+    }
+
+    private static int sizeOf(List<XmlTree> children) {
+        int count = 1;
+        for (XmlTree child : children) {
+            count += child.size();
+        }
+        return count;
+    }
+
+    static XmlTree element(String namespaceURI, String name, List<XmlTree> attributes, List<XmlTree> children,
+            boolean normalized) {
+        return new XmlTree(Node.ELEMENT_NODE, namespaceURI, name, null, unmodifiableList(attributes),
+                unmodifiableList(children), normalized);
+    }
+
+    /**
+     * Creates normalized element whose children are computed on first access.
+     */
+    static XmlTree lazyElement(String namespaceURI, String name, List<XmlTree> attributes,
+            Supplier<List<XmlTree>> children) {
+        return new XmlTree(namespaceURI, name, unmodifiableList(attributes), children);
+    }
+
+    static XmlTree attribute(String namespaceURI, String name, String value) {
+        return new XmlTree(Node.ATTRIBUTE_NODE, namespaceURI, name, value, emptyList(), emptyList(), true);
+    }
+
+    static XmlTree leaf(short type, String name, String value) {
+        return new XmlTree(type, null, name, value, emptyList(), emptyList(), true);
+    }
+
+    /**
+     * Converts given DOM document into immutable tree.
+     *
+     * @param document document to convert
+     * @return tree representing document element of the document
+     */
+    public static XmlTree fromDocument(Document document) {
+        return fromElement(document.getDocumentElement());
+    }
+
+    /**
+     * Converts given DOM element into immutable tree.
+     *
+     * @param element element to convert
+     * @return tree representing the element with its whole subtree
+     */
+    public static XmlTree fromElement(Element element) {
+        return (XmlTree) fromNode(element);
+    }
+
+    private static Object fromNode(Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                NamedNodeMap attributeMap = node.getAttributes();
+                List<XmlTree> attributes = new ArrayList<>(attributeMap.getLength());
+                for (int i = 0; i < attributeMap.getLength(); i++) {
+                    Attr attribute = (Attr) attributeMap.item(i);
+                    attributes.add(attribute(attribute.getNamespaceURI(), attribute.getName(), attribute.getValue()));
+                }
+                List<XmlTree> children = new ArrayList<>();
+                addChildren(node, children);
+                return element(node.getNamespaceURI(), node.getNodeName(), attributes, children, false);
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+                return leaf(node.getNodeType(), null, node.getNodeValue());
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction instruction = (ProcessingInstruction) node;
+                return leaf(Node.PROCESSING_INSTRUCTION_NODE, instruction.getTarget(), instruction.getData());
+            case Node.ENTITY_REFERENCE_NODE:
+                List<XmlTree> expanded = new ArrayList<>();
+                addChildren(node, expanded);
+                return expanded;
+            default:
+                throw new IllegalArgumentException("Unsupported node type: " + node.getNodeType());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addChildren(Node node, List<XmlTree> children) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Object converted = fromNode(child);
+            if (converted instanceof List) {
+                children.addAll((List<XmlTree>) converted);
+            } else {
+                children.add((XmlTree) converted);
+            }
+        }
+    }
+
+    /**
+     * Returns the type of this node as defined by {@link Node} constants.
+     *
+     * @return node type
+     */
+    public short getType() {
+        return type;
+    }
+
+    /**
+     * Returns the namespace URI of element or attribute.
+     *
+     * @return namespace URI (nullable)
+     */
+    public String getNamespaceURI() {
+        return namespaceURI;
+    }
+
+    /**
+     * Returns the qualified name of element or attribute, or the target of processing instruction.
+     *
+     * @return node name, null for text and comment nodes
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the value of attribute, text, comment or processing instruction data.
+     *
+     * @return node value, null for elements
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns attributes of the element.
+     *
+     * @return unmodifiable list of attributes
+     */
+    public List<XmlTree> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the value of the attribute with given qualified name.
+     *
+     * @param attributeName qualified name of the attribute
+     * @return attribute value or null if the attribute does not exist
+     */
+    public String getAttribute(String attributeName) {
+        for (XmlTree attribute : attributes) {
+            if (attribute.name.equals(attributeName)) {
+                return attribute.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns child nodes of the element.
+     *
+     * @return unmodifiable list of children
+     */
+    public List<XmlTree> getChildren() {
+        if (childrenSupplier != null) {
+            materialize();
+        }
+        return children;
+    }
+
+    private synchronized void materialize() {
+        Supplier<List<XmlTree>> supplier = childrenSupplier;
+        if (supplier != null) {
+            children = unmodifiableList(supplier.get());
+            childrenSupplier = null;
+        }
+    }
+
+    /**
+     * Whether the children of the element were already computed.
+     */
+    boolean isMaterialized() {
+        return childrenSupplier == null;
+    }
+
+    /**
+     * Returns the number of nodes in the subtree rooted at this node, attributes are not counted.
+     *
+     * <p>
+     * For lazily combined trees this materializes the whole subtree.
+     * </p>
+     *
+     * @return subtree size
+     */
+    public int size() {
+        if (size == -1) {
+            size = sizeOf(getChildren());
+        }
+        return size;
+    }
+
+    /**
+     * Whether the tree is known to be the result of {@link XmlTreeCombiner}, so combining it again
+     * with nothing would produce the same tree.
+     */
+    boolean isNormalized() {
+        return normalized;
+    }
+
+    /**
+     * Creates DOM view of the tree.
+     *
+     * <p>
+     * Similarly to {@link XmlCombiner#buildDocument()} the elements marked with
+     * {@link CombineSelf#DEFAULTS} and all 'combine.*' attributes are filtered out.
+     * </p>
+     *
+     * @return new DOM document
+     * @throws ParserConfigurationException when the document cannot be created
+     */
+    public Document toDocument() throws ParserConfigurationException {
+        Document document = ParserProfile.standard().newDocumentBuilder().newDocument();
+        document.appendChild(toElement(document));
+        return document;
+    }
+
+    /**
+     * Creates DOM view of the tree in given document.
+     *
+     * <p>
+     * Similarly to {@link XmlCombiner#buildDocument()} the elements marked with
+     * {@link CombineSelf#DEFAULTS} and all 'combine.*' attributes are filtered out.
+     * </p>
+     *
+     * @param document owner of the created nodes
+     * @return element not attached to the document
+     */
+    public Element toElement(Document document) {
+        return (Element) toNode(document);
+    }
+
+    private Node toNode(Document document) {
+        switch (type) {
+            case Node.ELEMENT_NODE:
+                Element element = namespaceURI == null
+                        ? document.createElement(name)
+                        : document.createElementNS(namespaceURI, name);
+                for (XmlTree attribute : attributes) {
+                    if (isCombineAttribute(attribute.name)) {
+                        continue;
+                    }
+                    if (attribute.namespaceURI == null) {
+                        element.setAttribute(attribute.name, attribute.value);
+                    } else {
+                        element.setAttributeNS(attribute.namespaceURI, attribute.name, attribute.value);
+                    }
+                }
+                for (XmlTree child : filteredChildren()) {
+                    element.appendChild(child.toNode(document));
+                }
+                return element;
+            case Node.TEXT_NODE:
+                return document.createTextNode(value);
+            case Node.CDATA_SECTION_NODE:
+                return document.createCDATASection(value);
+            case Node.COMMENT_NODE:
+                return document.createComment(value);
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return document.createProcessingInstruction(name, value);
+            default:
+                throw new IllegalStateException("Unsupported node type: " + type);
+        }
+    }
+
+    /**
+     * Serializes the tree without creating the DOM.
+     *
+     * <p>
+     * Similarly to {@link XmlCombiner#buildDocument()} the elements marked with
+     * {@link CombineSelf#DEFAULTS} and all 'combine.*' attributes are filtered out.
+     * </p>
+     *
+     * @param out output stream to receive the XML
+     * @throws XMLStreamException when writing fails
+     */
+    public void write(OutputStream out) throws XMLStreamException {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        write(writer);
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    private void write(XMLStreamWriter writer) throws XMLStreamException {
+        switch (type) {
+            case Node.ELEMENT_NODE:
+                List<XmlTree> filtered = filteredChildren();
+                if (filtered.isEmpty()) {
+                    writer.writeEmptyElement(name);
+                } else {
+                    writer.writeStartElement(name);
+                }
+                for (XmlTree attribute : attributes) {
+                    if (isCombineAttribute(attribute.name)) {
+                        continue;
+                    }
+                    if (attribute.name.equals("xmlns")) {
+                        writer.writeDefaultNamespace(attribute.value);
+                    } else if (attribute.name.startsWith("xmlns:")) {
+                        writer.writeNamespace(attribute.name.substring("xmlns:".length()), attribute.value);
+                    } else {
+                        writer.writeAttribute(attribute.name, attribute.value);
+                    }
+                }
+                for (XmlTree child : filtered) {
+                    child.write(writer);
+                }
+                if (!filtered.isEmpty()) {
+                    writer.writeEndElement();
+                }
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(value);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(value);
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(value);
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writer.writeProcessingInstruction(name, value);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported node type: " + type);
+        }
+    }
+
+    /**
+     * Returns children without the elements marked with {@link CombineSelf#DEFAULTS}
+     * and the non-element nodes which precede them.
+     */
+    private List<XmlTree> filteredChildren() {
+        List<XmlTree> children = getChildren();
+        List<XmlTree> result = null;
+        int groupStart = 0;
+        for (int i = 0; i < children.size(); i++) {
+            XmlTree child = children.get(i);
+            if (child.type != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if ("defaults".equalsIgnoreCase(child.getAttribute(CombineSelf.ATTRIBUTE_NAME))) {
+                if (result == null) {
+                    result = new ArrayList<>(children.subList(0, groupStart));
+                }
+            } else if (result != null) {
+                result.addAll(children.subList(groupStart, i + 1));
+            }
+            groupStart = i + 1;
+        }
+        if (result == null) {
+            return children;
+        }
+        result.addAll(children.subList(groupStart, children.size()));
+        return result;
+    }
+
+    private static boolean isCombineAttribute(String attributeName) {
+        return attributeName.equals(CombineSelf.ATTRIBUTE_NAME)
+                || attributeName.equals(CombineChildren.ATTRIBUTE_NAME)
+                || attributeName.equals(Context.KEYS_ATTRIBUTE_NAME)
+                || attributeName.equals(Context.ID_ATTRIBUTE_NAME);
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case Node.ELEMENT_NODE:
+                return "<" + name + ">";
+            case Node.ATTRIBUTE_NODE:
+                return name + "=" + value;
+            default:
+                return value;
+        }
+    }
+}
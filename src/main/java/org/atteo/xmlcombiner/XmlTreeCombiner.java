@@ -0,0 +1,587 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.emptyList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+import org.w3c.dom.Node;
+
+/**
+ * Combines {@link XmlTree immutable trees} with the same 'combine.*' attribute semantics as {@link XmlCombiner}.
+ *
+ * <p>
+ * The recessive tree is never modified. Its subtrees which are not affected by the dominant tree
+ * are shared with the result instead of being copied, so merging one large base document
+ * with many small overlays keeps only a single copy of the base in memory.
+ * Only the paths modified by the overlays are materialized.
+ * </p>
+ * <p>
+ * The result is the same as the one of {@link XmlCombiner} configured only with the key attribute names.
+ * The following features of {@link XmlCombiner} are not supported:
+ * </p>
+ * <ul>
+ * <li>{@link XmlCombiner.Filter filters}, since they require mutable DOM elements,</li>
+ * <li>{@link XmlCombiner#setMergeRules(MergeRules) merge rules},</li>
+ * <li>{@link XmlCombiner#setIgnoreWhitespace(boolean) ignoring of the whitespace},</li>
+ * <li>{@link XmlCombiner#setIndexed(boolean) the index} of the merged elements,</li>
+ * <li>{@link XmlCombiner#setPropertyResolver(PropertyResolver) substitution of the placeholders}.</li>
+ * </ul>
+ * <p>
+ * Since the trees are immutable, independent subtrees can be merged in parallel,
+ * see {@link #setParallelMerge(ForkJoinPool, int)}, or lazily, see {@link #setLazy(boolean)}.
+ * </p>
+ */
+public class XmlTreeCombiner {
+    private final List<String> defaultAttributeNames;
+    private ForkJoinPool pool;
+    private int parallelThreshold = Integer.MAX_VALUE;
+    private boolean lazy;
+
+    /**
+     * Creates tree combiner which matches elements by tag name only.
+     */
+    public XmlTreeCombiner() {
+        this(emptyList());
+    }
+
+    /**
+     * Creates tree combiner using given key attributes.
+     *
+     * @param keyAttributeNames attribute names used as element keys
+     */
+    public XmlTreeCombiner(List<String> keyAttributeNames) {
+        this.defaultAttributeNames = keyAttributeNames;
+    }
+
+    /**
+     * Enables merging of the child elements in parallel.
+     *
+     * <p>
+     * Each pair of matching recessive and dominant child elements whose total subtree size
+     * is at least the given threshold is merged as a separate task. The merged fragments are then stitched
+     * into the result in the document order, so the result is the same as when merging sequentially.
+     * This allows a single merge of a very wide document to use all cores.
+     * The merge always runs in the given pool, also when called from a task of another pool.
+     * </p>
+     *
+     * @param pool pool to run the merge in, null disables parallel merging
+     * @param threshold minimal number of nodes in both subtrees of a pair to merge it in parallel
+     */
+    public void setParallelMerge(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.parallelThreshold = pool == null ? Integer.MAX_VALUE : threshold;
+    }
+
+    /**
+     * Enables lazy merging.
+     *
+     * <p>
+     * In lazy mode only the root element of the result is merged eagerly. The children of each merged element
+     * are merged when they are accessed for the first time with {@link XmlTree#getChildren()} and then
+     * remembered, so the cost of merging is paid only for the parts of the result which are actually read.
+     * The result is the same as in the eager mode, with the same limitations, but errors in the 'combine.*' attributes of the nested elements
+     * are reported on access. Input trees are retained until all the subtrees which depend on them are merged.
+     * Lazily merged subtrees are never merged in parallel.
+     * </p>
+     *
+     * @param lazy whether to merge the children on first access
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Combines given trees in order, each next tree is dominant over the result of combining previous ones.
+     *
+     * @param trees trees to combine
+     * @return the result or null if the root element was removed
+     */
+    public XmlTree combine(List<XmlTree> trees) {
+        XmlTree result = null;
+        for (XmlTree tree : trees) {
+            result = combine(result, tree);
+        }
+        return result;
+    }
+
+    /**
+     * Combines two trees.
+     *
+     * <p>
+     * The result is the same as when combining first recessive and then dominant document with {@link XmlCombiner}
+     * which uses none of the features listed in the {@link XmlTreeCombiner class description}.
+     * Subtrees of recessive tree are shared with the result whenever possible.
+     * </p>
+     *
+     * @param recessive recessive tree, usually the result of previous combining, can be null
+     * @param dominant dominant tree
+     * @return the result or null if the root element was removed
+     */
+    public XmlTree combine(XmlTree recessive, XmlTree dominant) {
+        if (recessive != null && !recessive.isNormalized()) {
+            recessive = combine(null, recessive);
+            if (recessive == null) {
+                return combine(null, dominant);
+            }
+        }
+        Group result;
+        if (pool != null && !lazy && ForkJoinTask.getPool() != pool) {
+            // callers running in other pools, including the common one, still use the configured pool
+            result = pool.invoke(new CombineTask(Group.of(recessive), Group.of(dominant)));
+        } else {
+            result = combine(Group.of(recessive), Group.of(dominant));
+        }
+        return result == null ? null : result.element;
+    }
+
+    private Group combine(Group recessive, Group dominant) {
+        CombineSelf dominantCombineSelf = getCombineSelf(dominant.element);
+        CombineSelf recessiveCombineSelf = getCombineSelf(recessive.element);
+
+        if (dominantCombineSelf == CombineSelf.REMOVE) {
+            return null;
+        } else if (dominantCombineSelf == CombineSelf.OVERRIDE || (recessiveCombineSelf == CombineSelf.OVERRIDABLE)) {
+            Group result = copyRecursively(dominant);
+            result.element = withoutAttribute(result.element, CombineSelf.ATTRIBUTE_NAME);
+            return result;
+        }
+
+        CombineChildren combineChildren = getCombineChildren(dominant.element);
+        if (combineChildren == null) {
+            combineChildren = getCombineChildren(recessive.element);
+            if (combineChildren == null) {
+                combineChildren = CombineChildren.MERGE;
+            }
+        }
+
+        if (combineChildren == CombineChildren.APPEND) {
+            if (recessive.element != null) {
+                XmlTree recessiveElement = recessive.element;
+                List<XmlTree> attributes = new ArrayList<>(recessiveElement.getAttributes());
+                copyAttributes(dominant.element, attributes);
+                Group result = new Group();
+                result.neighbours.addAll(recessive.neighbours);
+                result.element = newElement(recessiveElement.getNamespaceURI(), recessiveElement.getName(),
+                        attributes, () -> {
+                            List<XmlTree> children = new ArrayList<>(
+                                    withoutWhitespaceTail(recessiveElement.getChildren()));
+                            appendChildrenRecursively(dominant.element, children);
+                            return children;
+                        });
+                return result;
+            } else {
+                return copyRecursively(dominant);
+            }
+        }
+
+        if (recessive.element == null && dominant.element.isNormalized()) {
+            return dominant;
+        }
+
+        List<XmlTree> attributes = new ArrayList<>();
+        copyAttributes(recessive.element, attributes);
+        copyAttributes(dominant.element, attributes);
+
+        // when dominant combineSelf is null or DEFAULTS use combineSelf from recessive
+        CombineSelf combineSelf = dominantCombineSelf;
+        if ((combineSelf == null && recessiveCombineSelf != CombineSelf.DEFAULTS)) {
+            combineSelf = recessiveCombineSelf;
+        }
+        if (combineSelf != null) {
+            setAttribute(attributes, CombineSelf.ATTRIBUTE_NAME, combineSelf.name().toLowerCase());
+        } else {
+            removeAttribute(attributes, CombineSelf.ATTRIBUTE_NAME);
+        }
+
+        List<String> keys = defaultAttributeNames;
+        if (recessive.element != null) {
+            String keysValue = recessive.element.getAttribute(Context.KEYS_ATTRIBUTE_NAME);
+            if (keysValue != null) {
+                keys = Arrays.asList(keysValue.split(","));
+            }
+        }
+        String dominantKeysValue = dominant.element.getAttribute(Context.KEYS_ATTRIBUTE_NAME);
+        if (dominantKeysValue != null) {
+            keys = Arrays.asList(dominantKeysValue.split(","));
+        }
+
+        Group result = new Group();
+        result.neighbours.addAll(dominant.neighbours);
+        if (lazy) {
+            List<String> childKeys = keys;
+            result.element = XmlTree.lazyElement(null, dominant.element.getName(), attributes,
+                    () -> mergeChildren(recessive.element, dominant.element, childKeys));
+            return result;
+        }
+        List<XmlTree> children = mergeChildren(recessive.element, dominant.element, keys);
+        if (recessive.element == null && attributes.equals(dominant.element.getAttributes())
+                && sameNodes(children, dominant.element.getChildren())) {
+            // nothing changed, share the dominant element instead of its copy
+            result.element = dominant.element;
+        } else {
+            result.element = XmlTree.element(null, dominant.element.getName(), attributes, children, true);
+        }
+        return result;
+    }
+
+    /**
+     * Merges the children of the elements.
+     */
+    private List<XmlTree> mergeChildren(XmlTree recessiveElement, XmlTree dominantElement, List<String> keys) {
+        Map<Key, List<Group>> recessiveGroups = mapChildGroups(recessiveElement, keys);
+        Map<Key, List<Group>> dominantGroups = mapChildGroups(dominantElement, keys);
+
+        Set<String> tagNamesInDominant = new HashSet<>();
+        for (Key key : dominantGroups.keySet()) {
+            tagNamesInDominant.add(key.getName());
+        }
+
+        List<XmlTree> children = new ArrayList<>();
+        // merges running in parallel, their results replace null placeholders in children
+        List<CombineTask> tasks = new ArrayList<>();
+        for (Map.Entry<Key, List<Group>> entry : recessiveGroups.entrySet()) {
+            Key key = entry.getKey();
+            if (key == Key.BEFORE_END) {
+                continue;
+            }
+            for (Group recessiveGroup : entry.getValue()) {
+                if (getCombineSelf(recessiveGroup.element) == CombineSelf.OVERRIDABLE_BY_TAG) {
+                    if (!tagNamesInDominant.contains(key.getName())) {
+                        recessiveGroup.addTo(children);
+                    }
+                    continue;
+                }
+
+                List<Group> dominantGroupsForKey = dominantGroups.getOrDefault(key, emptyList());
+                if (dominantGroupsForKey.size() == 1 && entry.getValue().size() == 1) {
+                    Group dominantGroup = dominantGroupsForKey.get(0);
+
+                    if (getCombineChildren(recessiveGroup.element) == CombineChildren.ADD
+                            || getCombineChildren(dominantGroup.element) == CombineChildren.ADD) {
+                        // Add both elements without merging
+                        copyRecursively(recessiveGroup).addTo(children);
+                        copyRecursively(dominantGroup).addTo(children);
+                    } else if (!lazy && pool != null && ForkJoinTask.getPool() == pool
+                            && recessiveGroup.element.size() + dominantGroup.element.size() >= parallelThreshold) {
+                        CombineTask task = new CombineTask(recessiveGroup, dominantGroup);
+                        task.fork();
+                        tasks.add(task);
+                        children.add(null);
+                    } else {
+                        Group combined = combine(recessiveGroup, dominantGroup);
+                        if (combined != null) {
+                            combined.addTo(children);
+                        }
+                    }
+                } else {
+                    recessiveGroup.addTo(children);
+                }
+            }
+        }
+
+        for (Map.Entry<Key, List<Group>> entry : dominantGroups.entrySet()) {
+            Key key = entry.getKey();
+            for (Group dominantGroup : entry.getValue()) {
+                if (key == Key.BEFORE_END) {
+                    children.addAll(dominantGroup.neighbours);
+                    continue;
+                }
+                List<Group> associatedRecessives = recessiveGroups.getOrDefault(key, emptyList());
+                if (entry.getValue().size() == 1
+                        && associatedRecessives.size() == 1
+                        && getCombineSelf(associatedRecessives.get(0).element) != CombineSelf.OVERRIDABLE_BY_TAG) {
+                    // already added
+                } else {
+                    Group combined = combine(Group.of(null), dominantGroup);
+                    if (combined != null) {
+                        combined.addTo(children);
+                    }
+                }
+            }
+        }
+
+        if (!tasks.isEmpty()) {
+            children = stitch(children, tasks);
+        }
+        return children;
+    }
+
+    /**
+     * Replaces null placeholders with the results of the tasks, in order.
+     */
+    private static List<XmlTree> stitch(List<XmlTree> children, List<CombineTask> tasks) {
+        List<XmlTree> result = new ArrayList<>(children.size() + tasks.size());
+        int taskIndex = 0;
+        for (XmlTree child : children) {
+            if (child != null) {
+                result.add(child);
+                continue;
+            }
+            Group combined = tasks.get(taskIndex++).join();
+            if (combined != null) {
+                combined.addTo(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies element recursively the same way {@link XmlCombiner} does it, sharing unchanged subtrees.
+     */
+    private Group copyRecursively(Group group) {
+        List<XmlTree> attributes = new ArrayList<>(group.element.getAttributes());
+        Group copy = new Group();
+        copy.neighbours.addAll(group.neighbours);
+        if (lazy) {
+            XmlTree element = group.element;
+            copy.element = XmlTree.lazyElement(element.getNamespaceURI(), element.getName(), attributes, () -> {
+                List<XmlTree> children = new ArrayList<>();
+                appendChildrenRecursively(element, children);
+                return children;
+            });
+            return copy;
+        }
+        List<XmlTree> children = new ArrayList<>();
+        appendChildrenRecursively(group.element, children);
+
+        if (attributes.equals(group.element.getAttributes()) && sameNodes(children, group.element.getChildren())) {
+            copy.element = group.element;
+        } else {
+            copy.element = XmlTree.element(group.element.getNamespaceURI(), group.element.getName(), attributes,
+                    children, true);
+        }
+        return copy;
+    }
+
+    /**
+     * Creates the element, merging its children immediately or on first access in lazy mode.
+     */
+    private XmlTree newElement(String namespaceURI, String name, List<XmlTree> attributes,
+            Supplier<List<XmlTree>> children) {
+        if (lazy) {
+            return XmlTree.lazyElement(namespaceURI, name, attributes, children);
+        }
+        return XmlTree.element(namespaceURI, name, attributes, children.get(), true);
+    }
+
+    /**
+     * Appends all subelements from source element to the destination list.
+     */
+    private void appendChildrenRecursively(XmlTree source, List<XmlTree> children) {
+        for (Group group : groupChildren(source)) {
+            if (group.element == null) {
+                children.addAll(group.neighbours);
+                continue;
+            }
+            Group combined = combine(Group.of(null), group);
+            if (combined != null) {
+                combined.addTo(children);
+            }
+        }
+    }
+
+    private Map<Key, List<Group>> mapChildGroups(XmlTree element, List<String> keyAttributeNames) {
+        Map<Key, List<Group>> map = new LinkedHashMap<>();
+        for (Group group : groupChildren(element)) {
+            if (group.element == null) {
+                map.computeIfAbsent(Key.BEFORE_END, k -> new ArrayList<>()).add(group);
+                continue;
+            }
+            Map<String, String> keys = new LinkedHashMap<>();
+            for (String keyAttributeName : keyAttributeNames) {
+                String keyValue = group.element.getAttribute(keyAttributeName);
+                if (keyValue != null) {
+                    keys.put(keyAttributeName, keyValue);
+                }
+            }
+            String id = group.element.getAttribute(Context.ID_ATTRIBUTE_NAME);
+            if (id != null) {
+                keys.put(Context.ID_ATTRIBUTE_NAME, id);
+            }
+            map.computeIfAbsent(new Key(group.element.getName(), keys), k -> new ArrayList<>()).add(group);
+        }
+        return map;
+    }
+
+    private static List<Group> groupChildren(XmlTree element) {
+        if (element == null) {
+            return emptyList();
+        }
+        List<Group> groups = new ArrayList<>();
+        Group group = new Group();
+        for (XmlTree child : element.getChildren()) {
+            if (child.getType() == Node.ELEMENT_NODE) {
+                group.element = child;
+                groups.add(group);
+                group = new Group();
+            } else {
+                group.neighbours.add(child);
+            }
+        }
+        // add last with empty element
+        groups.add(group);
+        return groups;
+    }
+
+    private static void copyAttributes(XmlTree source, List<XmlTree> destination) {
+        if (source == null) {
+            return;
+        }
+        for (XmlTree attribute : source.getAttributes()) {
+            int index = indexOf(destination, attribute.getNamespaceURI(), attribute.getName());
+            if (index == -1) {
+                destination.add(attribute);
+            } else if (!destination.get(index).getValue().equals(attribute.getValue())) {
+                destination.set(index, attribute);
+            }
+        }
+    }
+
+    private static void setAttribute(List<XmlTree> attributes, String name, String value) {
+        int index = indexOf(attributes, null, name);
+        if (index == -1) {
+            attributes.add(XmlTree.attribute(null, name, value));
+        } else if (!attributes.get(index).getValue().equals(value)) {
+            attributes.set(index, XmlTree.attribute(attributes.get(index).getNamespaceURI(), name, value));
+        }
+    }
+
+    private static void removeAttribute(List<XmlTree> attributes, String name) {
+        int index = indexOf(attributes, null, name);
+        if (index != -1) {
+            attributes.remove(index);
+        }
+    }
+
+    private static int indexOf(List<XmlTree> attributes, String namespaceURI, String name) {
+        for (int i = 0; i < attributes.size(); i++) {
+            XmlTree attribute = attributes.get(i);
+            if (attribute.getName().equals(name) && Objects.equals(attribute.getNamespaceURI(), namespaceURI)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static XmlTree withoutAttribute(XmlTree element, String name) {
+        if (element.getAttribute(name) == null) {
+            return element;
+        }
+        List<XmlTree> attributes = new ArrayList<>(element.getAttributes());
+        removeAttribute(attributes, name);
+        return XmlTree.element(element.getNamespaceURI(), element.getName(), attributes, element.getChildren(),
+                true);
+    }
+
+    private static List<XmlTree> withoutWhitespaceTail(List<XmlTree> children) {
+        int end = children.size();
+        while (end > 0 && children.get(end - 1).getType() != Node.ELEMENT_NODE) {
+            end--;
+        }
+        return children.subList(0, end);
+    }
+
+    private static boolean sameNodes(List<XmlTree> first, List<XmlTree> second) {
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (first.get(i) != second.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static CombineSelf getCombineSelf(XmlTree element) {
+        if (element == null) {
+            return null;
+        }
+        String value = element.getAttribute(CombineSelf.ATTRIBUTE_NAME);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return CombineSelf.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("The attribute 'combine' of element '"
+                    + element.getName() + "' has invalid value '" + value, e);
+        }
+    }
+
+    private static CombineChildren getCombineChildren(XmlTree element) {
+        if (element == null) {
+            return null;
+        }
+        String value = element.getAttribute(CombineChildren.ATTRIBUTE_NAME);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return CombineChildren.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("The attribute 'combine' of element '"
+                    + element.getName() + "' has invalid value '" + value, e);
+        }
+    }
+
+    private class CombineTask extends RecursiveTask<Group> {
+        private static final long serialVersionUID = 1L;
+
+        private final Group recessive;
+        private final Group dominant;
+
+        CombineTask(Group recessive, Group dominant) {
+            this.recessive = recessive;
+            this.dominant = dominant;
+        }
+
+        @Override
+        protected Group compute() {
+            return combine(recessive, dominant);
+        }
+    }
+
+    /**
+     * Element with any other non-element nodes which precede it, counterpart of {@link Context}.
+     */
+    private static class Group {
+        private final List<XmlTree> neighbours = new ArrayList<>();
+        private XmlTree element;
+
+        static Group of(XmlTree element) {
+            Group group = new Group();
+            group.element = element;
+            return group;
+        }
+
+        void addTo(List<XmlTree> children) {
+            children.addAll(neighbours);
+            children.add(element);
+        }
+    }
+}
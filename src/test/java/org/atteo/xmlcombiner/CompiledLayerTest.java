@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.singletonList;
+import static org.xmlunit.assertj.XmlAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+public class CompiledLayerTest {
+    private static final String RECESSIVE = "\n"
+            + "<config>\n"
+            + "    <!-- services -->\n"
+            + "    <service id='1'>\n"
+            + "        <parameter>parameter</parameter>\n"
+            + "        <parameter2><![CDATA[<cdata>]]></parameter2>\n"
+            + "    </service>\n"
+            + "    <?target data?>\n"
+            + "    <service id='2'/>\n"
+            + "</config>";
+    private static final String DOMINANT = "\n"
+            + "<config>\n"
+            + "    <service id='1' combine.self='override'>\n"
+            + "        <parameter3>parameter3</parameter3>\n"
+            + "    </service>\n"
+            + "</config>";
+
+    @Test
+    public void shouldCombineCompiledLayers()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path recessive = compile(RECESSIVE, "target/recessive.xcl");
+        Path dominant = compile(DOMINANT, "target/dominant.xcl");
+
+        // when
+        XmlCombiner compiledCombiner = new XmlCombiner(singletonList("id"));
+        compiledCombiner.combine(recessive);
+        compiledCombiner.combine(dominant);
+
+        XmlCombiner xmlCombiner = new XmlCombiner(singletonList("id"));
+        xmlCombiner.combine(stream(RECESSIVE));
+        xmlCombiner.combine(stream(DOMINANT));
+
+        // then
+        assertThat(toString(compiledCombiner)).and(toString(xmlCombiner)).areIdentical();
+    }
+
+    @Test
+    public void shouldMergeWithPrecomputedKeysAndDirectives()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        String recessive = "<config><service name='a'><a/></service><service name='b'><b/></service></config>";
+        String dominant = "<config><service name='b' combine.children='append'><c/></service>"
+                + "<service name='a' combine.self='override'><d/></service></config>";
+        CompiledLayer layer = CompiledLayer.compile(parse(dominant), singletonList("name"));
+
+        // when
+        Map<Element, CompiledLayer.Directives> directives = new IdentityHashMap<>();
+        Element root = layer.toElement(DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument(),
+                directives);
+        XmlCombiner compiledCombiner = new XmlCombiner(singletonList("name"));
+        compiledCombiner.combine(stream(recessive));
+        compiledCombiner.combine(layer);
+        XmlCombiner xmlCombiner = new XmlCombiner(singletonList("name"));
+        xmlCombiner.combine(stream(recessive));
+        xmlCombiner.combine(stream(dominant));
+
+        // then
+        Element service = (Element) root.getLastChild();
+        CompiledLayer.Directives serviceDirectives = directives.get(service);
+        Assertions.assertThat(directives).hasSize(5);
+        Assertions.assertThat(serviceDirectives.getCombineSelf()).isEqualTo(CombineSelf.OVERRIDE);
+        Assertions.assertThat(serviceDirectives.getKey(singletonList("name")))
+                .isEqualTo(new Key("service", Collections.singletonMap("name", "a")));
+        Assertions.assertThat(serviceDirectives.getKey(singletonList("id"))).isNull();
+        Assertions.assertThat(directives.get(root.getFirstChild()).getCombineChildren())
+                .isEqualTo(CombineChildren.APPEND);
+        assertThat(toString(compiledCombiner)).and(toString(xmlCombiner)).areIdentical();
+    }
+
+    @Test
+    public void shouldCompileElementWithManyAttributes() throws ParserConfigurationException {
+        // given
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element element = document.createElement("config");
+        for (int i = 0; i < 70000; i++) {
+            element.setAttribute("a" + i, "v");
+        }
+
+        // when
+        Element result = CompiledLayer.compile(element).toElement(document);
+
+        // then
+        Assertions.assertThat(result.getAttributes().getLength()).isEqualTo(70000);
+        Assertions.assertThat(result.getAttribute("a69999")).isEqualTo("v");
+    }
+
+    @Test
+    public void shouldDescribeLayer() throws IOException, ParserConfigurationException, SAXException {
+        // given
+        CompiledLayer layer = CompiledLayer.load(compile(DOMINANT, "target/describe.xcl"));
+
+        // when
+        ByteArrayOutputStream description = new ByteArrayOutputStream();
+        layer.describe(new PrintStream(description, true, "UTF-8"));
+
+        // then
+        Assertions.assertThat(layer.getNodeCount()).isEqualTo(8);
+        Assertions.assertThat(description.toString("UTF-8"))
+                .contains("<service> combine.self=override attributes=2 subtree=5 key=service#{}");
+    }
+
+    @Test
+    public void shouldRejectInvalidDirectivesAtCompileTime() throws IOException, ParserConfigurationException,
+            SAXException {
+        Element element = parse("<config combine.children='sideways'/>");
+
+        Assertions.assertThatThrownBy(() -> CompiledLayer.compile(element))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessageContaining("sideways");
+    }
+
+    private static Path compile(String content, String file)
+            throws IOException, ParserConfigurationException, SAXException {
+        Path path = Paths.get(file);
+        CompiledLayer.compile(parse(content)).write(path);
+        return path;
+    }
+
+    private static Element parse(String content) throws IOException, ParserConfigurationException, SAXException {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(stream(content)).getDocumentElement();
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String toString(XmlCombiner combiner) throws TransformerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        combiner.buildDocument(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
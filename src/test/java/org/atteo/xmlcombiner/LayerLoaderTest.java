@@ -0,0 +1,311 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.singletonList;
+import static org.xmlunit.assertj.XmlAssert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xml.sax.SAXException;
+
+public class LayerLoaderTest {
+    @Test
+    public void shouldExpandDirectoriesAndGlobsInDeterministicOrder() throws IOException {
+        // given
+        Path directory = Paths.get("target/layers/conf.d");
+        Files.createDirectories(directory);
+        write(directory.resolve("b.xml"), "<config/>");
+        write(directory.resolve("a.xml"), "<config/>");
+        write(directory.resolve("c.txt"), "<config/>");
+
+        // when
+        List<Path> fromDirectory = LayerLoader.expand("target/layers/conf.d");
+        List<Path> fromGlob = LayerLoader.expand("target/layers/conf.d/*.xml");
+
+        // then
+        Assertions.assertThat(fromDirectory).containsExactly(directory.resolve("a.xml"), directory.resolve("b.xml"));
+        Assertions.assertThat(fromGlob).containsExactly(directory.resolve("a.xml"), directory.resolve("b.xml"));
+    }
+
+    @Test
+    public void shouldNotTreatExistingFilesAsGlobs() throws IOException {
+        // given
+        Path directory = Paths.get("target/layers/brackets");
+        Files.createDirectories(directory);
+        Path file = write(directory.resolve("config[1].xml"), "<config/>");
+        write(directory.resolve("config1.xml"), "<config/>");
+
+        // when
+        List<Path> expanded = LayerLoader.expand("target/layers/brackets/config[1].xml");
+
+        // then
+        Assertions.assertThat(expanded).containsExactly(file);
+    }
+
+    @Test
+    public void shouldOrderByPriorityAndParseOnlyChangedFiles()
+            throws IOException, SAXException, ParserConfigurationException, TransformerException {
+        // given
+        Path directory = Files.createDirectories(Paths.get("target/layers/priority.d"));
+        Path cache = Paths.get("target/layers/cache");
+        write(directory.resolve("a.xml"), "<config combine.priority='10'><name>a</name></config>");
+        Path second = write(directory.resolve("b.xml"), "<config><name>b</name><b/></config>");
+        LayerLoader loader = new LayerLoader(ParserProfile.offline());
+        loader.setCacheDirectory(cache);
+        loader.load(singletonList(directory.toString()));
+
+        // when
+        write(second, "<config><name>changed</name><c/></config>");
+        Files.setLastModifiedTime(second, FileTime.fromMillis(Files.getLastModifiedTime(second).toMillis() + 2000));
+        List<CompiledLayer> layers = loader.load(singletonList(directory.toString()));
+
+        // then
+        Assertions.assertThat(loader.getLayersParsed()).isEqualTo(1);
+        Assertions.assertThat(loader.getLayersReused()).isEqualTo(1);
+        XmlCombiner combiner = new XmlCombiner(singletonList("id"));
+        for (CompiledLayer layer : layers) {
+            combiner.combine(layer);
+        }
+        StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(combiner.buildDocument()),
+                new StreamResult(writer));
+        assertThat(writer.toString()).and("<config><name>a</name><c/></config>").areSimilar();
+    }
+
+    @Test
+    public void shouldMergeAgainWhenWatchedLayerChanges() throws Exception {
+        // given
+        Path directory = Paths.get("target/layers/watched.d");
+        Files.createDirectories(directory);
+        Path output = Paths.get("target/layers/watched.xml");
+        write(directory.resolve("a.xml"), "<config><name>a</name></config>");
+        Path second = write(directory.resolve("b.xml"), "<config><b/></config>");
+        BlockingQueue<LayerWatcher.Cycle> cycles = new LinkedBlockingQueue<>();
+        LayerWatcher watcher = new LayerWatcher(ParserProfile.offline(), singletonList("id"),
+                singletonList(directory.toString()), output);
+        watcher.setDebounce(Duration.ofMillis(50));
+        watcher.setListener(cycles::add);
+        Thread thread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+
+        try {
+            LayerWatcher.Cycle first = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(first).isNotNull();
+            Assertions.assertThat(first.getError()).isNull();
+            Assertions.assertThat(first.getLayersParsed()).isEqualTo(2);
+
+            // when
+            write(second, "<config><c/></config>");
+            Files.setLastModifiedTime(second,
+                    FileTime.fromMillis(Files.getLastModifiedTime(second).toMillis() + 2000));
+
+            // then
+            LayerWatcher.Cycle cycle = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(cycle).isNotNull();
+            Assertions.assertThat(cycle.getError()).isNull();
+            Assertions.assertThat(cycle.getLayersParsed()).isEqualTo(1);
+            Assertions.assertThat(cycle.getLayersReused()).isEqualTo(1);
+            Assertions.assertThat(cycle.isWritten()).isTrue();
+            assertThat(output.toFile()).and("<config><name>a</name><c/></config>").areSimilar();
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void shouldNotMergeAgainWhenOnlyCacheOrOutputChanges() throws Exception {
+        // given
+        Path directory = Paths.get("target/layers/self.d");
+        Files.createDirectories(directory.resolve("nested"));
+        Path output = directory.resolve("merged.out");
+        Files.deleteIfExists(output);
+        write(directory.resolve("a.xml"), "<config><name>a</name></config>");
+        write(directory.resolve("nested/b.xml"), "<config><b/></config>");
+        BlockingQueue<LayerWatcher.Cycle> cycles = new LinkedBlockingQueue<>();
+        LayerWatcher watcher = new LayerWatcher(ParserProfile.offline(), singletonList("id"),
+                singletonList(directory + "/*.xml"), output);
+        watcher.getLoader().setCacheDirectory(directory.resolve("cache"));
+        watcher.setDebounce(Duration.ofMillis(50));
+        watcher.setListener(cycles::add);
+        Thread thread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+
+        try {
+            LayerWatcher.Cycle first = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(first).isNotNull();
+            Assertions.assertThat(first.getError()).isNull();
+            Assertions.assertThat(first.isWritten()).isTrue();
+
+            // when
+            write(directory.resolve("nested/b.xml"), "<config><c/></config>");
+
+            // then the nested directory is not watched and writing the output and the cache does not trigger cycles
+            Assertions.assertThat(cycles.poll(1, TimeUnit.SECONDS)).isNull();
+            assertThat(output.toFile()).and("<config><name>a</name></config>").areSimilar();
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void shouldWatchDirectoryCreatedAfterStart() throws Exception {
+        // given
+        Path parent = Paths.get("target/layers/late");
+        Path prepared = Paths.get("target/layers/late.tmp");
+        delete(parent);
+        delete(prepared);
+        write(Files.createDirectories(prepared.resolve("late.d")).resolve("a.xml"), "<config><a/></config>");
+        Path output = Paths.get("target/layers/late.xml");
+        BlockingQueue<LayerWatcher.Cycle> cycles = new LinkedBlockingQueue<>();
+        LayerWatcher watcher = new LayerWatcher(ParserProfile.offline(), singletonList("id"),
+                singletonList(parent + "/late.d/*.xml"), output);
+        watcher.setDebounce(Duration.ofMillis(50));
+        watcher.setListener(cycles::add);
+        Thread thread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+
+        try {
+            LayerWatcher.Cycle first = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(first).isNotNull();
+            Assertions.assertThat(first.getError()).isNotNull();
+
+            // when
+            Files.move(prepared, parent);
+
+            // then
+            LayerWatcher.Cycle cycle = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(cycle).isNotNull();
+            Assertions.assertThat(cycle.getError()).isNull();
+            Assertions.assertThat(cycle.getLayersParsed()).isEqualTo(1);
+            assertThat(output.toFile()).and("<config><a/></config>").areSimilar();
+
+            // when
+            write(parent.resolve("late.d/b.xml"), "<config><b/></config>");
+
+            // then
+            cycle = cycles.poll(10, TimeUnit.SECONDS);
+            Assertions.assertThat(cycle).isNotNull();
+            Assertions.assertThat(cycle.getError()).isNull();
+            assertThat(output.toFile()).and("<config><a/><b/></config>").areSimilar();
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void shouldNotRewriteUnchangedManifest() throws IOException, SAXException {
+        // given
+        Path directory = Files.createDirectories(Paths.get("target/layers/manifest.d"));
+        Path cache = Paths.get("target/layers/manifest.cache");
+        write(directory.resolve("a.xml"), "<config/>");
+        LayerLoader loader = new LayerLoader(ParserProfile.offline());
+        loader.setCacheDirectory(cache);
+        loader.load(singletonList(directory.toString()));
+        Path manifest = cache.resolve("manifest.properties");
+        FileTime past = FileTime.fromMillis(Files.getLastModifiedTime(manifest).toMillis() - 10000);
+        Files.setLastModifiedTime(manifest, past);
+
+        // when
+        new LayerLoader(ParserProfile.offline()).load(singletonList(directory.toString()));
+        loader.load(singletonList(directory.toString()));
+
+        // then
+        Assertions.assertThat(Files.getLastModifiedTime(manifest)).isEqualTo(past);
+    }
+
+    @Test
+    public void shouldApplyCompressionInWatchMode() throws IOException {
+        // given
+        Path directory = Files.createDirectories(Paths.get("target/layers/compressed.d"));
+        Path output = Paths.get("target/layers/compressed.xml");
+        write(directory.resolve("a.xml"), "<config><a/></config>");
+        try (LayerWatcher watcher = new LayerWatcher(ParserProfile.offline(), singletonList("id"),
+                singletonList(directory.toString()), output)) {
+            watcher.setCompression(Compression.GZIP);
+
+            // when
+            LayerWatcher.Cycle cycle = watcher.merge();
+
+            // then
+            Assertions.assertThat(cycle.getError()).isNull();
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(output))) {
+            assertThat(in).and("<config><a/></config>").areSimilar();
+        }
+        Assertions.assertThatThrownBy(() -> XmlCombiner.main(new String[] {"--watch", "--digest", "--output",
+                output.toString(), directory.toString()})).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static Path write(Path path, String content) throws IOException {
+        return Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -17,16 +17,53 @@ import static java.util.Collections.emptyList;
 import static org.xmlunit.assertj.XmlAssert.assertThat;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -35,12 +72,16 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.assertj.core.api.Assertions;
 import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.sun.management.ThreadMXBean;
 
 public class XmlCombinerTest {
     @Test
@@ -54,6 +95,15 @@ public class XmlCombinerTest {
         assertThat(combineWithIdKey(content, content)).and(content).areSimilar();
     }
 
+    @Test
+    public void shouldKeepPriorityAttribute()
+            throws SAXException, IOException, ParserConfigurationException, TransformerException {
+        String recessive = "<config><task combine.priority='1'/></config>";
+        String dominant = "<config combine.priority='2'><service id='1'/></config>";
+        String result = "<config combine.priority='2'><task combine.priority='1'/><service id='1'/></config>";
+        assertThat(combineWithIdKey(recessive, dominant)).and(result).areSimilar();
+    }
+
     @Test
     public void mergeChildren() throws SAXException, IOException, ParserConfigurationException, TransformerException {
         String recessive = "\n"
@@ -730,6 +780,1000 @@ public class XmlCombinerTest {
         Assertions.assertThat(lines.iterator().next()).contains("<config/>");
     }
 
+    @Test
+    public void shouldCombineCompressedFiles()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path gzipped = Paths.get("target/test.xml.gz");
+        Path deflated = Paths.get("target/test.xml.deflate");
+        Path output = Paths.get("target/test.out.gz");
+        try (OutputStream out = Compression.GZIP.compress(new FileOutputStream(gzipped.toFile()))) {
+            out.write("<config><a/></config>".getBytes(StandardCharsets.UTF_8));
+        }
+        try (OutputStream out = Compression.DEFLATE.compress(new FileOutputStream(deflated.toFile()))) {
+            out.write("<config><b/></config>".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // when
+        XmlCombiner combiner = new XmlCombiner();
+        combiner.combine(gzipped);
+        combiner.combine(deflated);
+        combiner.buildDocument(output);
+
+        // then
+        try (InputStream in = new GZIPInputStream(new FileInputStream(output.toFile()))) {
+            assertThat(in).and("<config><a/><b/></config>").areSimilar();
+        }
+    }
+
+    @Test
+    public void shouldReportWriteFailureAsTransformerException()
+            throws IOException, ParserConfigurationException, SAXException {
+        // given
+        Path full = Paths.get("/dev/full");
+        Assumptions.assumeTrue(full.toFile().canWrite(), "/dev/full is not available");
+        XmlCombiner combiner = new XmlCombiner();
+        combiner.combine(new ByteArrayInputStream("<config><a/></config>".getBytes(StandardCharsets.UTF_8)));
+
+        // when
+        Throwable thrown = Assertions.catchThrowable(() -> combiner.buildDocument(full));
+
+        // then
+        Assertions.assertThat(thrown).isInstanceOf(TransformerException.class);
+    }
+
+    @Test
+    public void shouldNotCloseStandardOutputWhenCompressing() throws Exception {
+        // given
+        Path input = Paths.get("target/test.stdout.xml");
+        Files.asCharSink(input.toFile(), StandardCharsets.UTF_8).write("<config><a/></config>");
+        boolean[] closed = new boolean[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        PrintStream out = System.out;
+
+        // when
+        System.setOut(new PrintStream(bytes));
+        try {
+            XmlCombiner.main(new String[] {"--compress", "gzip", input.toString()});
+        } finally {
+            System.setOut(out);
+        }
+
+        // then
+        Assertions.assertThat(closed[0]).isFalse();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(in).and("<config><a/></config>").areSimilar();
+        }
+    }
+
+    @Test
+    public void shouldWriteOnlyWhenContentChanged()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path output = Paths.get("target/test.if-changed.xml");
+        output.toFile().delete();
+        XmlCombiner combiner = new XmlCombiner();
+        combiner.combine(new ByteArrayInputStream("<config/>".getBytes(StandardCharsets.UTF_8)));
+
+        // when
+        boolean created = combiner.buildDocumentIfChanged(output);
+        boolean rewritten = combiner.buildDocumentIfChanged(output);
+        combiner.combine(new ByteArrayInputStream("<config><a/></config>".getBytes(StandardCharsets.UTF_8)));
+        boolean changed = combiner.buildDocumentIfChanged(output);
+
+        // then
+        Assertions.assertThat(created).isTrue();
+        Assertions.assertThat(rewritten).isFalse();
+        Assertions.assertThat(changed).isTrue();
+        assertThat(output.toFile()).and("<config><a/></config>").areSimilar();
+        Assertions.assertThat(output.toAbsolutePath().getParent())
+                .isDirectoryNotContaining("glob:**/.test.if-changed.xml.*");
+    }
+
+    @Test
+    public void shouldSkipOverriddenContentWhenCombiningDominantFirst()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        assertSameWhenDominantFirst(
+                "<config><!-- base --><service id='1'><a/><b/></service><service id='2'><c/></service>"
+                        + "<service id='3'><d/></service></config>",
+                "<config><service id='3' combine.self='override'><e/></service>"
+                        + "<service id='1'><f/></service></config>",
+                "<config><service id='1' combine.self='override'><g/></service>"
+                        + "<service id='2' combine.self='remove'/></config>");
+        // duplicated keys are not paired, the skipped content must be restored
+        assertSameWhenDominantFirst(
+                "<config><service id='1'><a/></service><service id='1'><b/></service></config>",
+                "<config><service id='1' combine.self='override'><c/></service></config>");
+        assertSameWhenDominantFirst(
+                "<config><service id='1' combine.children='add'><a/></service></config>",
+                "<config><service id='1' combine.self='override'><c/></service></config>");
+    }
+
+    private static void assertSameWhenDominantFirst(String... inputs)
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        List<Path> files = new ArrayList<>();
+        XmlCombiner expected = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        for (int i = 0; i < inputs.length; i++) {
+            Path file = Paths.get("target/dominant-first-" + i + ".xml");
+            Files.asCharSink(file.toFile(), StandardCharsets.UTF_8).write(inputs[i]);
+            files.add(file);
+            expected.combine(file);
+        }
+
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        combiner.combineDominantFirst(files);
+
+        Assertions.assertThat(toString(combiner.buildDocument())).isEqualTo(toString(expected.buildDocument()));
+    }
+
+    @Test
+    public void shouldMergeOutOfCore()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException,
+            XMLStreamException {
+        assertSameOutOfCore(
+                "<config><!-- base --><service id='1'><a/></service><service id='2'><c/></service>"
+                        + "<service id='1'><b/></service><x combine.self='overridable_by_tag'/><y/>"
+                        + "<!-- tail --></config>",
+                "<config><service id='2' combine.children='append'><d/></service><x id='x'/>"
+                        + "<service id='3' combine.self='override'><e/></service><y combine.children='add'/>"
+                        + "<z combine.self='defaults'/></config>",
+                "<config><service id='3' combine.self='remove'/><!-- dominant --><w/><w/></config>");
+        assertSameOutOfCore(
+                "<config><a/><b/></config>",
+                "<config combine.children='append'><a/><c combine.self='defaults'/></config>",
+                "<config name='x'><d/></config>");
+        assertSameOutOfCore(
+                "<config><a/></config>",
+                "<config combine.self='override'><b><c combine.self='remove'/></b></config>");
+        assertSameOutOfCore(
+                "<config><a/></config>",
+                "<config combine.self='remove'/>");
+
+        // enough distinct keys and tag names to split the partitions recursively
+        StringBuilder recessive = new StringBuilder("<config>");
+        StringBuilder dominant = new StringBuilder("<config>");
+        for (int i = 0; i < 500; i++) {
+            recessive.append("<service id='").append(i).append("'><a>").append(i).append("</a></service>");
+            dominant.append("<tag").append(i).append("/>");
+            if (i % 3 == 0) {
+                dominant.append("<service id='").append(i).append("'><b/></service>");
+            }
+        }
+        recessive.append("<tag7 combine.self='overridable_by_tag'/><other combine.self='overridable_by_tag'/>");
+        assertSameOutOfCore(recessive.append("</config>").toString(), dominant.append("</config>").toString());
+    }
+
+    private static void assertSameOutOfCore(String... inputs)
+            throws IOException, ParserConfigurationException, SAXException, TransformerException,
+            XMLStreamException {
+        List<Path> files = new ArrayList<>();
+        XmlCombiner expected = new XmlCombiner(Collections.singletonList("id"));
+        for (int i = 0; i < inputs.length; i++) {
+            Path file = Paths.get("target/out-of-core-" + i + ".xml");
+            Files.asCharSink(file.toFile(), StandardCharsets.UTF_8).write(inputs[i]);
+            files.add(file);
+            expected.combine(file);
+        }
+
+        OutOfCoreCombiner combiner = new OutOfCoreCombiner(Collections.singletonList("id"));
+        // force many partitions
+        combiner.setPartitionSize(16);
+        combiner.setSpillDirectory(Paths.get("target/spill"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        combiner.combine(files, out);
+
+        Document document = expected.buildDocument();
+        if (document.getDocumentElement() == null) {
+            Assertions.assertThat(out.toString("UTF-8")).isEqualTo(toString(document));
+        } else {
+            assertThat(out.toString("UTF-8")).and(toString(document)).areIdentical();
+        }
+        Assertions.assertThat(Paths.get("target/spill")).isEmptyDirectory();
+    }
+
+    @Test
+    public void shouldFindMergedElementsByKeyPath()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        combiner.setIndexed(true);
+
+        // when
+        combiner.combine(new ByteArrayInputStream(("<config><service id='foo'><parameter>a</parameter></service>"
+                + "<service id='bar' combine.keys='name'><item name='x'/></service>"
+                + "<list combine.children='append'><item/></list></config>").getBytes(StandardCharsets.UTF_8)));
+        combiner.combine(new ByteArrayInputStream(("<config><service id='foo'><parameter>b</parameter></service>"
+                + "<service id='bar' combine.keys='name' combine.self='override'><item name='y'/></service>"
+                + "<list><item/></list><defaults combine.self='defaults'/></config>")
+                .getBytes(StandardCharsets.UTF_8)));
+        Document result = combiner.buildDocument();
+
+        // then
+        Assertions.assertThat(combiner.lookup("service[id=foo]/parameter")).singleElement()
+                .satisfies(element -> Assertions.assertThat(element.getTextContent()).isEqualTo("b"));
+        Assertions.assertThat(combiner.lookup("service[id='bar']/item[name=y]")).singleElement()
+                .satisfies(element -> Assertions.assertThat(element.getOwnerDocument()).isSameAs(result));
+        Assertions.assertThat(combiner.lookup("service[id='bar']/item[name=x]")).isEmpty();
+        Assertions.assertThat(combiner.lookup("list/item")).hasSize(2);
+        Assertions.assertThat(combiner.lookup("defaults")).isEmpty();
+        Assertions.assertThat(combiner.lookup("service")).isEmpty();
+    }
+
+    @Test
+    public void shouldCombineAsynchronouslyWithThrottledReads() throws Exception {
+        // given
+        List<Path> files = new ArrayList<>();
+        Map<Path, CountDownLatch> combining = new ConcurrentHashMap<>();
+        for (int i = 0; i < 4; i++) {
+            Path file = Paths.get("target/async-" + i + ".xml");
+            Files.asCharSink(file.toFile(), StandardCharsets.UTF_8).write("<config><service id='1'><p" + i
+                    + "/></service><s" + i + "/></config>");
+            files.add(file);
+            combining.put(file, new CountDownLatch(1));
+        }
+        List<Path> notOverlapped = new CopyOnWriteArrayList<>();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        // each next file is read only after the previous one started to be combined
+        AsyncFileReader reader = new AsyncFileReader(8, 4, file -> new ThrottledChannel(
+                AsynchronousFileChannel.open(file, StandardOpenOption.READ), scheduler, 10, () -> {
+                    int index = files.indexOf(file);
+                    try {
+                        CountDownLatch previous = index > 0 ? combining.get(files.get(index - 1)) : null;
+                        if (previous != null && !previous.await(2, TimeUnit.SECONDS)) {
+                            notOverlapped.add(file);
+                            previous.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        combiner.setFilter((recessive, dominant, result) -> {
+            if (result.getTagName().startsWith("s") && !result.getTagName().equals("service")) {
+                combining.get(files.get(Integer.parseInt(result.getTagName().substring(1)))).countDown();
+            }
+        });
+
+        // when
+        try {
+            combiner.combineAsync(reader, files, ForkJoinPool.commonPool()).get(30, TimeUnit.SECONDS);
+        } finally {
+            scheduler.shutdown();
+        }
+
+        // then
+        assertThat(toString(combiner.buildDocument())).and("<config><service id='1'><p0/><p1/><p2/><p3/></service>"
+                + "<s0/><s1/><s2/><s3/></config>").areSimilar();
+        // reading each next file did not wait for the previous one to be combined
+        Assertions.assertThat(notOverlapped).isEmpty();
+        Assertions.assertThatThrownBy(
+                () -> combiner.combineAsync(Collections.singletonList(Paths.get("target/missing.xml"))).get())
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IOException.class);
+    }
+
+    /**
+     * Delays each read to simulate slow storage.
+     */
+    private static class ThrottledChannel extends AsynchronousFileChannel {
+        private final AsynchronousFileChannel channel;
+        private final ScheduledExecutorService scheduler;
+        private final long delayMillis;
+        private final Runnable beforeRead;
+
+        ThrottledChannel(AsynchronousFileChannel channel, ScheduledExecutorService scheduler, long delayMillis,
+                Runnable beforeRead) {
+            this.channel = channel;
+            this.scheduler = scheduler;
+            this.delayMillis = delayMillis;
+            this.beforeRead = beforeRead;
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment,
+                CompletionHandler<Integer, ? super A> handler) {
+            scheduler.schedule(() -> {
+                beforeRead.run();
+                channel.read(dst, position, attachment, handler);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment,
+                CompletionHandler<FileLock, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long position, A attachment,
+                CompletionHandler<Integer, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldIgnoreWhitespaceAndIndentResult()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        String recessive = "<config>\n"
+                + "  <service id='1'>\n"
+                + "      <parameter> value </parameter>\n"
+                + "  </service>\n"
+                + "  <list combine.children='append'>\n"
+                + "    <item/>\n"
+                + "  </list>\n"
+                + "  <p>mixed <b>content</b> </p>\n"
+                + "</config>";
+        String dominant = "<config>\n"
+                + "\t<!-- first -->\n"
+                + "\t<service id='1'><parameter2/></service>\n"
+                + "\t<list><item/></list>\n"
+                + "</config>";
+        String result = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><config>\n"
+                + "    <!-- first -->\n"
+                + "    <service id=\"1\">\n"
+                + "        <parameter> value </parameter>\n"
+                + "        <parameter2/>\n"
+                + "    </service>\n"
+                + "    <list>\n"
+                + "        <item/>\n"
+                + "        <item/>\n"
+                + "    </list>\n"
+                + "    <p>mixed <b>content</b> </p>\n"
+                + "</config>";
+
+        for (XmlCombiner combiner : Arrays.asList(new XmlCombiner(Collections.singletonList("id")),
+                new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id")))) {
+            combiner.setIgnoreWhitespace(true);
+            combiner.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+            combiner.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+            Assertions.assertThat(toString(combiner.buildDocument())).isEqualTo(result);
+            Assertions.assertThat(toString(combiner.buildDocument())).isEqualTo(result);
+        }
+    }
+
+    @Test
+    public void shouldApplyMergeRules()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path rulesFile = Paths.get("target/test.rules.xml");
+        Files.asCharSink(rulesFile.toFile(), StandardCharsets.UTF_8).write("<merge-rules>\n"
+                + "    <rule path='/config' combine.keys='id'/>\n"
+                + "    <rule path='/config/service' combine.self='override'/>\n"
+                + "    <rule path='list' combine.children='append'/>\n"
+                + "    <rule path='/config/**/default' combine.self='defaults'/>\n"
+                + "    <rule path='/config/plugin/*' combine.keys='name'/>\n"
+                + "</merge-rules>");
+        MergeRules rules = MergeRules.load(rulesFile);
+
+        String recessive = "<config>\n"
+                + "    <service id='1'>\n"
+                + "        <parameter/>\n"
+                + "    </service>\n"
+                + "    <service id='2'>\n"
+                + "        <parameter/>\n"
+                + "    </service>\n"
+                + "    <plugin id='a'>\n"
+                + "        <settings>\n"
+                + "            <list><item/></list>\n"
+                + "            <option name='x' value='1'/>\n"
+                + "        </settings>\n"
+                + "    </plugin>\n"
+                + "</config>";
+        String dominant = "<config>\n"
+                + "    <service id='1'>\n"
+                + "        <parameter2/>\n"
+                + "    </service>\n"
+                + "    <service id='2' combine.self='merge'>\n"
+                + "        <parameter2/>\n"
+                + "    </service>\n"
+                + "    <plugin id='a'>\n"
+                + "        <settings>\n"
+                + "            <list><item/></list>\n"
+                + "            <option name='x' value='2'/>\n"
+                + "            <default/>\n"
+                + "        </settings>\n"
+                + "    </plugin>\n"
+                + "</config>";
+        String result = "<config>\n"
+                + "    <service id='1'>\n"
+                + "        <parameter2/>\n"
+                + "    </service>\n"
+                + "    <service id='2'>\n"
+                + "        <parameter/>\n"
+                + "        <parameter2/>\n"
+                + "    </service>\n"
+                + "    <plugin id='a'>\n"
+                + "        <settings>\n"
+                + "            <list><item/><item/></list>\n"
+                + "            <option name='x' value='2'/>\n"
+                + "        </settings>\n"
+                + "    </plugin>\n"
+                + "</config>";
+
+        XmlCombiner combiner = new XmlCombiner();
+        combiner.setMergeRules(rules);
+        combiner.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+        combiner.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+        assertThat(combiner.buildDocument()).and(result).ignoreWhitespace().areIdentical();
+
+        XmlCombiner withoutRules = new XmlCombiner();
+        withoutRules.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+        withoutRules.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+        assertThat(withoutRules.buildDocument()).and(result).ignoreWhitespace().areNotIdentical();
+    }
+
+    @Test
+    public void shouldExposeResultAsSourceAndStreamReader()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException,
+            XMLStreamException {
+        String recessive = "<config xmlns:x='urn:x' combine.keys='id'>\n"
+                + "    <!-- recessive -->\n"
+                + "    <?target data?>\n"
+                + "    <service id='1' combine.children='append'>\n"
+                + "        <x:parameter x:type='a'>1</x:parameter>\n"
+                + "    </service>\n"
+                + "    <!-- dropped -->\n"
+                + "    <service id='2' combine.self='DEFAULTS'/>\n"
+                + "    <text><![CDATA[<raw>]]></text>\n"
+                + "</config>";
+        String dominant = "<config>\n"
+                + "    <service id='1' combine.id='one'>\n"
+                + "        <parameter xmlns='urn:default'>2</parameter>\n"
+                + "    </service>\n"
+                + "</config>";
+
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), emptyList());
+        combiner.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+        combiner.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+        XmlCombiner expectedCombiner = new XmlCombiner(ParserProfile.standard(), emptyList());
+        expectedCombiner.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+        expectedCombiner.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+        String expected = toString(expectedCombiner.buildDocument());
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        for (int i = 0; i < 2; i++) {
+            StringWriter sax = new StringWriter();
+            transformer.transform(combiner.toSource(), new StreamResult(sax));
+            assertThat(sax.toString()).and(expected).areIdentical();
+
+            assertThat(toString(combiner.toXMLStreamReader())).and(expected).areIdentical();
+        }
+
+        XMLStreamReader reader = combiner.toXMLStreamReader();
+        Assertions.assertThat(reader.next()).isEqualTo(XMLStreamReader.START_ELEMENT);
+        Assertions.assertThat(reader.getAttributeCount()).isEqualTo(0);
+        Assertions.assertThat(reader.getNamespaceURI("x")).isEqualTo("urn:x");
+        Assertions.assertThat(reader.nextTag()).isEqualTo(XMLStreamReader.START_ELEMENT);
+        Assertions.assertThat(reader.getAttributeValue(null, "id")).isEqualTo("1");
+        Assertions.assertThat(reader.getAttributeValue(null, "combine.id")).isNull();
+        reader.nextTag();
+        Assertions.assertThat(reader.getName()).isEqualTo(new QName("urn:x", "parameter", "x"));
+        Assertions.assertThat(reader.getAttributeName(0)).isEqualTo(new QName("urn:x", "type", "x"));
+        Assertions.assertThat(reader.getElementText()).isEqualTo("1");
+        Assertions.assertThat(reader.nextTag()).isEqualTo(XMLStreamReader.END_ELEMENT);
+        reader.nextTag();
+        Assertions.assertThat(reader.getLocalName()).isEqualTo("text");
+        Assertions.assertThat(reader.getElementText()).isEqualTo("<raw>");
+        reader.nextTag();
+        reader.nextTag();
+        Assertions.assertThat(reader.getName()).isEqualTo(new QName("urn:default", "parameter"));
+
+        // the result was not modified by the views
+        Assertions.assertThat(toString(combiner.buildDocument())).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldReuseCachedLayers()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path base = Paths.get("target/test.cached.base.xml");
+        Path overlay = Paths.get("target/test.cached.overlay.xml");
+        Files.asCharSink(base.toFile(), StandardCharsets.UTF_8).write("<config>\n"
+                + "    <service id='1'><a/></service>\n"
+                + "    <service id='2' combine.self='defaults'><b/></service>\n"
+                + "</config>");
+        Files.asCharSink(overlay.toFile(), StandardCharsets.UTF_8).write("<config>\n"
+                + "    <service id='1'><c/></service>\n"
+                + "</config>");
+        String expected = "<config>\n"
+                + "    <service id='1'><a/><c/></service>\n"
+                + "</config>";
+
+        LayerCache cache = new LayerCache(1024 * 1024);
+        cache.setVerifyContent(true);
+        for (int i = 0; i < 3; i++) {
+            XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+            combiner.setLayerCache(cache);
+            combiner.combine(base);
+            combiner.combine(overlay);
+            assertThat(combiner.buildDocument()).and(expected).areIdentical();
+        }
+        Assertions.assertThat(cache.getMissCount()).isEqualTo(2);
+        Assertions.assertThat(cache.getHitCount()).isEqualTo(4);
+        Assertions.assertThat(cache.getHitRate()).isEqualTo(4 / 6.0);
+        Assertions.assertThat(cache.getEntryCount()).isEqualTo(2);
+
+        // changed file is parsed again
+        Files.asCharSink(overlay.toFile(), StandardCharsets.UTF_8).write("<config>\n"
+                + "    <service id='1'><d/></service>\n"
+                + "</config>");
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        combiner.setLayerCache(cache);
+        combiner.combine(base);
+        combiner.combine(overlay);
+        assertThat(combiner.buildDocument()).and(expected.replace("<c/>", "<d/>")).areIdentical();
+        Assertions.assertThat(cache.getMissCount()).isEqualTo(3);
+
+        long size = cache.getSize();
+        cache.invalidate(base);
+        Assertions.assertThat(cache.getEntryCount()).isEqualTo(1);
+
+        LayerCache small = new LayerCache(size - 1);
+        XmlCombiner evicting = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        evicting.setLayerCache(small);
+        evicting.combine(overlay);
+        evicting.combine(base);
+        Assertions.assertThat(small.getEntryCount()).isEqualTo(1);
+        Assertions.assertThat(small.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldIncludeCachedFragments()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path fragment = Paths.get("target/test.fragment.xml");
+        Path text = Paths.get("target/test.fragment.txt");
+        Path entity = Paths.get("target/test.entity.xml");
+        Path base = Paths.get("target/test.including.base.xml");
+        Path overlay = Paths.get("target/test.including.overlay.xml");
+        Files.asCharSink(text.toFile(), StandardCharsets.UTF_8).write("text");
+        Files.asCharSink(fragment.toFile(), StandardCharsets.UTF_8).write(
+                "<service id='1' xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='test.fragment.txt' parse='text'/></service>");
+        Files.asCharSink(entity.toFile(), StandardCharsets.UTF_8).write("<entity/>");
+        Files.asCharSink(base.toFile(), StandardCharsets.UTF_8).write(
+                "<!DOCTYPE config [<!ENTITY e SYSTEM 'test.entity.xml'>]>"
+                + "<config xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='test.fragment.xml'/>"
+                + "<xi:include href='missing.xml'><xi:fallback><fallback/></xi:fallback></xi:include>"
+                + "&e;</config>");
+        Files.asCharSink(overlay.toFile(), StandardCharsets.UTF_8).write(
+                "<config xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='test.fragment.xml'/><service id='2'/></config>");
+        String expected = "<config xmlns:xi='http://www.w3.org/2001/XInclude'><service id='1'>text</service>"
+                + "<fallback/><entity/><service id='2'/></config>";
+
+        FragmentCache cache = new FragmentCache(1024 * 1024);
+        for (int i = 0; i < 2; i++) {
+            XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+            combiner.setFragmentCache(cache);
+            combiner.combine(base);
+            combiner.combine(overlay);
+            assertThat(toString(combiner.buildDocument())).and(expected).ignoreWhitespace().areSimilar();
+        }
+        // the fragment, the text and the entity are read once
+        Assertions.assertThat(cache.getMissCount()).isEqualTo(3);
+        Assertions.assertThat(cache.getHitCount()).isEqualTo(4);
+
+        Files.asCharSink(base.toFile(), StandardCharsets.UTF_8).write(
+                "<config xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='test.including.base.xml'/>"
+                + "</config>");
+        XmlCombiner cyclic = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        cyclic.setFragmentCache(cache);
+        Assertions.assertThatThrownBy(() -> cyclic.combine(base)).isInstanceOf(SAXException.class)
+                .hasMessageContaining("Cyclic");
+    }
+
+    @Test
+    public void shouldReloadEditedIncludedFragments()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path fragment = Paths.get("target/test.reload.fragment.xml");
+        Path text = Paths.get("target/test.reload.fragment.txt");
+        Path entity = Paths.get("target/test.reload.entity.xml");
+        Path base = Paths.get("target/test.reload.base.xml");
+        Files.asCharSink(text.toFile(), StandardCharsets.UTF_8).write("text");
+        Files.asCharSink(fragment.toFile(), StandardCharsets.UTF_8).write(
+                "<service id='1' xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='test.reload.fragment.txt' parse='text'/></service>");
+        Files.asCharSink(entity.toFile(), StandardCharsets.UTF_8).write("<entity/>");
+        Files.asCharSink(base.toFile(), StandardCharsets.UTF_8).write(
+                "<!DOCTYPE config [<!ENTITY e SYSTEM 'test.reload.entity.xml'>]>"
+                + "<config xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='test.reload.fragment.xml'/>&e;</config>");
+        String expected = "<config xmlns:xi='http://www.w3.org/2001/XInclude'><service id='1'>text</service>"
+                + "<entity/></config>";
+        FragmentCache fragmentCache = new FragmentCache(1024 * 1024);
+        LayerCache layerCache = new LayerCache(1024 * 1024);
+
+        // when
+        String first = merge(base, fragmentCache, layerCache);
+        edit(fragment, "<service id='1'><edited/></service>");
+        String second = merge(base, fragmentCache, layerCache);
+        edit(entity, "<edited-entity/>");
+        String third = merge(base, fragmentCache, layerCache);
+        String fourth = merge(base, fragmentCache, layerCache);
+
+        // then
+        assertThat(first).and(expected).ignoreWhitespace().areSimilar();
+        assertThat(second).and(expected.replace("text", "<edited/>")).ignoreWhitespace().areSimilar();
+        assertThat(third).and(expected.replace("text", "<edited/>").replace("<entity/>", "<edited-entity/>"))
+                .ignoreWhitespace().areSimilar();
+        assertThat(fourth).and(third).areIdentical();
+        Assertions.assertThat(layerCache.getMissCount()).isEqualTo(3);
+        Assertions.assertThat(layerCache.getHitCount()).isEqualTo(1);
+    }
+
+    private static String merge(Path file, FragmentCache fragmentCache, LayerCache layerCache)
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+        combiner.setFragmentCache(fragmentCache);
+        combiner.setLayerCache(layerCache);
+        combiner.combine(file);
+        return toString(combiner.buildDocument());
+    }
+
+    private static void edit(Path file, String content) throws IOException {
+        long lastModified = file.toFile().lastModified();
+        Files.asCharSink(file.toFile(), StandardCharsets.UTF_8).write(content);
+        // make the change visible even on file systems with coarse modification times
+        file.toFile().setLastModified(lastModified + 2000);
+    }
+
+    @Test
+    public void shouldCopyDirectiveFreeSubtreesInBulk()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        String recessive = "<config><service id='1'><parameter>a</parameter></service></config>";
+        String dominant = "<config>"
+                + "<service id='2'><parameter>b</parameter><!-- c --><parameter>c</parameter></service>"
+                + "<list><item/><other/><item/></list>"
+                + "<service id='3' combine.children='append'><parameter>d</parameter></service>"
+                + "</config>";
+        String expected = "<config><service id='1'><parameter>a</parameter></service>"
+                + "<service id='2'><parameter>b</parameter><!-- c --><parameter>c</parameter></service>"
+                + "<list><item/><item/><other/></list>"
+                + "<service id='3'><parameter>d</parameter></service>"
+                + "</config>";
+        List<String> notifications = Lists.newArrayList();
+        XmlCombiner.Filter filter = (recessiveElement, dominantElement, resultElement) -> {
+            if (recessiveElement == null) {
+                notifications.add(dominantElement.getTagName() + dominantElement.getAttribute("id"));
+            }
+        };
+
+        assertThat(combineWithIdKey(recessive, dominant)).and(expected).areSimilar();
+
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        combiner.setFilter(filter);
+        combiner.setIndexed(true);
+        combiner.combine(new ByteArrayInputStream(recessive.getBytes(StandardCharsets.UTF_8)));
+        combiner.combine(new ByteArrayInputStream(dominant.getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertThat(combiner.lookup("service[id=2]/parameter")).hasSize(2);
+        Assertions.assertThat(combiner.lookup("list/item")).hasSize(2);
+        assertThat(toString(combiner.buildDocument())).and(expected).areSimilar();
+        Assertions.assertThat(notifications).containsExactly("parameter", "service1", "config",
+                "parameter", "parameter", "service2", "item", "item", "other", "list", "parameter");
+    }
+
+    @Test
+    public void shouldReuseCombinersFromPool()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        XmlCombinerPool pool = new XmlCombinerPool(
+                () -> new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id")), 1);
+        XmlCombiner combiner = pool.acquire();
+        combiner.setIndexed(true);
+        combiner.combine(new ByteArrayInputStream("<config><a id='1'/></config>".getBytes(StandardCharsets.UTF_8)));
+        Document first = combiner.buildDocument();
+        pool.release(combiner);
+
+        XmlCombiner reused = pool.acquire();
+        Assertions.assertThat(reused).isSameAs(combiner);
+        Assertions.assertThat(reused.lookup("a")).isEmpty();
+        reused.combine(new ByteArrayInputStream("<other><b/></other>".getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reused.buildDocument(out);
+        reused.buildDocument(out);
+
+        assertThat(toString(first)).and("<config><a id='1'/></config>").areSimilar();
+        Assertions.assertThat(out.toString("UTF-8")).contains("<other><b/></other><?xml");
+        Assertions.assertThat(pool.acquire()).isNotSameAs(reused);
+        pool.release(reused);
+        Assertions.assertThat(pool.getIdleCount()).isEqualTo(1);
+        Assertions.assertThat(pool.getCreatedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReuseMergeScratchStructures() throws ParserConfigurationException {
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // given
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element root = document.createElement("config");
+        for (int i = 0; i < 500; i++) {
+            root.appendChild(document.createElement("item"));
+            Element service = document.createElement("service");
+            service.setAttribute("id", Integer.toString(i));
+            root.appendChild(service);
+        }
+        Context parent = Context.fromElement(root);
+        KeyAttributesChildContextsMapper mapper = new KeyAttributesChildContextsMapper();
+        List<String> keys = Collections.singletonList("id");
+
+        // when
+        long allocating = 0;
+        long reusing = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 100; i++) {
+                mapper.mapChildContexts(parent, keys);
+            }
+            long middle = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 100; i++) {
+                mapper.release(mapper.mapChildContexts(parent, keys));
+            }
+            allocating = middle - start;
+            reusing = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - middle;
+        }
+
+        // then
+        Map<Key, List<Context>> map = mapper.mapChildContexts(parent, keys);
+        Assertions.assertThat(map).hasSize(502);
+        Assertions.assertThat(map.get(new Key("item", Collections.emptyMap()))).hasSize(500);
+        Assertions.assertThat(map.get(new Key("service", Collections.singletonMap("id", "7")))).hasSize(1);
+        Assertions.assertThat(reusing).isLessThan(allocating * 3 / 4);
+    }
+
+    @Test
+    public void shouldComputeDigestWhileWriting()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException,
+            NoSuchAlgorithmException {
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        combiner.combine(new ByteArrayInputStream(
+                "<config><a id='1' x='1' y='2'>text  here</a></config>".getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputDigest digest = combiner.buildDocumentWithDigest(out, true);
+
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(out.toByteArray());
+        Assertions.assertThat(digest.getDigest()).isEqualTo(expected);
+        Assertions.assertThat(digest.getETag()).hasSize(66).startsWith("\"").endsWith("\"");
+
+        XmlCombiner reformatted = new XmlCombiner(Collections.singletonList("id"));
+        reformatted.combine(new ByteArrayInputStream(("<config>\n  <a y='2' x='1' id='1'>\n    text here\n  </a>"
+                + "<!-- comment -->\n</config>").getBytes(StandardCharsets.UTF_8)));
+        OutputDigest reformattedDigest = reformatted.buildDocumentWithDigest(new ByteArrayOutputStream(), true);
+        Assertions.assertThat(reformattedDigest.getHex()).isNotEqualTo(digest.getHex());
+        Assertions.assertThat(reformattedDigest.getCanonicalHex()).isEqualTo(digest.getCanonicalHex());
+
+        XmlCombiner changed = new XmlCombiner(Collections.singletonList("id"));
+        changed.combine(new ByteArrayInputStream(
+                "<config><a id='1' x='1' y='3'>text here</a></config>".getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertThat(changed.buildDocumentWithDigest(new ByteArrayOutputStream(), false))
+                .satisfies(d -> Assertions.assertThat(d.getCanonicalDigest()).isNull())
+                .extracting(OutputDigest::getHex).isNotEqualTo(digest.getHex());
+        Assertions.assertThat(OutputDigest.canonicalDigest(changed.buildDocument().getDocumentElement()))
+                .isNotEqualTo(digest.getCanonicalDigest());
+
+        // the digest of the compressed file is computed from the uncompressed XML
+        Path compressed = Paths.get("target/test.digest.xml");
+        OutputDigest compressedDigest = combiner.buildDocumentWithDigest(compressed, Compression.GZIP, false);
+        try (InputStream in = new GZIPInputStream(new FileInputStream(compressed.toFile()))) {
+            Assertions.assertThat(compressedDigest.getDigest())
+                    .isEqualTo(MessageDigest.getInstance("SHA-256").digest(ByteStreams.toByteArray(in)));
+        }
+    }
+
+    @Test
+    public void shouldSubstitutePlaceholders()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException, XMLStreamException {
+        String base = "<config><properties><host>localhost</host><url>http://${host}:${port}</url></properties>"
+                + "<service id='1' url='${url}/a'>${missing}</service></config>";
+        String overlay = "<config><properties><host>example.com</host></properties>"
+                + "<service id='2' combine.self='override' url='${url}/b'><![CDATA[${host}]]></service></config>";
+        String expected = "<config><properties><host>example.com</host>"
+                + "<url>http://example.com:8080</url></properties>"
+                + "<service id='1' url='http://example.com:8080/a'>${missing}</service>"
+                + "<service id='2' url='http://example.com:8080/b'><![CDATA[example.com]]></service></config>";
+        int[] resolved = new int[1];
+
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        combiner.setPropertiesElement("properties");
+        combiner.setPropertyResolver(name -> {
+            resolved[0]++;
+            return name.equals("port") ? "8080" : null;
+        });
+        combiner.combine(new ByteArrayInputStream(base.getBytes(StandardCharsets.UTF_8)));
+        combiner.combine(new ByteArrayInputStream(overlay.getBytes(StandardCharsets.UTF_8)));
+
+        // the views substitute the placeholders as well
+        StringWriter sax = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(combiner.toSource(), new StreamResult(sax));
+        assertThat(sax.toString()).and(expected).areSimilar();
+        assertThat(toString(combiner.toXMLStreamReader())).and(expected).areSimilar();
+        resolved[0] = 0;
+
+        assertThat(toString(combiner.buildDocument())).and(expected).areSimilar();
+        Assertions.assertThat(combiner.getUnresolvedPlaceholders())
+                .containsExactly("/config/service[id=1]/text(): ${missing}");
+        // host, port, url and missing are each resolved once
+        Assertions.assertThat(resolved[0]).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldCombineResourcesFromJars()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        Path directory = Paths.get("target/test.resources");
+        Files.createParentDirs(directory.resolve("META-INF/test.xml").toFile());
+        Files.asCharSink(directory.resolve("META-INF/test.xml").toFile(), StandardCharsets.UTF_8).write(
+                "<config><service id='1' value='directory'/></config>");
+        Path jar = Paths.get("target/test.resources.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar.toFile()))) {
+            out.putNextEntry(new ZipEntry("META-INF/test.xml"));
+            out.write("<config><service id='1' value='jar'/><service id='2'/></config>"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        Path otherJar = Paths.get("target/test.other.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(otherJar.toFile()))) {
+            out.putNextEntry(new ZipEntry("META-INF/other.xml"));
+            out.write("<other/>".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+
+        Path plain = Paths.get("target/test.resources.txt");
+        Files.asCharSink(plain.toFile(), StandardCharsets.UTF_8).write("not a jar");
+        Path corrupted = Paths.get("target/test.corrupted.jar");
+        Files.write(new byte[] {'P', 'K', 3, 4, 0, 0, 0, 0}, corrupted.toFile());
+
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        int count = combiner.combineResources("META-INF/test.xml",
+                Arrays.asList(directory, jar, otherJar, Paths.get("target/missing.jar"), jar, plain, corrupted));
+
+        Assertions.assertThat(count).isEqualTo(2);
+        assertThat(toString(combiner.buildDocument()))
+                .and("<config><service id='1' value='directory'/><service id='2'/></config>")
+                .areSimilar();
+    }
+
+    @Test
+    public void shouldCombineResourcesFromContextClassLoader()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path directory = Paths.get("target/test.context.resources");
+        Files.createParentDirs(directory.resolve("META-INF/context.xml").toFile());
+        Files.asCharSink(directory.resolve("META-INF/context.xml").toFile(), StandardCharsets.UTF_8).write(
+                "<config><service id='1' value='directory'/></config>");
+        Path jar = Paths.get("target/test.context.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar.toFile()))) {
+            out.putNextEntry(new ZipEntry("META-INF/context.xml"));
+            out.write("<config><service id='1' value='jar'/><service id='2'/></config>"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+
+        // when
+        int count;
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[] {
+                directory.toUri().toURL(), jar.toUri().toURL()}, null)) {
+            Thread.currentThread().setContextClassLoader(classLoader);
+            count = combiner.combineResources("META-INF/context.xml");
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+
+        // then
+        Assertions.assertThat(count).isEqualTo(2);
+        assertThat(toString(combiner.buildDocument()))
+                .and("<config><service id='1' value='directory'/><service id='2'/></config>")
+                .areSimilar();
+    }
+
+    private static final String[] DIRECT_BUILD_INPUTS = {
+            "<config>\n"
+                    + "    <!-- services -->\n"
+                    + "    <service id='1' name='first'><parameter>a</parameter><parameter2>b</parameter2></service>\n"
+                    + "    <service id='2' combine.children='append'><parameter>a</parameter></service>\n"
+                    + "    <service id='3' combine.self='overridable'><parameter>a</parameter></service>\n"
+                    + "    <defaults combine.self='defaults' value='1'/>\n"
+                    + "</config>",
+            "<config>\n"
+                    + "    <service id='1' enabled='true'><parameter>c</parameter><![CDATA[<raw>]]></service>\n"
+                    + "    <service id='2'><parameter>d</parameter></service>\n"
+                    + "    <service id='3'><other/></service>\n"
+                    + "    <service id='4' combine.self='remove'/>\n"
+                    + "    <defaults value='2'/>\n"
+                    + "</config>",
+            "<config><service id='1' combine.self='override'><replaced/></service><?target data?></config>"
+    };
+
+    @Test
+    public void shouldParseInputsDirectlyIntoCombinerDocument()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.standard(), Collections.singletonList("id"));
+
+        // when
+        for (String input : DIRECT_BUILD_INPUTS) {
+            combiner.combine(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // then
+        assertThat(toString(combiner.buildDocument()))
+                .and(combineWithIdKey(DIRECT_BUILD_INPUTS))
+                .areSimilar();
+    }
+
+    @Test
+    public void shouldAdoptDisposableDocuments()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        XmlCombiner combiner = new XmlCombiner(Collections.singletonList("id"));
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        // when
+        for (String input : DIRECT_BUILD_INPUTS) {
+            Document document = builder.parse(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+            combiner.adoptAndCombine(document);
+            // the nodes were taken over instead of copied
+            Assertions.assertThat(document.getDocumentElement()).isNull();
+        }
+
+        // then
+        assertThat(toString(combiner.buildDocument()))
+                .and(combineWithIdKey(DIRECT_BUILD_INPUTS))
+                .areSimilar();
+    }
+
     @Test
     public void shouldRemoveRootElement()
             throws SAXException, IOException, ParserConfigurationException, TransformerException {
@@ -739,17 +1783,57 @@ public class XmlCombinerTest {
         Assertions.assertThat(combineWithIdKey(recessive, dominant)).isEqualTo(result);
     }
 
-    private static String combineWithIdKey(String... inputs)
+    @Test
+    public void shouldNotAccessNetworkWithOfflineProfile()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        String content = "<!DOCTYPE config SYSTEM 'http://unreachable.invalid/config.dtd'>\n"
+                + "<config><service id='1'/></config>";
+        XmlCombiner combiner = new XmlCombiner(ParserProfile.offline().newDocumentBuilder(), "id");
+
+        // when
+        combiner.combine(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        // then
+        assertThat(toString(combiner.buildDocument())).and("<config><service id='1'/></config>").areSimilar();
+    }
+
+    @Test
+    public void shouldResolveEntitiesFromCatalog()
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        // given
+        Path dtd = Paths.get("target/config.dtd");
+        Files.asCharSink(dtd.toFile(), StandardCharsets.UTF_8).write("<!ENTITY name 'from catalog'>");
+        String content = "<!DOCTYPE config SYSTEM 'http://unreachable.invalid/config.dtd'>\n"
+                + "<config><name>&name;</name></config>";
+        ParserProfile profile = ParserProfile.offline()
+                .withDeferredNodeExpansion(true)
+                .withCatalog(Collections.singletonMap("http://unreachable.invalid/config.dtd", dtd));
+        XmlCombiner combiner = new XmlCombiner(profile.newDocumentBuilder(), "id");
+
+        // when
+        combiner.combine(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        // then
+        assertThat(toString(combiner.buildDocument()))
+                .and("<config><name>from catalog</name></config>")
+                .areSimilar();
+    }
+
+    private String combineWithIdKey(String... inputs)
             throws IOException, ParserConfigurationException, SAXException, TransformerException {
         return combineWithKey("id", inputs);
     }
 
-    private static String combineWithKey(String keyAttributeName, String... inputs)
+    private String combineWithKey(String keyAttributeName, String... inputs)
             throws IOException, ParserConfigurationException, SAXException, TransformerException {
         return combineWithKeys(Lists.newArrayList(keyAttributeName), inputs);
     }
 
-    private static String combineWithKeys(List<String> keyAttributeNames, String... inputs)
+    /**
+     * Combines the inputs and returns the serialized result, overridden to check other combiners.
+     */
+    protected String combineWithKeys(List<String> keyAttributeNames, String... inputs)
             throws IOException, ParserConfigurationException, SAXException, TransformerException {
         XmlCombiner combiner = new XmlCombiner(keyAttributeNames);
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -786,4 +1870,51 @@ public class XmlCombinerTest {
         transformer.transform(new DOMSource(result), new StreamResult(writer));
         return writer.toString();
     }
+
+    private static String toString(XMLStreamReader reader) throws XMLStreamException {
+        StringWriter result = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(result);
+        writer.writeStartDocument("UTF-8", "1.0");
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamReader.START_ELEMENT:
+                    writer.writeStartElement(reader.getPrefix(), reader.getLocalName(),
+                            reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI());
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        writer.writeNamespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(reader.getAttributePrefix(i),
+                                reader.getAttributeNamespace(i) == null ? "" : reader.getAttributeNamespace(i),
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamReader.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamReader.CHARACTERS:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamReader.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamReader.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamReader.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+            }
+        }
+        writer.writeEndDocument();
+        return result.toString();
+    }
+
+    static String toString(Document document) throws TransformerException {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(document), new StreamResult(writer));
+        return writer.toString();
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterAll;
+import org.xml.sax.SAXException;
+
+/**
+ * Runs the merge cases of {@link XmlCombinerTest} against {@link XmlTreeCombiner}.
+ *
+ * <p>
+ * Each case is combined eagerly, lazily and in parallel, all three results must be identical to each other
+ * and match the expectations of {@link XmlCombinerTest}. The cases which do not go through
+ * {@link #combineWithKeys(List, String...)} test features of {@link XmlCombiner} only, they pass trivially.
+ * </p>
+ */
+public class XmlTreeCombinerCompatibilityTest extends XmlCombinerTest {
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterAll
+    public static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @Override
+    protected String combineWithKeys(List<String> keyAttributeNames, String... inputs)
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        List<XmlTree> trees = new ArrayList<>();
+        for (String input : inputs) {
+            trees.add(XmlTree.fromDocument(
+                    builder.parse(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)))));
+        }
+
+        XmlTreeCombiner eager = new XmlTreeCombiner(keyAttributeNames);
+        XmlTreeCombiner lazy = new XmlTreeCombiner(keyAttributeNames);
+        lazy.setLazy(true);
+        XmlTreeCombiner parallel = new XmlTreeCombiner(keyAttributeNames);
+        parallel.setParallelMerge(POOL, 1);
+
+        String result = toString(eager.combine(trees));
+        Assertions.assertThat(toString(lazy.combine(trees))).isEqualTo(result);
+        Assertions.assertThat(toString(parallel.combine(trees))).isEqualTo(result);
+        return result;
+    }
+
+    private static String toString(XmlTree tree) throws ParserConfigurationException, TransformerException {
+        if (tree == null) {
+            return toString(DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument());
+        }
+        return toString(tree.toDocument());
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atteo.xmlcombiner;
+
+import static java.util.Collections.singletonList;
+import static org.xmlunit.assertj.XmlAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+public class XmlTreeCombinerTest {
+    private static final String BASE = "\n"
+            + "<config>\n"
+            + "    <service id='1'>\n"
+            + "        <parameter>parameter</parameter>\n"
+            + "        <parameter2>parameter2</parameter2>\n"
+            + "    </service>\n"
+            + "    <service id='2' combine.children='append'>\n"
+            + "        <parameter>parameter</parameter>\n"
+            + "    </service>\n"
+            + "    <service id='3' combine.self='overridable'>\n"
+            + "        <parameter>parameter</parameter>\n"
+            + "    </service>\n"
+            + "    <item combine.self='overridable_by_tag'/>\n"
+            + "    <!-- comment -->\n"
+            + "    <defaults combine.self='defaults' value='1'/>\n"
+            + "    <service id='5'><a/><b/><a/></service>\n"
+            + "</config>";
+
+    @Test
+    public void shouldGiveTheSameResultAsXmlCombiner() throws Exception {
+        assertSameResult(BASE, "\n"
+                + "<config>\n"
+                + "    <service id='1'>\n"
+                + "        <parameter>other value</parameter>\n"
+                + "        <parameter3>parameter3</parameter3>\n"
+                + "    </service>\n"
+                + "    <service id='2'>\n"
+                + "        <parameter>appended</parameter>\n"
+                + "    </service>\n"
+                + "    <service id='3'>\n"
+                + "        <other/>\n"
+                + "    </service>\n"
+                + "    <item/>\n"
+                + "    <defaults value='2'/>\n"
+                + "    <service id='4' combine.children='add'/>\n"
+                + "</config>");
+        assertSameResult(BASE, "\n"
+                + "<config>\n"
+                + "    <service id='1' combine.self='override'/>\n"
+                + "    <service id='2' combine.self='remove'/>\n"
+                + "    <service id='5' combine.children='add'/>\n"
+                + "</config>");
+        assertSameResult(BASE, "<config combine.keys='name'><service name='x'/></config>",
+                "<config><service combine.id='a' combine.self='defaults'/></config>");
+    }
+
+    @Test
+    public void shouldShareUnchangedSubtrees() throws Exception {
+        // given
+        XmlTreeCombiner combiner = new XmlTreeCombiner(singletonList("id"));
+        XmlTree base = combiner.combine(null, XmlTree.fromDocument(parse(BASE)));
+        XmlTree overlay = XmlTree.fromDocument(parse("<config><service id='1'><parameter4/></service></config>"));
+
+        // when
+        XmlTree first = combiner.combine(base, overlay);
+        XmlTree second = combiner.combine(base, overlay);
+
+        // then
+        Assertions.assertThat(first).isNotSameAs(base);
+        Assertions.assertThat(service(first, "1")).isNotSameAs(service(base, "1"));
+        Assertions.assertThat(service(first, "1").getChildren()).extracting(XmlTree::getName)
+                .contains("parameter", "parameter4");
+        Assertions.assertThat(service(first, "2")).isSameAs(service(base, "2"));
+        Assertions.assertThat(service(second, "2")).isSameAs(service(base, "2"));
+        Assertions.assertThat(service(second, "5")).isSameAs(service(base, "5"));
+    }
+
+    @Test
+    public void shouldMergeOnlyAccessedSubtreesWhenLazy() throws Exception {
+        // given
+        XmlTreeCombiner combiner = new XmlTreeCombiner(singletonList("id"));
+        combiner.setLazy(true);
+        XmlTree base = XmlTree.fromDocument(parse(BASE));
+        XmlTree overlay = XmlTree.fromDocument(parse("<config><service id='1'><parameter4/></service>"
+                + "<service id='2'><parameter5/></service></config>"));
+
+        // when
+        XmlTree result = combiner.combine(Arrays.asList(base, overlay));
+
+        // then
+        Assertions.assertThat(result.isMaterialized()).isFalse();
+        XmlTree first = service(result, "1");
+        Assertions.assertThat(result.isMaterialized()).isTrue();
+        Assertions.assertThat(first.isMaterialized()).isFalse();
+        Assertions.assertThat(first.getChildren()).extracting(XmlTree::getName)
+                .containsExactly(null, "parameter", null, "parameter2", "parameter4");
+        Assertions.assertThat(service(result, "2").isMaterialized()).isFalse();
+        Assertions.assertThat(service(result, "1")).isSameAs(first);
+    }
+
+    @Test
+    public void shouldMergeWideDocumentInParallel() throws Exception {
+        // given
+        StringBuilder recessive = new StringBuilder("<config>");
+        StringBuilder dominant = new StringBuilder("<config>");
+        for (int i = 0; i < 2000; i++) {
+            recessive.append("<service id='").append(i).append("'><a/><b>").append(i).append("</b></service>");
+            if (i % 3 == 0) {
+                dominant.append("<!-- ").append(i).append(" --><service id='").append(i).append("'><c/></service>");
+            } else if (i % 7 == 0) {
+                dominant.append("<service id='").append(i).append("' combine.self='remove'/>");
+            }
+        }
+        recessive.append("</config>");
+        dominant.append("<service id='new'/></config>");
+        XmlTree recessiveTree = XmlTree.fromDocument(parse(recessive.toString()));
+        XmlTree dominantTree = XmlTree.fromDocument(parse(dominant.toString()));
+        XmlTreeCombiner combiner = new XmlTreeCombiner(singletonList("id"));
+        XmlTree sequential = combiner.combine(recessiveTree, dominantTree);
+
+        // when
+        combiner.setParallelMerge(new ForkJoinPool(4), 1);
+        XmlTree parallel = combiner.combine(recessiveTree, dominantTree);
+
+        // then
+        assertThat(toString(parallel.toDocument())).and(toString(sequential.toDocument())).areIdentical();
+    }
+
+    @Test
+    public void shouldMergeInConfiguredPoolWhenCalledFromAnotherPool() throws Exception {
+        // given
+        AtomicInteger workers = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(2, forkJoinPool -> {
+            workers.incrementAndGet();
+            return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+        }, null, false);
+        XmlTreeCombiner combiner = new XmlTreeCombiner(singletonList("id"));
+        combiner.setParallelMerge(pool, 1);
+        XmlTree base = XmlTree.fromDocument(parse(BASE));
+        XmlTree overlay = XmlTree.fromDocument(parse("<config><service id='1'><parameter4/></service></config>"));
+        XmlTree expected = new XmlTreeCombiner(singletonList("id")).combine(base, overlay);
+
+        // when
+        XmlTree result = ForkJoinPool.commonPool().submit(() -> combiner.combine(base, overlay)).get();
+
+        // then
+        Assertions.assertThat(workers.get()).isPositive();
+        assertThat(toString(result.toDocument())).and(toString(expected.toDocument())).areIdentical();
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldCombineLayerStacksSharingPrefixes() throws Exception {
+        // given
+        Path global = write("target/global.xml", BASE);
+        Path region = write("target/region.xml", "<config><service id='1'><region/></service></config>");
+        Path cluster = write("target/cluster.xml", "<config><service id='2'><cluster/></service></config>");
+        Path first = write("target/first.xml", "<config><service id='6'/></config>");
+        Path second = write("target/second.xml", "<config><service id='1' combine.self='remove'/></config>");
+        List<List<Path>> stacks = Arrays.asList(
+                Arrays.asList(global, region, cluster, first),
+                Arrays.asList(global, region, cluster, second),
+                Arrays.asList(global, region));
+
+        // when
+        LayerStackCombiner.Result result = new LayerStackCombiner(singletonList("id")).combine(stacks);
+
+        // then
+        LayerStackCombiner.Report report = result.getReport();
+        Assertions.assertThat(report.getLayersParsed()).isEqualTo(5);
+        Assertions.assertThat(report.getMerges()).isEqualTo(5);
+        Assertions.assertThat(report.getMergesWithoutSharing()).isEqualTo(10);
+        Assertions.assertThat(report.getSharedMerges()).isEqualTo(5);
+
+        for (int i = 0; i < stacks.size(); i++) {
+            XmlCombiner xmlCombiner = new XmlCombiner(singletonList("id"));
+            for (Path layer : stacks.get(i)) {
+                xmlCombiner.combine(layer);
+            }
+            assertThat(toString(result.getResults().get(i).toDocument()))
+                    .and(toString(xmlCombiner.buildDocument()))
+                    .areIdentical();
+        }
+    }
+
+    private static Path write(String file, String content) throws IOException {
+        Path path = Paths.get(file);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private static XmlTree service(XmlTree tree, String id) {
+        for (XmlTree child : tree.getChildren()) {
+            if (id.equals(child.getAttribute("id"))) {
+                return child;
+            }
+        }
+        throw new AssertionError("No service with id " + id);
+    }
+
+    private static void assertSameResult(String... inputs) throws Exception {
+        XmlCombiner xmlCombiner = new XmlCombiner(singletonList("id"));
+        List<XmlTree> trees = new ArrayList<>();
+        for (String input : inputs) {
+            xmlCombiner.combine(parse(input));
+            trees.add(XmlTree.fromDocument(parse(input)));
+        }
+        XmlTree result = new XmlTreeCombiner(singletonList("id")).combine(trees);
+        XmlTreeCombiner lazyCombiner = new XmlTreeCombiner(singletonList("id"));
+        lazyCombiner.setLazy(true);
+        XmlTree lazyResult = lazyCombiner.combine(trees);
+
+        String expected = toString(xmlCombiner.buildDocument());
+        assertThat(toString(result.toDocument())).and(expected).areIdentical();
+        assertThat(write(result)).and(expected).areSimilar();
+        assertThat(toString(lazyResult.toDocument())).and(expected).areIdentical();
+    }
+
+    private static Document parse(String content) throws IOException, ParserConfigurationException, SAXException {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String write(XmlTree tree) throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.write(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String toString(Document document) throws TransformerException {
+        StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document),
+                new StreamResult(writer));
+        return writer.toString();
+    }
+}